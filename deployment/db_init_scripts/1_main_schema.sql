@@ -2,6 +2,21 @@ DROP DATABASE IF EXISTS `tlvlp_iot`;
 CREATE DATABASE `tlvlp_iot`;
 USE `tlvlp_iot`;
 
+# Pooled id allocation for the entities, allowing JDBC batch inserts. next_val is the upper bound of the next pool.
+CREATE TABLE `id_sequences`
+(
+    `sequence_name` varchar(255) NOT NULL,
+    `next_val`      bigint(20)   NOT NULL,
+    PRIMARY KEY (`sequence_name`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8mb4
+  COLLATE = utf8mb4_unicode_520_ci;
+
+INSERT INTO `id_sequences` (`sequence_name`, `next_val`)
+VALUES ('units', 50),
+       ('modules', 50),
+       ('unit_logs', 500);
+
 CREATE TABLE `units`
 (
     `id`            bigint(20)   NOT NULL AUTO_INCREMENT,
@@ -34,16 +49,25 @@ CREATE TABLE `unit_logs`
 (
     `id`        bigint(20)   NOT NULL AUTO_INCREMENT,
     `unit_id`   bigint(20)   NOT NULL,
-    `log_entry` varchar(255) NOT NULL,
+    `log_entry` varchar(4096) NOT NULL,
     `time_utc`  datetime(6)  NOT NULL,
     `type`      varchar(50)  NOT NULL,
-    PRIMARY KEY (`id`),
-    FOREIGN KEY (`unit_id`)
-        REFERENCES units (id)
-        ON DELETE CASCADE
+    # The last occurrence and the number of occurrences of a folded error, null for the other logs.
+    `last_time_utc` datetime(6) DEFAULT NULL,
+    `occurrences`   int(11)     DEFAULT NULL,
+    # The partitioning column has to be part of every unique key, the ids are unique on their own.
+    PRIMARY KEY (`id`, `time_utc`),
+    # Keyset pagination and time range filtering of the logs of a unit.
+    KEY `unit_logs_unit_id_id` (`unit_id`, `id`),
+    KEY `unit_logs_unit_id_time_utc` (`unit_id`, `time_utc`)
+    # No foreign key to units, it is not supported on partitioned tables.
 ) ENGINE = InnoDB
   DEFAULT CHARSET = utf8mb4
-  COLLATE = utf8mb4_unicode_520_ci;
+  COLLATE = utf8mb4_unicode_520_ci
+  # Monthly partitions are split off pmax by the retention job (UnitLogRetention), the expired ones are dropped.
+  PARTITION BY RANGE COLUMNS (`time_utc`) (
+      PARTITION `pmax` VALUES LESS THAN (MAXVALUE)
+      );
 
 # CREATE TABLE `users`
 # (
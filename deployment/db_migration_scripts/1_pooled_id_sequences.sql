@@ -0,0 +1,25 @@
+# Migrates an existing database from IDENTITY to pooled id generation.
+# The sequences are seeded above the current ids with one allocation size (units: 50, modules: 50, unit_logs: 500).
+# The AUTO_INCREMENT attributes are left in place, ids are assigned by the application.
+USE `tlvlp_iot`;
+
+CREATE TABLE IF NOT EXISTS `id_sequences`
+(
+    `sequence_name` varchar(255) NOT NULL,
+    `next_val`      bigint(20)   NOT NULL,
+    PRIMARY KEY (`sequence_name`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8mb4
+  COLLATE = utf8mb4_unicode_520_ci;
+
+INSERT INTO `id_sequences` (`sequence_name`, `next_val`)
+SELECT 'units', COALESCE(MAX(`id`), 0) + 50
+FROM `units`;
+
+INSERT INTO `id_sequences` (`sequence_name`, `next_val`)
+SELECT 'modules', COALESCE(MAX(`id`), 0) + 50
+FROM `modules`;
+
+INSERT INTO `id_sequences` (`sequence_name`, `next_val`)
+SELECT 'unit_logs', COALESCE(MAX(`id`), 0) + 500
+FROM `unit_logs`;
@@ -0,0 +1,10 @@
+# Adds the composite indexes of the paginated unit log queries.
+# The single column index of the unit_id foreign key is covered by unit_logs_unit_id_id and is dropped.
+USE `tlvlp_iot`;
+
+ALTER TABLE `unit_logs`
+    ADD KEY `unit_logs_unit_id_id` (`unit_id`, `id`),
+    ADD KEY `unit_logs_unit_id_time_utc` (`unit_id`, `time_utc`);
+
+ALTER TABLE `unit_logs`
+    DROP KEY `unit_id`;
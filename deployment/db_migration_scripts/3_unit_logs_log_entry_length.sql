@@ -0,0 +1,6 @@
+# Widens the log entries, the control logs hold the JSON of the controlled modules of the unit.
+# Longer entries are truncated by the application (UnitLog.MAX_LOG_ENTRY_LENGTH).
+USE `tlvlp_iot`;
+
+ALTER TABLE `unit_logs`
+    MODIFY `log_entry` varchar(4096) NOT NULL;
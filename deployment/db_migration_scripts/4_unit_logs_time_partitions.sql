@@ -0,0 +1,40 @@
+# Range partitions the unit logs by month on time_utc, so the expired logs are dropped with their partitions
+# instead of deleted row by row (UnitLogRetention).
+# MySQL does not allow foreign keys on partitioned tables and every unique key has to include the partitioning column.
+# The ids are still unique, they are allocated by the application from id_sequences.
+# The logs before the current month stay in p_old until it expires, the next months are split off pmax by the retention job.
+# The foreign key name and the partition bounds are looked up when the script runs, it needs no edits.
+# Rebuilds the table, run it in a maintenance window.
+USE `tlvlp_iot`;
+
+# The foreign key to units has a generated name.
+SET @unit_logs_fk = NULL;
+SELECT `CONSTRAINT_NAME`
+INTO @unit_logs_fk
+FROM `information_schema`.`REFERENTIAL_CONSTRAINTS`
+WHERE `CONSTRAINT_SCHEMA` = DATABASE()
+  AND `TABLE_NAME` = 'unit_logs'
+  AND `REFERENCED_TABLE_NAME` = 'units'
+LIMIT 1;
+
+SET @drop_unit_logs_fk = IF(@unit_logs_fk IS NULL, 'DO 0',
+                            CONCAT('ALTER TABLE `unit_logs` DROP FOREIGN KEY `', @unit_logs_fk, '`'));
+PREPARE drop_unit_logs_fk FROM @drop_unit_logs_fk;
+EXECUTE drop_unit_logs_fk;
+DEALLOCATE PREPARE drop_unit_logs_fk;
+
+ALTER TABLE `unit_logs`
+    DROP PRIMARY KEY,
+    ADD PRIMARY KEY (`id`, `time_utc`);
+
+# p_old ends with the previous month, the current month gets its own partition, in UTC like time_utc.
+SET @current_month = DATE_FORMAT(UTC_TIMESTAMP(), '%Y-%m-01 00:00:00');
+SET @partition_unit_logs = CONCAT(
+        'ALTER TABLE `unit_logs` PARTITION BY RANGE COLUMNS (`time_utc`) (',
+        'PARTITION `p_old` VALUES LESS THAN (''', @current_month, '''), ',
+        'PARTITION `p', DATE_FORMAT(@current_month, '%Y%m'), '` VALUES LESS THAN (''',
+        DATE_FORMAT(@current_month + INTERVAL 1 MONTH, '%Y-%m-01 00:00:00'), '''), ',
+        'PARTITION `pmax` VALUES LESS THAN (MAXVALUE))');
+PREPARE partition_unit_logs FROM @partition_unit_logs;
+EXECUTE partition_unit_logs;
+DEALLOCATE PREPARE partition_unit_logs;
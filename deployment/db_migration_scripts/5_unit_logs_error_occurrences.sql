@@ -0,0 +1,7 @@
+# Adds the occurrences of the folded unit errors (ErrorDeduplicator), time_utc holds the first occurrence.
+# Both columns are null for the other logs.
+USE `tlvlp_iot`;
+
+ALTER TABLE `unit_logs`
+    ADD COLUMN `last_time_utc` datetime(6) DEFAULT NULL,
+    ADD COLUMN `occurrences`   int(11)     DEFAULT NULL;
@@ -0,0 +1,34 @@
+package com.tlvlp.iot.server;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the application on an in-memory H2 database in MySQL mode with the schema generated from the entities,
+ * an in-memory Quartz store and without the MQTT broker connection ({@link StubMessageService}).
+ */
+public class H2BenchmarkProfile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        return Map.ofEntries(
+                Map.entry("quarkus.datasource.db-kind", "h2"),
+                Map.entry("quarkus.datasource.jdbc.url",
+                        "jdbc:h2:mem:tlvlp_iot;MODE=MySQL;DB_CLOSE_DELAY=-1;INIT=CREATE SCHEMA IF NOT EXISTS tlvlp_iot"),
+                Map.entry("quarkus.datasource.username", "sa"),
+                Map.entry("quarkus.datasource.password", ""),
+                Map.entry("quarkus.hibernate-orm.database.generation", "drop-and-create"),
+                Map.entry("quarkus.quartz.store-type", "ram"),
+                Map.entry("quarkus.quartz.clustered", "false"),
+                Map.entry("quarkus.log.level", "WARN"),
+                Map.entry("mqtt.message.service.disabled", "true"),
+                Map.entry("history.directory", "target/benchmark-history"));
+    }
+
+    @Override
+    public Set<Class<?>> getEnabledAlternatives() {
+        return Set.of(StubMessageService.class);
+    }
+}
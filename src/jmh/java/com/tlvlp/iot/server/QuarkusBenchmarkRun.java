@@ -0,0 +1,38 @@
+package com.tlvlp.iot.server;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the JMH benchmarks that need the Quarkus beans inside the started test application (see {@link H2BenchmarkProfile}).
+ * The benchmarks run in this JVM (no forks), so the results are noisier than the ones of forked runs.
+ * <p>
+ * System properties: benchmark.include (regex, default: McuService), benchmark.warmup and benchmark.iterations
+ * (default: 3 and 5 iterations of 5 seconds), benchmark.result (JSON result file, optional).
+ */
+@QuarkusTest
+@TestProfile(H2BenchmarkProfile.class)
+class QuarkusBenchmarkRun {
+
+    @Test
+    void run() throws Exception {
+        var options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", "McuService"))
+                .forks(0)
+                .warmupIterations(Integer.getInteger("benchmark.warmup", 3))
+                .warmupTime(TimeValue.seconds(5))
+                .measurementIterations(Integer.getInteger("benchmark.iterations", 5))
+                .measurementTime(TimeValue.seconds(5))
+                .addProfiler(GCProfiler.class);
+        var resultFile = System.getProperty("benchmark.result");
+        if (resultFile != null) {
+            options.result(resultFile).resultFormat(org.openjdk.jmh.results.format.ResultFormatType.JSON);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,53 @@
+package com.tlvlp.iot.server;
+
+import com.tlvlp.iot.server.mqtt.MessageOutbox;
+import com.tlvlp.iot.server.mqtt.MessageService;
+import com.tlvlp.iot.server.mqtt.PublishResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mutiny.core.eventbus.EventBus;
+
+import javax.enterprise.inject.Alternative;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the outgoing messages instead of publishing them to a broker, every message is delivered at once.
+ * A Singleton, as the MessageService has no constructor for a client proxy of a subclass.
+ * Enabled by the {@link H2BenchmarkProfile}.
+ */
+@Alternative
+@Singleton
+public class StubMessageService extends MessageService {
+
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+
+    public StubMessageService(Vertx vertx, EventBus eventBus, MeterRegistry meterRegistry, MessageOutbox outbox) {
+        super(vertx, eventBus, meterRegistry, outbox, true, "stub", 0, "stub", "stub", 1, false,
+                100, 100_000, 10, 3, 200L, 1000L, 60_000L);
+    }
+
+    @Override
+    public Boolean isBrokerConnected() {
+        return true;
+    }
+
+    @Override
+    public Uni<PublishResult> publish(String topic, Buffer body) {
+        sentMessages.increment();
+        sentBytes.add(body.length());
+        return Uni.createFrom().item(new PublishResult(topic, true, 1, Duration.ZERO, null));
+    }
+
+    public long getSentMessages() {
+        return sentMessages.sum();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+}
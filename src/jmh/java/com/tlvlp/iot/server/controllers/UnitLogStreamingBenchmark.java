@@ -0,0 +1,181 @@
+package com.tlvlp.iot.server.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.tlvlp.iot.server.mcu.UnitLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first byte and total time of writing the logs of a unit in the two response formats of /mcu/logs:
+ * <ul>
+ *     <li>JSON_ARRAY: the rows are read into a list and serialized as one array, like the paged JSON responses.</li>
+ *     <li>NDJSON: the rows are serialized one by one while they are read from a forward-only result set.</li>
+ * </ul>
+ * The first byte is the first write of the Jackson buffer to the response stream.
+ * Runs on an in-memory H2 database in MySQL mode by default.
+ * Use -Dbenchmark.jdbc.url (and .user, .password) to run it against a MySQL server
+ * and -Dbenchmark.fetch.size=-2147483648 to make Connector/J stream the rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UnitLogStreamingBenchmark {
+
+    private static final String QUERY = "SELECT id, unit_id, log_entry, time_utc, type FROM unit_logs WHERE unit_id = ? ORDER BY id";
+    private static final FirstByteWritten FIRST_BYTE_WRITTEN = new FirstByteWritten();
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"JSON_ARRAY", "NDJSON"})
+    public String format;
+
+    private Connection connection;
+    private ObjectMapper jsonMapper;
+    private ObjectWriter logWriter;
+    private int fetchSize;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = DriverManager.getConnection(
+                System.getProperty("benchmark.jdbc.url", "jdbc:h2:mem:unit_log_streaming;MODE=MySQL;DB_CLOSE_DELAY=-1"),
+                System.getProperty("benchmark.jdbc.user", "sa"),
+                System.getProperty("benchmark.jdbc.password", ""));
+        fetchSize = Integer.getInteger("benchmark.fetch.size", 1000);
+        jsonMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        logWriter = jsonMapper.writerFor(UnitLog.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS unit_logs");
+            statement.execute("CREATE TABLE unit_logs (" +
+                    "id bigint NOT NULL AUTO_INCREMENT, unit_id bigint NOT NULL, log_entry varchar(255) NOT NULL, " +
+                    "time_utc datetime NOT NULL, type varchar(50) NOT NULL, PRIMARY KEY (id))");
+        }
+        try (var insert = connection.prepareStatement(
+                "INSERT INTO unit_logs (unit_id, log_entry, time_utc, type) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < rows; i++) {
+                insert.setLong(1, 1L);
+                insert.setString(2, "Module was updated: Module(id=" + i + ", unitId=1, module=relay, name=light, value=1.0)");
+                insert.setTimestamp(3, Timestamp.from(Instant.now()));
+                insert.setString(4, "STATUS_CHANGE");
+                insert.addBatch();
+                if ((i + 1) % 1000 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    public long timeToFirstByte() throws Exception {
+        return writeResponse(new ResponseStream(true));
+    }
+
+    @Benchmark
+    public long fullResponse() throws Exception {
+        return writeResponse(new ResponseStream(false));
+    }
+
+    private long writeResponse(ResponseStream output) throws SQLException, IOException {
+        try (var query = connection.prepareStatement(QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            query.setFetchSize(fetchSize);
+            query.setLong(1, 1L);
+            try (var results = query.executeQuery()) {
+                if ("JSON_ARRAY".equals(format)) {
+                    var logs = new ArrayList<UnitLog>();
+                    while (results.next()) {
+                        logs.add(toUnitLog(results));
+                    }
+                    jsonMapper.writeValue(output, logs);
+                } else {
+                    try (var generator = jsonMapper.getFactory().createGenerator(output)) {
+                        generator.setRootValueSeparator(null);
+                        while (results.next()) {
+                            logWriter.writeValue(generator, toUnitLog(results));
+                            generator.writeRaw('\n');
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The rest of the response is not needed after the first byte, Jackson may wrap the signal.
+            if (!(e instanceof FirstByteWritten || e.getCause() instanceof FirstByteWritten)) {
+                throw e;
+            }
+        }
+        return output.bytes;
+    }
+
+    private static UnitLog toUnitLog(ResultSet results) throws SQLException {
+        return new UnitLog()
+                .setId(results.getLong(1))
+                .setUnitId(results.getLong(2))
+                .setLogEntry(results.getString(3))
+                .setTimeUtc(results.getTimestamp(4).toInstant().atZone(ZoneOffset.UTC))
+                .setType(UnitLog.Type.valueOf(results.getString(5)));
+    }
+
+    private static class ResponseStream extends OutputStream {
+        private final boolean stopAtFirstByte;
+        private long bytes;
+
+        private ResponseStream(boolean stopAtFirstByte) {
+            this.stopAtFirstByte = stopAtFirstByte;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            if (stopAtFirstByte) {
+                throw FIRST_BYTE_WRITTEN;
+            }
+        }
+    }
+
+    private static class FirstByteWritten extends RuntimeException {
+        private FirstByteWritten() {
+            super(null, null, false, false);
+        }
+    }
+}
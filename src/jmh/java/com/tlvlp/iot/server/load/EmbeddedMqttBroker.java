@@ -0,0 +1,82 @@
+package com.tlvlp.iot.server.load;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.quarkus.test.common.QuarkusTestResourceLifecycleManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * An in-memory Moquette broker on a free local port, without SSL and authentication.
+ * Started before the application, which is connected to it by the returned configuration.
+ */
+public class EmbeddedMqttBroker implements QuarkusTestResourceLifecycleManager {
+
+    static final String HOST = "127.0.0.1";
+
+    private static volatile EmbeddedMqttBroker current;
+
+    private Properties properties;
+    private Server server;
+
+    @Override
+    public Map<String, String> start() {
+        var port = findFreePort();
+        properties = new Properties();
+        properties.setProperty(BrokerConstants.HOST_PROPERTY_NAME, HOST);
+        properties.setProperty(BrokerConstants.PORT_PROPERTY_NAME, String.valueOf(port));
+        properties.setProperty(BrokerConstants.WEB_SOCKET_PORT_PROPERTY_NAME, BrokerConstants.DISABLED_PORT_BIND);
+        properties.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        properties.setProperty(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        properties.setProperty(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME, String.valueOf(1024 * 1024));
+        properties.setProperty(BrokerConstants.IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME, "true");
+        startServer();
+        current = this;
+        return Map.of(
+                "mqtt.message.service.disabled", "false",
+                "mqtt.broker.host", HOST,
+                "mqtt.broker.port", String.valueOf(port),
+                "mqtt.broker.username", "load",
+                "mqtt.broker.password", "load",
+                "mqtt.broker.ssl", "false");
+    }
+
+    /**
+     * Stops the running broker for the given time, every client loses its connection and session.
+     */
+    static void outage(long millis) throws InterruptedException {
+        var broker = current;
+        broker.server.stopServer();
+        Thread.sleep(millis);
+        broker.startServer();
+    }
+
+    private void startServer() {
+        server = new Server();
+        try {
+            server.startServer(new MemoryConfig(properties));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to start the embedded MQTT broker.", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stopServer();
+        }
+    }
+
+    private static int findFreePort() {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException("No free port for the embedded MQTT broker.", e);
+        }
+    }
+}
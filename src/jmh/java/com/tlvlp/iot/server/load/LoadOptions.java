@@ -0,0 +1,46 @@
+package com.tlvlp.iot.server.load;
+
+import lombok.Value;
+
+/**
+ * Options of the MCU fleet load test, read from the load.* system properties.
+ * The rates are messages per second for the whole fleet.
+ * With an outage the broker is stopped for that many seconds in the middle of the measurement.
+ */
+@Value
+class LoadOptions {
+
+    int units;
+    int modules;
+    int connections;
+    int qos;
+    double statusRate;
+    double errorRate;
+    double inactiveRate;
+    double controlRate;
+    int warmupSeconds;
+    int durationSeconds;
+    int reportSeconds;
+    int outageSeconds;
+
+    static LoadOptions fromSystemProperties() {
+        return new LoadOptions(
+                Integer.getInteger("load.units", 1000),
+                Integer.getInteger("load.modules", 5),
+                Integer.getInteger("load.connections", 8),
+                Integer.getInteger("load.qos", 1),
+                doubleProperty("load.status-rate", 1000),
+                doubleProperty("load.error-rate", 5),
+                doubleProperty("load.inactive-rate", 1),
+                doubleProperty("load.control-rate", 10),
+                Integer.getInteger("load.warmup-seconds", 15),
+                Integer.getInteger("load.duration-seconds", 60),
+                Integer.getInteger("load.report-seconds", 5),
+                Integer.getInteger("load.outage-seconds", 0));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        var value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+}
@@ -0,0 +1,33 @@
+package com.tlvlp.iot.server.load;
+
+import com.tlvlp.iot.server.H2BenchmarkProfile;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link H2BenchmarkProfile} with the real MessageService, connected to the {@link EmbeddedMqttBroker}.
+ */
+public class LoadTestProfile extends H2BenchmarkProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        var config = new HashMap<>(super.getConfigOverrides());
+        config.put("mqtt.message.service.disabled", "false");
+        config.put("history.directory", "target/load-history");
+        config.put("mqtt.outbox.file", "target/load-outbox.jsonl");
+        return config;
+    }
+
+    @Override
+    public Set<Class<?>> getEnabledAlternatives() {
+        return Set.of();
+    }
+
+    @Override
+    public List<TestResourceEntry> testResources() {
+        return List.of(new TestResourceEntry(EmbeddedMqttBroker.class));
+    }
+}
@@ -0,0 +1,298 @@
+package com.tlvlp.iot.server.load;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttClient;
+import io.vertx.mqtt.MqttClientOptions;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates a fleet of MCUs that share a few MQTT connections of their own Vert.x instance.
+ * Every connection publishes the status, error and inactive messages of its share of the units at the configured rates,
+ * the status module values alternate between two pre-encoded payloads of the unit.
+ * A separate connection is subscribed to the control topics of all the units to measure the control round-trip.
+ * A lost connection is reconnected (and resubscribed) right away, so the simulated units survive a broker outage.
+ */
+class McuFleetSimulator implements AutoCloseable {
+
+    static final String PROJECT = "tlvlp_load";
+    private static final long TICK_MS = 10;
+    private static final String CONTROL_TOPICS = "/units/+/control";
+    private static final long RECONNECT_MS = 100;
+
+    private final LoadOptions options;
+    private final Vertx vertx = Vertx.vertx();
+    private final List<Connection> connections = new ArrayList<>();
+    private final byte[][][] statusPayloads;
+    private final byte[][] errorPayloads;
+    private final byte[][] inactivePayloads;
+
+    private final LongAdder statusSent = new LongAdder();
+    private final LongAdder errorSent = new LongAdder();
+    private final LongAdder inactiveSent = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder controlsReceived = new LongAdder();
+    private final Map<String, Long> pendingControls = new ConcurrentHashMap<>();
+    private final Recorder controlRoundTripNanos = new Recorder(3);
+
+    private MqttClient controlClient;
+    private String host;
+    private int port;
+    private volatile boolean isFullLoad;
+    private volatile boolean isClosing;
+
+    McuFleetSimulator(LoadOptions options) {
+        this.options = options;
+        statusPayloads = new byte[options.getUnits()][][];
+        errorPayloads = new byte[options.getUnits()][];
+        inactivePayloads = new byte[options.getUnits()][];
+        for (int unit = 0; unit < options.getUnits(); unit++) {
+            var id = String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"%s\"}", PROJECT, unitName(unit));
+            statusPayloads[unit] = new byte[][]{statusPayload(id, 0), statusPayload(id, 1)};
+            errorPayloads[unit] = (id + ",\"error\":\"Simulated sensor failure.\"}").getBytes(StandardCharsets.UTF_8);
+            inactivePayloads[unit] = (id + "}").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    static String unitName(int unit) {
+        return String.format("load_unit_%05d", unit);
+    }
+
+    static String controlTopic(String unitName) {
+        return String.format("/units/%s-%s/control", PROJECT, unitName);
+    }
+
+    private byte[] statusPayload(String id, int value) {
+        var payload = new StringBuilder(id).append(",\"modules\":[");
+        for (int i = 0; i < options.getModules(); i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(String.format("{\"module\":\"sensor\",\"name\":\"sensor_%d\",\"value\":%d.%d}", i, value, i));
+        }
+        return payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Connects the publishers and the control subscriber and starts to publish the status messages only.
+     */
+    void start(String host, int port) {
+        this.host = host;
+        this.port = port;
+        var connected = new ArrayList<CompletableFuture<Void>>();
+        for (int index = 0; index < options.getConnections(); index++) {
+            var connection = new Connection(index, createClient("load-mcu-" + index));
+            connections.add(connection);
+            connected.add(connect(connection.client, host, port));
+        }
+        controlClient = createClient("load-control")
+                .publishHandler(message -> {
+                    var sentAt = pendingControls.remove(message.topicName());
+                    if (sentAt != null) {
+                        controlRoundTripNanos.recordValue(System.nanoTime() - sentAt);
+                        controlsReceived.increment();
+                    }
+                });
+        connected.add(connect(controlClient, host, port).thenCompose(na -> subscribeToControls()));
+        CompletableFuture.allOf(connected.toArray(CompletableFuture[]::new)).join();
+        connections.forEach(connection -> connection.timerId = vertx.setPeriodic(TICK_MS, id -> connection.tick()));
+    }
+
+    /**
+     * Adds the error and inactive messages to the published load.
+     */
+    void startFullLoad() {
+        isFullLoad = true;
+    }
+
+    void stopPublishing() {
+        connections.forEach(connection -> vertx.cancelTimer(connection.timerId));
+    }
+
+    /**
+     * @return false if the unit has a control message in flight, a unit is only measured with one control at a time.
+     */
+    boolean controlSent(String unitName) {
+        return pendingControls.putIfAbsent(controlTopic(unitName), System.nanoTime()) == null;
+    }
+
+    void controlFailed(String unitName) {
+        pendingControls.remove(controlTopic(unitName));
+    }
+
+    long getStatusSent() {
+        return statusSent.sum();
+    }
+
+    long getErrorSent() {
+        return errorSent.sum();
+    }
+
+    long getInactiveSent() {
+        return inactiveSent.sum();
+    }
+
+    long getPublishFailures() {
+        return publishFailures.sum();
+    }
+
+    long getControlsReceived() {
+        return controlsReceived.sum();
+    }
+
+    /**
+     * @return the control round-trip times since the previous call.
+     */
+    Histogram getControlRoundTripInterval(Histogram recycle) {
+        return controlRoundTripNanos.getIntervalHistogram(recycle);
+    }
+
+    private CompletableFuture<Void> subscribeToControls() {
+        var subscribed = new CompletableFuture<Void>();
+        controlClient.subscribe(CONTROL_TOPICS, options.getQos(), result -> {
+            if (result.succeeded()) {
+                subscribed.complete(null);
+            } else {
+                subscribed.completeExceptionally(result.cause());
+            }
+        });
+        return subscribed;
+    }
+
+    private void reconnect(MqttClient client) {
+        if (isClosing) {
+            return;
+        }
+        vertx.setTimer(RECONNECT_MS, id -> connect(client, host, port).whenComplete((na, failure) -> {
+            if (failure != null) {
+                reconnect(client);
+            } else if (client == controlClient) {
+                subscribeToControls();
+            }
+        }));
+    }
+
+    @Override
+    public void close() {
+        isClosing = true;
+        stopPublishing();
+        connections.forEach(connection -> disconnect(connection.client));
+        if (controlClient != null) {
+            disconnect(controlClient);
+        }
+        vertx.close();
+    }
+
+    /**
+     * The client fails to disconnect when the broker already closed its connection.
+     */
+    private void disconnect(MqttClient client) {
+        try {
+            client.disconnect();
+        } catch (RuntimeException e) {
+            // Already disconnected.
+        }
+    }
+
+    private MqttClient createClient(String clientId) {
+        var client = MqttClient.create(vertx, new MqttClientOptions()
+                .setClientId(clientId)
+                .setCleanSession(true)
+                .setMaxInflightQueue(10_000)
+                .setMaxMessageSize(1024 * 1024));
+        return client.closeHandler(na -> reconnect(client));
+    }
+
+    private CompletableFuture<Void> connect(MqttClient client, String host, int port) {
+        var connected = new CompletableFuture<Void>();
+        client.connect(port, host, result -> {
+            if (result.succeeded()) {
+                connected.complete(null);
+            } else {
+                connected.completeExceptionally(result.cause());
+            }
+        });
+        return connected.orTimeout(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A connection publishes the messages of every n-th unit, the rates are spread evenly across the connections.
+     */
+    private class Connection {
+        private final int index;
+        private final MqttClient client;
+        private final double statusPerTick;
+        private final double errorPerTick;
+        private final double inactivePerTick;
+        private double statusDue;
+        private double errorDue;
+        private double inactiveDue;
+        private int nextStatusUnit;
+        private long round;
+        private long timerId;
+
+        private Connection(int index, MqttClient client) {
+            this.index = index;
+            this.client = client;
+            var share = TICK_MS / 1000.0 / options.getConnections();
+            this.statusPerTick = options.getStatusRate() * share;
+            this.errorPerTick = options.getErrorRate() * share;
+            this.inactivePerTick = options.getInactiveRate() * share;
+            this.nextStatusUnit = index;
+        }
+
+        private void tick() {
+            if (index >= options.getUnits()) {
+                return;
+            }
+            statusDue += statusPerTick;
+            for (; statusDue >= 1; statusDue--) {
+                publish(GlobalTopics.GLOBAL_STATUS, statusPayloads[nextStatusUnit][(int) (round & 1)], statusSent);
+                nextStatusUnit += options.getConnections();
+                if (nextStatusUnit >= options.getUnits()) {
+                    nextStatusUnit = index;
+                    round++;
+                }
+            }
+            if (!isFullLoad) {
+                return;
+            }
+            errorDue += errorPerTick;
+            for (; errorDue >= 1; errorDue--) {
+                publish(GlobalTopics.GLOBAL_ERROR, errorPayloads[randomUnit()], errorSent);
+            }
+            inactiveDue += inactivePerTick;
+            for (; inactiveDue >= 1; inactiveDue--) {
+                publish(GlobalTopics.GLOBAL_INACTIVE, inactivePayloads[randomUnit()], inactiveSent);
+            }
+        }
+
+        private int randomUnit() {
+            var unitsOfConnection = (options.getUnits() - index + options.getConnections() - 1) / options.getConnections();
+            return index + ThreadLocalRandom.current().nextInt(unitsOfConnection) * options.getConnections();
+        }
+
+        private void publish(GlobalTopics topic, byte[] payload, LongAdder sent) {
+            try {
+                client.publish(topic.topic(), Buffer.buffer(payload), MqttQoS.valueOf(options.getQos()), false, false);
+                sent.increment();
+            } catch (RuntimeException e) {
+                // The in-flight window of the connection is full.
+                publishFailures.increment();
+            }
+        }
+    }
+}
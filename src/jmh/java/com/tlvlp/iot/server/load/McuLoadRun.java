@@ -0,0 +1,293 @@
+package com.tlvlp.iot.server.load;
+
+import com.tlvlp.iot.server.mcu.IngressDispatcher;
+import com.tlvlp.iot.server.mcu.McuService;
+import com.tlvlp.iot.server.mcu.Module;
+import com.tlvlp.iot.server.mcu.UnitControlResult;
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.quarkus.arc.Arc;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.HdrHistogram.Histogram;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of the whole MQTT ingress and control path with a simulated MCU fleet ({@link McuFleetSimulator})
+ * on an embedded broker (see {@link LoadTestProfile}).
+ * <p>
+ * The warmup publishes status messages only, so every unit is registered before the measurement.
+ * The measurement adds the error and inactive messages and sends control messages to random units
+ * through the McuService, their round-trip ends when the simulated unit receives them from the broker.
+ * A control counts as acknowledged when the McuService reports it as delivered, without blocking the sender.
+ * The sustained throughput and the ingress latency (MQTT receipt to commit) are read from the application metrics.
+ * <p>
+ * With an outage the embedded broker is stopped in the middle of the measurement, the controls sent meanwhile
+ * wait in the outbox and they are replayed after the reconnection.
+ * <p>
+ * System properties: see {@link LoadOptions}, e.g. -Dload.units=5000 -Dload.status-rate=5000 -Dload.duration-seconds=120
+ */
+@QuarkusTest
+@TestProfile(LoadTestProfile.class)
+class McuLoadRun {
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    @Inject
+    McuService mcuService;
+    @Inject
+    McuRegistry registry;
+    @Inject
+    IngressDispatcher ingressDispatcher;
+    @Inject
+    MeterRegistry meterRegistry;
+    @ConfigProperty(name = "mqtt.broker.port")
+    Integer brokerPort;
+
+    private final AtomicLong intervalMaxLagMs = new AtomicLong();
+    private final LongAdder controlsAcknowledged = new LongAdder();
+    private final LongAdder controlFailures = new LongAdder();
+
+    @Test
+    void run() throws Exception {
+        var options = LoadOptions.fromSystemProperties();
+        System.out.printf("MCU fleet load test: %s%n", options);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+        scheduler.scheduleAtFixedRate(() -> intervalMaxLagMs.accumulateAndGet(ingressDispatcher.getLagMillis(), Math::max),
+                0, 100, TimeUnit.MILLISECONDS);
+        try (var simulator = new McuFleetSimulator(options)) {
+            simulator.start(EmbeddedMqttBroker.HOST, brokerPort);
+
+            System.out.printf("%nWarmup: status messages of %d units for %d s%n", options.getUnits(), options.getWarmupSeconds());
+            var warmup = new Report(simulator);
+            runPhase(options.getWarmupSeconds(), options.getReportSeconds(), warmup);
+
+            System.out.printf("%nMeasurement: full load for %d s%n", options.getDurationSeconds());
+            simulator.startFullLoad();
+            if (options.getControlRate() > 0) {
+                var periodMicros = (long) (1_000_000 / options.getControlRate());
+                scheduler.scheduleAtFixedRate(() -> sendControl(simulator, options), periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+            }
+            if (options.getOutageSeconds() > 0) {
+                scheduler.schedule(() -> brokerOutage(options.getOutageSeconds()), options.getDurationSeconds() / 2, TimeUnit.SECONDS);
+            }
+            var measurement = new Report(simulator);
+            runPhase(options.getDurationSeconds(), options.getReportSeconds(), measurement);
+            simulator.stopPublishing();
+            scheduler.shutdownNow();
+
+            var drainStart = System.nanoTime();
+            while (ingressDispatcher.getPendingMessages() > 0
+                    && System.nanoTime() - drainStart < TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS)) {
+                Thread.sleep(100);
+            }
+            var drainMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+            measurement.printSummary(options.getDurationSeconds(), drainMs, ingressDispatcher.getPendingMessages());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void brokerOutage(int seconds) {
+        System.out.printf("Stopping the broker for %d s%n", seconds);
+        try {
+            EmbeddedMqttBroker.outage(TimeUnit.SECONDS.toMillis(seconds));
+            System.out.println("The broker is started again");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runPhase(int seconds, int reportSeconds, Report report) throws InterruptedException {
+        var end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            var sleepNanos = Math.min(TimeUnit.SECONDS.toNanos(reportSeconds), end - System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            report.printInterval();
+        }
+    }
+
+    /**
+     * Switches all the modules of a random unit, like the REST control endpoint in its request context.
+     */
+    private void sendControl(McuFleetSimulator simulator, LoadOptions options) {
+        var unitName = McuFleetSimulator.unitName(ThreadLocalRandom.current().nextInt(options.getUnits()));
+        var unit = registry.findUnit(McuFleetSimulator.PROJECT, unitName);
+        var modules = unit.flatMap(u -> registry.findActiveModules(u.getId()));
+        if (modules.isEmpty() || !simulator.controlSent(unitName)) {
+            return;
+        }
+        var controls = new ArrayList<Module>();
+        for (Module module : modules.get()) {
+            controls.add(new Module()
+                    .setId(module.getId())
+                    .setUnitId(module.getUnitId())
+                    .setModule(module.getModule())
+                    .setName(module.getName())
+                    .setValue(module.getValue() > 0 ? 0.0 : 1.0)
+                    .setActive(true));
+        }
+        var requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try {
+            mcuService.sendControlMessages(controls).subscribe().with(
+                    results -> {
+                        if (results.stream().allMatch(UnitControlResult::isDelivered)) {
+                            controlsAcknowledged.increment();
+                        } else {
+                            controlFailed(simulator, unitName);
+                        }
+                    },
+                    failure -> controlFailed(simulator, unitName));
+        } catch (RuntimeException e) {
+            controlFailed(simulator, unitName);
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    private void controlFailed(McuFleetSimulator simulator, String unitName) {
+        simulator.controlFailed(unitName);
+        controlFailures.increment();
+    }
+
+    /**
+     * Prints the rates of the intervals since the previous report, and the summary since the start of the report.
+     */
+    private class Report {
+        private final McuFleetSimulator simulator;
+        private final Timer ingressLatency = meterRegistry.get("mcu.ingress.latency").timer();
+        private final Histogram controlRoundTrip = new Histogram(3);
+        private final Snapshot start;
+        private Snapshot previous;
+        private Histogram controlInterval;
+        private long maxLagMs;
+
+        private Report(McuFleetSimulator simulator) {
+            this.simulator = simulator;
+            this.start = new Snapshot();
+            this.previous = start;
+            simulator.getControlRoundTripInterval(null);
+            intervalMaxLagMs.set(0);
+        }
+
+        private void printInterval() {
+            var current = new Snapshot();
+            controlInterval = simulator.getControlRoundTripInterval(controlInterval);
+            controlRoundTrip.add(controlInterval);
+            var lagMs = intervalMaxLagMs.getAndSet(0);
+            maxLagMs = Math.max(maxLagMs, lagMs);
+            System.out.printf("[%5.0f s] %s | pending %d, max lag %d ms | control rtt %s%n",
+                    (current.nanos - start.nanos) / 1e9, current.rates(previous),
+                    ingressDispatcher.getPendingMessages(), lagMs, percentiles(controlInterval));
+            previous = current;
+        }
+
+        private void printSummary(int seconds, long drainMs, int pending) {
+            var end = new Snapshot();
+            System.out.printf("%nSummary of the %d s measurement%n", seconds);
+            System.out.printf("  rates:            %s%n", end.rates(start));
+            System.out.printf("  ingress latency:  %s (MQTT receipt to commit)%n", end.latencyPercentiles(start));
+            System.out.printf("  ingress lag:      max %d ms, drained in %d ms, %d messages left%n", maxLagMs, drainMs, pending);
+            System.out.printf("  ingress overload: %.0f coalesced, %.0f shed, %d publish failures%n",
+                    end.coalesced - start.coalesced, end.shed - start.shed, end.publishFailures - start.publishFailures);
+            System.out.printf("  control:          %d acknowledged, %d received, %d failed, rtt %s%n",
+                    controlsAcknowledged.sum(), simulator.getControlsReceived(), controlFailures.sum(), percentiles(controlRoundTrip));
+            System.out.printf("  control publish:  %.0f retries, %.0f failures%n",
+                    end.publishRetries - start.publishRetries, end.serverPublishFailures - start.serverPublishFailures);
+            System.out.printf("  outbox:           %.0f reconnects, %.0f replayed, %.0f expired, %.0f left%n",
+                    end.reconnects - start.reconnects, end.outboxReplayed - start.outboxReplayed,
+                    end.outboxExpired - start.outboxExpired, meterRegistry.get("mqtt.outbox.depth").gauge().value());
+            System.out.printf("  liveness:         %.0f silent, %.0f inactivated, %.0f reactivated, %.0f tracked%n",
+                    end.silent - start.silent, end.unitsInactivated - start.unitsInactivated,
+                    end.unitsReactivated - start.unitsReactivated, meterRegistry.get("mcu.liveness.tracked").gauge().value());
+        }
+
+        private String percentiles(Histogram histogram) {
+            if (histogram.getTotalCount() == 0) {
+                return "-";
+            }
+            return String.format("p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getMaxValue() / 1e6);
+        }
+
+        private class Snapshot {
+            private final long nanos = System.nanoTime();
+            private final long status = simulator.getStatusSent();
+            private final long error = simulator.getErrorSent();
+            private final long inactive = simulator.getInactiveSent();
+            private final long publishFailures = simulator.getPublishFailures();
+            private final long controls = simulator.getControlsReceived();
+            private final long committed = ingressLatency.count();
+            private final double coalesced = ingressMessages("coalesced");
+            private final double shed = ingressMessages("shed");
+            private final double publishRetries = meterRegistry.get("mqtt.messages.publish.retries").counter().count();
+            private final double serverPublishFailures = meterRegistry.get("mqtt.messages.publish.failures").counter().count();
+            private final double reconnects = meterRegistry.get("mqtt.reconnects").counter().count();
+            private final double outboxReplayed = meterRegistry.get("mqtt.outbox.replayed").counter().count();
+            private final double outboxExpired = meterRegistry.get("mqtt.outbox.expired").counter().count();
+            private final double silent = meterRegistry.get("mcu.liveness.expired").counter().count();
+            private final double unitsInactivated = unitEvents("inactivated");
+            private final double unitsReactivated = unitEvents("reactivated");
+            private final CountAtBucket[] latencyBuckets = ingressLatency.takeSnapshot().histogramCounts();
+
+            private double unitEvents(String event) {
+                return meterRegistry.find("mcu.units").tag("event", event).counters().stream()
+                        .mapToDouble(Counter::count)
+                        .sum();
+            }
+
+            private double ingressMessages(String result) {
+                return meterRegistry.find("mcu.ingress.messages").tag("result", result).counters().stream()
+                        .mapToDouble(Counter::count)
+                        .sum();
+            }
+
+            private String rates(Snapshot from) {
+                var seconds = (nanos - from.nanos) / 1e9;
+                return String.format("sent %.0f/s (status %.0f, error %.0f, inactive %.0f), committed %.0f/s, controls %.1f/s",
+                        (status + error + inactive - from.status - from.error - from.inactive) / seconds,
+                        (status - from.status) / seconds,
+                        (error - from.error) / seconds,
+                        (inactive - from.inactive) / seconds,
+                        (committed - from.committed) / seconds,
+                        (controls - from.controls) / seconds);
+            }
+
+            /**
+             * Approximated from the cumulative buckets of the latency histogram, by the upper bound of the bucket.
+             */
+            private String latencyPercentiles(Snapshot from) {
+                var count = committed - from.committed;
+                if (count == 0) {
+                    return "-";
+                }
+                return String.format("p50 <= %s, p99 <= %s", bucketOf(from, 0.5 * count), bucketOf(from, 0.99 * count));
+            }
+
+            private String bucketOf(Snapshot from, double rank) {
+                for (int i = 0; i < latencyBuckets.length; i++) {
+                    if (latencyBuckets[i].count() - from.latencyBuckets[i].count() >= rank) {
+                        return String.format("%.1f ms", latencyBuckets[i].bucket(TimeUnit.MILLISECONDS));
+                    }
+                }
+                return "max bucket";
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single control request for the modules of 1 to 5000 units, see {@link McuService#sendControlMessages(List)}.
+ * The units are either found in the McuRegistry or evicted before every request, so they are read from the database.
+ * Needs the started application, run it with QuarkusBenchmarkRun (H2 in MySQL mode and a stubbed MessageService).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ControlFanOutBenchmark {
+
+    private static final String PROJECT = "tlvlp_iot_fan_out";
+    private static final int MODULES = 2;
+
+    @Param({"1", "10", "100", "1000", "5000"})
+    public int units;
+
+    @Param({"hit", "miss"})
+    public String registryLookup;
+
+    private McuService mcuService;
+    private McuRegistry registry;
+    private ManagedContext requestContext;
+    private List<Module> moduleControls;
+
+    @Setup
+    public void setup() {
+        var container = Arc.container();
+        if (container == null) {
+            throw new IllegalStateException("The fan-out benchmark needs the application, run it with QuarkusBenchmarkRun.");
+        }
+        mcuService = container.instance(McuService.class).get();
+        registry = container.instance(McuRegistry.class).get();
+        requestContext = container.requestContext();
+
+        moduleControls = new ArrayList<>(units * MODULES);
+        for (int i = 0; i < units; i++) {
+            var unitName = "fan_out_unit_" + i;
+            mcuService.handleIngressMessage(new Message()
+                    .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                    .payload(Buffer.buffer(statusPayload(unitName))))
+                    .await().indefinitely();
+            var unit = registry.findUnit(PROJECT, unitName).orElseThrow();
+            for (Module module : registry.findActiveModules(unit.getId()).orElseThrow()) {
+                moduleControls.add(new Module()
+                        .setId(module.getId())
+                        .setUnitId(module.getUnitId())
+                        .setModule(module.getModule())
+                        .setName(module.getName())
+                        .setValue(1.0)
+                        .setActive(true));
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void evictUnits() {
+        if ("miss".equals(registryLookup)) {
+            moduleControls.stream()
+                    .map(Module::getUnitId)
+                    .distinct()
+                    .forEach(registry::evictUnit);
+        }
+    }
+
+    private static byte[] statusPayload(String unitName) {
+        var payload = new StringBuilder(String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"%s\"},\"modules\":[", PROJECT, unitName));
+        for (int i = 0; i < MODULES; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(String.format("{\"module\":\"relay\",\"name\":\"relay_%d\",\"value\":0.0}", i));
+        }
+        return payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs in a request context like the REST endpoint.
+     */
+    @Benchmark
+    public void sendControlMessages() {
+        requestContext.activate();
+        try {
+            mcuService.sendControlMessages(moduleControls).await().indefinitely();
+        } finally {
+            requestContext.terminate();
+        }
+    }
+}
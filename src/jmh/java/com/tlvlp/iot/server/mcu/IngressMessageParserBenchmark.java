@@ -0,0 +1,79 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parsing of a status payload with the streaming {@link IngressMessageParser}
+ * compared to the earlier JsonObject tree + per module String re-encoding and decoding.
+ * Run with -prof gc to see the allocation per message (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IngressMessageParserBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int moduleCount;
+
+    private final IngressMessageParser parser = new IngressMessageParser();
+    private Message message;
+
+    @Setup
+    public void setup() {
+        var modules = new JsonArray(IntStream.range(0, moduleCount)
+                .mapToObj(i -> new JsonObject()
+                        .put("module", "relay")
+                        .put("name", "growlight_" + i)
+                        .put("value", i % 2))
+                .collect(Collectors.toList()));
+        var payload = new JsonObject()
+                .put("id", new JsonObject()
+                        .put("project", "tlvlp_iot_benchmark")
+                        .put("unitName", "garden_benchmark"))
+                .put("modules", modules);
+        message = new Message()
+                .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                .payload(Buffer.buffer(payload.encode()));
+    }
+
+    @Benchmark
+    public IngressMessage streamingParser() {
+        return parser.parse(message);
+    }
+
+    @Benchmark
+    public List<ModuleDTO> jsonObjectTree() {
+        var body = message.payload().toJsonObject();
+        var id = body.getJsonObject("id");
+        id.getString("project");
+        id.getString("unitName");
+        return body.getJsonArray("modules")
+                .stream()
+                .map(moduleDtoObj -> Json.decodeValue(String.valueOf(moduleDtoObj), ModuleDTO.class))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,180 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ingress and control paths of the {@link McuService} with the database access of the application.
+ * Needs the started application, run it with QuarkusBenchmarkRun (H2 in MySQL mode and a stubbed MessageService).
+ * Throughput and the latency percentiles (SampleTime) are reported, add the gc profiler for the allocation rate.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class McuServiceBenchmark {
+
+    private static final String PROJECT = "tlvlp_iot_benchmark";
+    private static final int UNITS = 100;
+
+    @State(Scope.Benchmark)
+    public static class Service {
+        McuService mcuService;
+        McuRegistry registry;
+        ManagedContext requestContext;
+
+        @Setup
+        public void setup() {
+            var container = Arc.container();
+            if (container == null) {
+                throw new IllegalStateException("The McuService benchmarks need the application, run them with QuarkusBenchmarkRun.");
+            }
+            mcuService = container.instance(McuService.class).get();
+            registry = container.instance(McuRegistry.class).get();
+            requestContext = container.requestContext();
+        }
+    }
+
+    /**
+     * Status messages of the benchmark units, the module values alternate between two messages of a unit.
+     */
+    @State(Scope.Thread)
+    public static class StatusMessages {
+        @Param({"1", "10", "50"})
+        public int modules;
+
+        private byte[][] payloads;
+        private int next;
+
+        @Setup
+        public void setup() {
+            payloads = new byte[UNITS * 2][];
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = statusPayload("unit_" + (i % UNITS), modules, i / UNITS);
+            }
+        }
+
+        Message next() {
+            var payload = payloads[next++ % payloads.length];
+            return new Message()
+                    .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                    .payload(Buffer.buffer(payload));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ErrorAndInactiveMessages {
+        private byte[][] errorPayloads;
+        private byte[][] inactivePayloads;
+        private int next;
+
+        @Setup
+        public void setup() {
+            errorPayloads = new byte[UNITS][];
+            inactivePayloads = new byte[UNITS][];
+            for (int i = 0; i < UNITS; i++) {
+                var id = String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"unit_%d\"}", PROJECT, i);
+                errorPayloads[i] = (id + ",\"error\":\"Sensor read failed: timeout\"}").getBytes(StandardCharsets.UTF_8);
+                inactivePayloads[i] = (id + "}").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        Message nextError() {
+            return new Message()
+                    .topic(GlobalTopics.GLOBAL_ERROR.topic())
+                    .payload(Buffer.buffer(errorPayloads[next++ % UNITS]));
+        }
+
+        Message nextInactive() {
+            return new Message()
+                    .topic(GlobalTopics.GLOBAL_INACTIVE.topic())
+                    .payload(Buffer.buffer(inactivePayloads[next++ % UNITS]));
+        }
+    }
+
+    /**
+     * Control messages for all the modules of a unit, which is registered by a status message in the setup.
+     */
+    @State(Scope.Thread)
+    public static class ControlMessages {
+        @Param({"1", "10", "50"})
+        public int modules;
+
+        private List<Module> moduleControls;
+
+        @Setup
+        public void setup(Service service) {
+            var unitName = "control_unit_" + modules;
+            service.mcuService.handleIngressMessage(new Message()
+                    .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                    .payload(Buffer.buffer(statusPayload(unitName, modules, 0))))
+                    .await().indefinitely();
+            var unit = service.registry.findUnit(PROJECT, unitName).orElseThrow();
+            moduleControls = new ArrayList<>();
+            for (Module module : service.registry.findActiveModules(unit.getId()).orElseThrow()) {
+                moduleControls.add(new Module()
+                        .setId(module.getId())
+                        .setUnitId(module.getUnitId())
+                        .setModule(module.getModule())
+                        .setName(module.getName())
+                        .setValue(1.0)
+                        .setActive(true));
+            }
+        }
+    }
+
+    private static byte[] statusPayload(String unitName, int modules, int value) {
+        var payload = new StringBuilder(String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"%s\"},\"modules\":[", PROJECT, unitName));
+        for (int i = 0; i < modules; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(String.format("{\"module\":\"relay\",\"name\":\"relay_%d\",\"value\":%d.0}", i, value));
+        }
+        return payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Uni<Void> statusMessage(Service service, StatusMessages messages) {
+        return service.mcuService.handleIngressMessage(messages.next());
+    }
+
+    @Benchmark
+    public Uni<Void> errorMessage(Service service, ErrorAndInactiveMessages messages) {
+        return service.mcuService.handleIngressMessage(messages.nextError());
+    }
+
+    @Benchmark
+    public Uni<Void> inactiveMessage(Service service, ErrorAndInactiveMessages messages) {
+        return service.mcuService.handleIngressMessage(messages.nextInactive());
+    }
+
+    /**
+     * Runs in a request context like the REST endpoint.
+     */
+    @Benchmark
+    public Uni<List<UnitControlResult>> sendControlMessages(Service service, ControlMessages controls) {
+        service.requestContext.activate();
+        try {
+            return service.mcuService.sendControlMessages(controls.moduleControls);
+        } finally {
+            service.requestContext.terminate();
+        }
+    }
+}
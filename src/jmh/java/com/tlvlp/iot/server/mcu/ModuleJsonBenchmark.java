@@ -0,0 +1,95 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tlvlp.iot.server.controllers.ObjectMapperCustomization;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON (de)serialization of the {@link Module} and {@link ModuleDTO} lists of the control path:
+ * the scheduled control events are read as Modules and the control messages are written as ModuleDTOs.
+ * The application ObjectMapper is configured with {@link ObjectMapperCustomization}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ModuleJsonBenchmark {
+
+    private static final TypeReference<List<Module>> MODULE_LIST = new TypeReference<>() {};
+    private static final TypeReference<List<ModuleDTO>> MODULE_DTO_LIST = new TypeReference<>() {};
+
+    @Param({"1", "10", "50"})
+    public int modules;
+
+    private ObjectMapper jsonMapper;
+    private List<Module> moduleList;
+    private List<ModuleDTO> moduleDTOList;
+    private byte[] moduleListJson;
+    private byte[] moduleDTOListJson;
+
+    @Setup
+    public void setup() throws IOException {
+        jsonMapper = new ObjectMapper();
+        new ObjectMapperCustomization().customize(jsonMapper);
+        moduleList = new ArrayList<>();
+        moduleDTOList = new ArrayList<>();
+        for (int i = 0; i < modules; i++) {
+            moduleList.add(new Module()
+                    .setId(1000L + i)
+                    .setUnitId(1L)
+                    .setModule("relay")
+                    .setName("relay_" + i)
+                    .setValue(i % 2 == 0 ? 1.0 : 0.0)
+                    .setActive(true));
+            moduleDTOList.add(new ModuleDTO()
+                    .setModule("relay")
+                    .setName("relay_" + i)
+                    .setValue(i % 2 == 0 ? 1.0 : 0.0));
+        }
+        moduleListJson = jsonMapper.writeValueAsBytes(moduleList);
+        moduleDTOListJson = jsonMapper.writeValueAsBytes(moduleDTOList);
+    }
+
+    @Benchmark
+    public List<Module> readModules() throws IOException {
+        return jsonMapper.readValue(moduleListJson, MODULE_LIST);
+    }
+
+    @Benchmark
+    public byte[] writeModules() throws IOException {
+        return jsonMapper.writeValueAsBytes(moduleList);
+    }
+
+    @Benchmark
+    public List<ModuleDTO> readModuleDTOs() throws IOException {
+        return jsonMapper.readValue(moduleDTOListJson, MODULE_DTO_LIST);
+    }
+
+    /**
+     * The control message body, encoded with the Vert.x mapper as in McuService.sendControlMessages.
+     */
+    @Benchmark
+    public Buffer encodeControlMessage() {
+        return Json.encodeToBuffer(moduleDTOList);
+    }
+}
@@ -0,0 +1,118 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import com.tlvlp.iot.server.persistence.ModuleRepository;
+import com.tlvlp.iot.server.persistence.UnitRepository;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.quarkus.panache.common.Sort;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second of the unit read endpoints (/mcu/all and /mcu/modules) without and with the {@link UnitReadCache},
+ * without the HTTP layer: the database read and the serialization of every request against the cached body.
+ * Needs the started application, run it with QuarkusBenchmarkRun -Dbenchmark.include=UnitReadCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UnitReadCacheBenchmark {
+
+    private static final String PROJECT = "tlvlp_iot_read_benchmark";
+    private static final int MODULES = 10;
+
+    @Param({"100", "1000"})
+    public int units;
+
+    private McuService mcuService;
+    private UnitRepository unitRepository;
+    private ModuleRepository moduleRepository;
+    private ObjectMapper jsonMapper;
+    private ManagedContext requestContext;
+    private Long unitId;
+
+    @Setup
+    public void setup() {
+        var container = Arc.container();
+        if (container == null) {
+            throw new IllegalStateException("The UnitReadCache benchmarks need the application, run them with QuarkusBenchmarkRun.");
+        }
+        mcuService = container.instance(McuService.class).get();
+        unitRepository = container.instance(UnitRepository.class).get();
+        moduleRepository = container.instance(ModuleRepository.class).get();
+        jsonMapper = container.instance(ObjectMapper.class).get();
+        requestContext = container.requestContext();
+        for (int i = 0; i < units; i++) {
+            mcuService.handleIngressMessage(new Message()
+                    .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                    .payload(Buffer.buffer(statusPayload("unit_" + i))))
+                    .await().indefinitely();
+        }
+        unitId = container.instance(McuRegistry.class).get().findUnit(PROJECT, "unit_0").orElseThrow().getId();
+    }
+
+    private static byte[] statusPayload(String unitName) {
+        var payload = new StringBuilder(String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"%s\"},\"modules\":[", PROJECT, unitName));
+        for (int i = 0; i < MODULES; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(String.format("{\"module\":\"relay\",\"name\":\"relay_%d\",\"value\":1.0}", i));
+        }
+        return payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] allUnitsUncached() throws Exception {
+        requestContext.activate();
+        try {
+            return jsonMapper.writeValueAsBytes(unitRepository.listAll(Sort.by("id")));
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    @Benchmark
+    public byte[] allUnitsCached() {
+        requestContext.activate();
+        try {
+            return mcuService.getAllUnits().getBody();
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    @Benchmark
+    public byte[] modulesUncached() throws Exception {
+        requestContext.activate();
+        try {
+            return jsonMapper.writeValueAsBytes(moduleRepository.findAllByUnitId(unitId));
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    @Benchmark
+    public byte[] modulesCached() {
+        requestContext.activate();
+        try {
+            return mcuService.getModulesByUnitId(unitId).getBody();
+        } finally {
+            requestContext.terminate();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import com.tlvlp.iot.server.persistence.ModuleRepository;
+import com.tlvlp.iot.server.persistence.UnitRepository;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The units of a project with their modules: a modules query per unit, like the clients calling /mcu/modules
+ * for every unit, against the single join query of /mcu/units.
+ * Needs the started application, run it with QuarkusBenchmarkRun -Dbenchmark.include=UnitsWithModules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UnitsWithModulesBenchmark {
+
+    private static final String PROJECT = "tlvlp_iot_fleet_benchmark";
+    private static final int MODULES = 10;
+
+    @Param({"10", "100", "1000"})
+    public int units;
+
+    private UnitRepository unitRepository;
+    private ModuleRepository moduleRepository;
+    private ManagedContext requestContext;
+
+    @Setup
+    public void setup() {
+        var container = Arc.container();
+        if (container == null) {
+            throw new IllegalStateException("The UnitsWithModules benchmarks need the application, run them with QuarkusBenchmarkRun.");
+        }
+        var mcuService = container.instance(McuService.class).get();
+        unitRepository = container.instance(UnitRepository.class).get();
+        moduleRepository = container.instance(ModuleRepository.class).get();
+        requestContext = container.requestContext();
+        for (int i = 0; i < units; i++) {
+            mcuService.handleIngressMessage(new Message()
+                    .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                    .payload(Buffer.buffer(statusPayload(units + "_unit_" + i))))
+                    .await().indefinitely();
+        }
+    }
+
+    private String project() {
+        return PROJECT + "_" + units;
+    }
+
+    private byte[] statusPayload(String unitName) {
+        var payload = new StringBuilder(String.format("{\"id\":{\"project\":\"%s\",\"unitName\":\"%s\"},\"modules\":[", project(), unitName));
+        for (int i = 0; i < MODULES; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(String.format("{\"module\":\"relay\",\"name\":\"relay_%d\",\"value\":1.0}", i));
+        }
+        return payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<UnitWithModules> queryPerUnit() {
+        requestContext.activate();
+        try {
+            var unitsWithModules = new ArrayList<UnitWithModules>();
+            for (Unit unit : unitRepository.findAllByProject(project())) {
+                unitsWithModules.add(new UnitWithModules(unit, moduleRepository.findAllByUnitId(unit.getId())));
+            }
+            return unitsWithModules;
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    @Benchmark
+    public List<UnitWithModules> joinQuery() {
+        requestContext.activate();
+        try {
+            return unitRepository.findAllWithModulesByProject(project());
+        } finally {
+            requestContext.terminate();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.tlvlp.iot.server.persistence;
+
+import com.tlvlp.iot.server.mcu.UnitLog;
+import io.quarkus.arc.Arc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts a burst of 10k unit logs in a single transaction:
+ * <ul>
+ *     <li>hibernatePooled: the persist path of the UnitLogWriter, {@link UnitLogRepository#persistAll(List)}.
+ *     The ids are allocated from id_sequences by the pooled optimizer, the inserts are sent in JDBC batches
+ *     of quarkus.hibernate-orm.jdbc.statement-batch-size.</li>
+ *     <li>jdbcIdentityBaseline: what Hibernate does with IDENTITY ids, which it can not batch:
+ *     one insert and a generated key read per row, on a copy of the table with an auto increment id.</li>
+ * </ul>
+ * Needs the started application, run it with QuarkusBenchmarkRun -Dbenchmark.include=UnitLogInsert
+ * (H2 in MySQL mode, without a network round trip per statement, so the difference is smaller than on MySQL).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UnitLogInsertBenchmark {
+
+    private static final int BURST_SIZE = 10_000;
+
+    private UnitLogRepository unitLogRepository;
+    private DataSource dataSource;
+
+    @Setup
+    public void setup() throws SQLException {
+        var container = Arc.container();
+        if (container == null) {
+            throw new IllegalStateException("The UnitLogInsert benchmarks need the application, run them with QuarkusBenchmarkRun.");
+        }
+        unitLogRepository = container.instance(UnitLogRepository.class).get();
+        dataSource = container.instance(DataSource.class).get();
+        try (var connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS tlvlp_iot.unit_logs_identity");
+            statement.execute("CREATE TABLE tlvlp_iot.unit_logs_identity (" +
+                    "id bigint NOT NULL AUTO_INCREMENT, unit_id bigint NOT NULL, log_entry varchar(255) NOT NULL, " +
+                    "time_utc datetime NOT NULL, type varchar(50) NOT NULL, PRIMARY KEY (id))");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void hibernatePooled() {
+        var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
+        var unitLogs = new ArrayList<UnitLog>(BURST_SIZE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            unitLogs.add(new UnitLog()
+                    .setUnitId(1L + i % 100)
+                    .setTimeUtc(timeUtc)
+                    .setType(UnitLog.Type.STATUS_CHANGE)
+                    .setLogEntry("Module was updated: " + i));
+        }
+        unitLogRepository.persistAll(unitLogs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void jdbcIdentityBaseline() throws SQLException {
+        try (var connection = dataSource.getConnection();
+             var insert = connection.prepareStatement("INSERT INTO tlvlp_iot.unit_logs_identity " +
+                     "(unit_id, log_entry, time_utc, type) VALUES (?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < BURST_SIZE; i++) {
+                insert.setLong(1, 1L + i % 100);
+                insert.setString(2, "Module was updated: " + i);
+                insert.setTimestamp(3, Timestamp.from(Instant.now()));
+                insert.setString(4, "STATUS_CHANGE");
+                insert.executeUpdate();
+                try (var keys = insert.getGeneratedKeys()) {
+                    keys.next();
+                }
+            }
+            connection.commit();
+        }
+    }
+}
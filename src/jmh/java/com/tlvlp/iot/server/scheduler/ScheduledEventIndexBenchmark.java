@@ -0,0 +1,97 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.TriggerBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+
+/**
+ * The scheduled events of a unit out of 50k schedules, see {@link SchedulerService#getScheduledEventsForUnit(Long)}.
+ * The index lookup is compared to a scan that parses the message of every job, like a listing from the job store
+ * would have to, without the cost of loading the jobs from the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScheduledEventIndexBenchmark {
+
+    @Param({"50000"})
+    public int schedules;
+
+    @Param({"100", "10000"})
+    public int units;
+
+    private ObjectMapper jsonMapper;
+    private ScheduledEventIndex index;
+    private List<JobDetail> jobs;
+
+    @Setup
+    public void setup() {
+        jsonMapper = new ObjectMapper();
+        index = new ScheduledEventIndex(null, null, jsonMapper, new SimpleMeterRegistry(), 0L);
+        jobs = new ArrayList<>(schedules);
+        for (int i = 0; i < schedules; i++) {
+            var job = JobBuilder.newJob(EventJob.class)
+                    .withIdentity("schedule_" + i, "benchmark")
+                    .usingJobData("eventAddress", "unit_control")
+                    .usingJobData("eventMessage", String.format(
+                            "[{\"id\":%d,\"unitId\":%d,\"module\":\"relay\",\"name\":\"relay_1\",\"value\":1.0,\"active\":true}]",
+                            i, i % units + 1))
+                    .build();
+            var trigger = TriggerBuilder.newTrigger()
+                    .withIdentity("schedule_" + i, "benchmark")
+                    .withSchedule(cronSchedule("0 0 7 * * ?"))
+                    .build();
+            jobs.add(job);
+            index.put(job.getKey(), index.toScheduledEvent(job, trigger, false));
+        }
+    }
+
+    private long randomUnitId() {
+        return ThreadLocalRandom.current().nextInt(units) + 1;
+    }
+
+    @Benchmark
+    public List<ScheduledEvent> indexLookup() {
+        return index.findAllByUnitId(randomUnitId());
+    }
+
+    @Benchmark
+    public List<JobDetail> scanAllJobs() throws IOException {
+        var unitId = randomUnitId();
+        var unitJobs = new ArrayList<JobDetail>();
+        for (JobDetail job : jobs) {
+            for (JsonNode module : jsonMapper.readTree(job.getJobDataMap().getString("eventMessage"))) {
+                if (module.path("unitId").asLong() == unitId) {
+                    unitJobs.add(job);
+                    break;
+                }
+            }
+        }
+        return unitJobs;
+    }
+}
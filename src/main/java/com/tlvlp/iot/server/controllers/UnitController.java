@@ -1,25 +1,65 @@
 package com.tlvlp.iot.server.controllers;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.tlvlp.iot.server.history.HistoryPoint;
+import com.tlvlp.iot.server.history.ModuleHistoryService;
+import com.tlvlp.iot.server.history.Resolution;
+import com.tlvlp.iot.server.scheduler.InvalidScheduledEventException;
+import com.tlvlp.iot.server.scheduler.ScheduledControlDTO;
+import com.tlvlp.iot.server.scheduler.ScheduledControlDispatcher;
+import com.tlvlp.iot.server.scheduler.ScheduledEvent;
+import com.tlvlp.iot.server.scheduler.ScheduledEventExistsException;
 import com.tlvlp.iot.server.scheduler.SchedulerService;
+import com.tlvlp.iot.server.mcu.BroadcastControlResult;
 import com.tlvlp.iot.server.mcu.Module;
+import com.tlvlp.iot.server.mcu.ModuleDTO;
 import com.tlvlp.iot.server.mcu.Unit;
+import com.tlvlp.iot.server.mcu.UnitChangeStream;
+import com.tlvlp.iot.server.mcu.UnitControlResult;
 import com.tlvlp.iot.server.mcu.UnitLog;
+import com.tlvlp.iot.server.mcu.UnitLogPage;
+import com.tlvlp.iot.server.mcu.UnitReadCache;
+import com.tlvlp.iot.server.mcu.UnitWithModules;
 import com.tlvlp.iot.server.mcu.McuService;
+import com.tlvlp.iot.server.persistence.EntityStreamer;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import lombok.extern.flogger.Flogger;
+import org.quartz.CronExpression;
 
+import javax.validation.Valid;
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 
 @Flogger
@@ -28,60 +68,372 @@ import java.util.List;
 @Produces(MediaType.APPLICATION_JSON)
 public class UnitController {
 
+    /**
+     * Newline delimited JSON, the rows are written one by one as they are read from the database.
+     * It is chosen only if the client asks for it in the Accept header.
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final String APPLICATION_NDJSON_LOW_QUALITY = APPLICATION_NDJSON + ";qs=0.5";
+
     private final McuService mcuService;
+    private final UnitChangeStream unitChangeStream;
     private final SchedulerService schedulerService;
+    private final ModuleHistoryService moduleHistoryService;
+    private final ObjectMapper jsonMapper;
 
-    public UnitController(McuService mcuService, SchedulerService schedulerService) {
+    public UnitController(McuService mcuService,
+                          UnitChangeStream unitChangeStream,
+                          SchedulerService schedulerService,
+                          ModuleHistoryService moduleHistoryService,
+                          ObjectMapper jsonMapper) {
         this.mcuService = mcuService;
+        this.unitChangeStream = unitChangeStream;
         this.schedulerService = schedulerService;
+        this.moduleHistoryService = moduleHistoryService;
+        this.jsonMapper = jsonMapper;
+    }
+
+    /**
+     * The unit read endpoints are served from the {@link UnitReadCache} with an ETag,
+     * a matching If-None-Match is answered with 304 Not Modified.
+     */
+    @GET
+    @Path("/all")
+    public Response getAllUnits(@Context Request request) {
+        return cachedResponse(request, mcuService.getAllUnits());
     }
 
     @GET
     @Path("/all")
-    public Multi<Unit> getAllUnits() {
-        return mcuService.getAllUnits();
+    @Produces(APPLICATION_NDJSON_LOW_QUALITY)
+    public StreamingOutput streamAllUnits() {
+        return ndjson(Unit.class, mcuService::streamAllUnits);
+    }
+
+    @GET
+    public Response getUnitById(@Context Request request,
+                                @QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
+        return cachedResponse(request, mcuService.getUnitById(unitId));
     }
 
+    /**
+     * The units of the project with all their modules, in one response instead of a /modules request per unit.
+     */
     @GET
-    public Uni<Unit> getUnitById(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
-        return mcuService.getUnitById(unitId);
+    @Path("/units")
+    public Uni<List<UnitWithModules>> getUnitsWithModulesByProject(@QueryParam("project") @NotBlank String project) {
+        return mcuService.getUnitsWithModulesByProject(project);
+    }
+
+    /**
+     * The units with all their modules by unit ids, they are sent in the body as there can be too many for a query string.
+     * Unknown ids are left out of the response.
+     */
+    @POST
+    @Path("/units")
+    public Uni<List<UnitWithModules>> getUnitsWithModulesByIds(@NotEmpty @Size(max = 1000) List<@NotNull @Min(1L) Long> unitIds) {
+        return mcuService.getUnitsWithModulesByIds(unitIds);
+    }
+
+    /**
+     * Every unit with its active modules, written as they are read from the database.
+     */
+    @GET
+    @Path("/fleet")
+    public StreamingOutput getFleetSnapshot() {
+        return jsonArray(UnitWithModules.class, mcuService::streamFleetSnapshot);
     }
 
+    @GET
+    @Path("/fleet")
+    @Produces(APPLICATION_NDJSON_LOW_QUALITY)
+    public StreamingOutput streamFleetSnapshot() {
+        return ndjson(UnitWithModules.class, mcuService::streamFleetSnapshot);
+    }
+
+    /**
+     * @param cursor the nextCursor of the previous page, or empty for the first page.
+     * @param from   ISO-8601 start of the time range (inclusive).
+     * @param to     ISO-8601 end of the time range (exclusive).
+     * @param types  the log types to return, all of them if empty.
+     */
+    @GET
+    @Path("/logs")
+    public Uni<UnitLogPage> getUnitLogsByUnitId(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId,
+                                                @QueryParam("cursor") String cursor,
+                                                @QueryParam("from") String from,
+                                                @QueryParam("to") String to,
+                                                @QueryParam("type") List<UnitLog.Type> types,
+                                                @QueryParam("limit") @DefaultValue("100") @Min(1L) @Max(1000L) Integer limit) {
+        return mcuService.getUnitLogsByUnitId(unitId,
+                cursor != null ? parseCursor(cursor) : null,
+                from != null ? parseDateTime(from) : null,
+                to != null ? parseDateTime(to) : null,
+                types,
+                limit);
+    }
+
+    /**
+     * Streams all the matching logs without pagination.
+     */
     @GET
     @Path("/logs")
-    public Multi<UnitLog> getUnitLogsByUnitId(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
-        return mcuService.getUnitLogsByUnitId(unitId);
+    @Produces(APPLICATION_NDJSON_LOW_QUALITY)
+    public StreamingOutput streamUnitLogsByUnitId(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId,
+                                                  @QueryParam("from") String from,
+                                                  @QueryParam("to") String to,
+                                                  @QueryParam("type") List<UnitLog.Type> types) {
+        var fromDateTime = from != null ? parseDateTime(from) : null;
+        var toDateTime = to != null ? parseDateTime(to) : null;
+        return ndjson(UnitLog.class, handler ->
+                mcuService.streamUnitLogsByUnitId(unitId, fromDateTime, toDateTime, types, handler));
     }
 
     @GET
     @Path("/modules")
-    public Multi<Module> getModulesByUnitId(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
-        return mcuService.getModulesByUnitId(unitId);
+    public Response getModulesByUnitId(@Context Request request,
+                                       @QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
+        return cachedResponse(request, mcuService.getModulesByUnitId(unitId));
+    }
+
+    @GET
+    @Path("/modules")
+    @Produces(APPLICATION_NDJSON_LOW_QUALITY)
+    public StreamingOutput streamModulesByUnitId(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
+        return ndjson(Module.class, handler -> mcuService.streamModulesByUnitId(unitId, handler));
+    }
+
+    /**
+     * Pushes the unit and module changes as Server-Sent Events (unit, module and error) until the client disconnects.
+     * A slow client gets the latest state of each module and unit instead of every change, see {@link UnitChangeStream}.
+     *
+     * @param project only the changes of the units of this project, all of them if empty.
+     * @param unitId  only the changes of this unit, all of them if empty.
+     */
+    @GET
+    @Path("/changes")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamChanges(@Context SseEventSink sink,
+                              @Context Sse sse,
+                              @QueryParam("project") String project,
+                              @QueryParam("unit_id") @Min(1L) Long unitId) {
+        unitChangeStream.subscribe(sink, sse, project, unitId);
+    }
+
+    /**
+     * @param from       ISO-8601 start of the range (inclusive), defaults to 24 hours before the end.
+     * @param to         ISO-8601 end of the range (exclusive), defaults to now.
+     * @param resolution raw, 1m, 1h or 1d.
+     * @return 400 beyond history.max-points points.
+     */
+    @GET
+    @Path("/modules/history")
+    public Multi<HistoryPoint> getModuleHistory(@QueryParam("module_id") @NotNull @Min(1L) Long moduleId,
+                                                @QueryParam("from") String from,
+                                                @QueryParam("to") String to,
+                                                @QueryParam("resolution") @DefaultValue("raw") Resolution resolution) {
+        var end = to != null ? parseDateTime(to) : ZonedDateTime.now(ZoneOffset.UTC);
+        var start = from != null ? parseDateTime(from) : end.minusDays(1);
+        List<HistoryPoint> history;
+        try {
+            history = moduleHistoryService.getHistory(moduleId, start, end, resolution);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return Multi.createFrom().iterable(history)
+                .onFailure().invoke(e -> log.atSevere().log("Unable to get module history by module id(%s): %s", moduleId, e.getMessage()));
     }
 
+    /**
+     * Responds after every control message is acknowledged by the broker or failed after its retries.
+     */
     @POST
     @Path("/control")
-    public Uni<Void> sendControlMessages(@NotEmpty List<Module> moduleControls) {
+    public Uni<List<UnitControlResult>> sendControlMessages(@NotEmpty List<Module> moduleControls) {
         return mcuService.sendControlMessages(moduleControls);
     }
 
-    public void addScheduledEvent(String schedulerGroup, String schedulerName, String cron, String eventAddress, String eventMessage) {
-        //TODO
+    /**
+     * Sends the module controls to every unit of the project with a single message,
+     * responds after it is acknowledged by the broker or failed after its retries.
+     */
+    @POST
+    @Path("/control/broadcast")
+    public Uni<BroadcastControlResult> sendBroadcastControl(@QueryParam("project") @NotBlank String project,
+                                                            @NotEmpty List<@Valid ModuleDTO> moduleControls) {
+        return mcuService.sendBroadcastControl(project, moduleControls);
+    }
+
+    @GET
+    @Path("/schedules/all")
+    public Multi<ScheduledEvent> getAllScheduledEvents() {
+        return Multi.createFrom().iterable(schedulerService.getAllScheduledEvents());
+    }
+
+    @GET
+    @Path("/schedules")
+    public Multi<ScheduledEvent> getScheduledEventsForUnit(@QueryParam("unit_id") @NotNull @Min(1L) Long unitId) {
+        return Multi.createFrom().iterable(schedulerService.getScheduledEventsForUnit(unitId));
+    }
+
+    /**
+     * Schedules the module controls to be sent like the ones of {@link #sendControlMessages(List)}.
+     */
+    @POST
+    @Path("/schedules")
+    public Uni<ScheduledEvent> addScheduledEvent(@Valid @NotNull ScheduledControlDTO scheduledControl) {
+        validateCron(scheduledControl.getCron());
+        try {
+            return Uni.createFrom().item(schedulerService.addScheduledEvent(
+                    scheduledControl.getGroup(),
+                    scheduledControl.getName(),
+                    scheduledControl.getCron(),
+                    ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS,
+                    toJson(scheduledControl.getModuleControls())));
+        } catch (ScheduledEventExistsException e) {
+            throw new ClientErrorException(e.getMessage(), Response.Status.CONFLICT);
+        } catch (InvalidScheduledEventException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the scheduled event with the same group and name, or adds it if it does not exist.
+     */
+    @PUT
+    @Path("/schedules")
+    public Uni<ScheduledEvent> updateScheduledEvent(@Valid @NotNull ScheduledControlDTO scheduledControl) {
+        validateCron(scheduledControl.getCron());
+        try {
+            return Uni.createFrom().item(schedulerService.updateScheduledEvent(
+                    scheduledControl.getGroup(),
+                    scheduledControl.getName(),
+                    scheduledControl.getCron(),
+                    ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS,
+                    toJson(scheduledControl.getModuleControls())));
+        } catch (InvalidScheduledEventException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    @POST
+    @Path("/schedules/pause")
+    public Uni<Void> pauseScheduledEvent(@QueryParam("group") @NotBlank String group,
+                                         @QueryParam("name") @NotBlank String name) {
+        if (!schedulerService.pauseScheduledEvent(group, name)) {
+            throw scheduledEventNotFound(group, name);
+        }
+        return Uni.createFrom().voidItem();
+    }
+
+    @POST
+    @Path("/schedules/resume")
+    public Uni<Void> resumeScheduledEvent(@QueryParam("group") @NotBlank String group,
+                                          @QueryParam("name") @NotBlank String name) {
+        if (!schedulerService.resumeScheduledEvent(group, name)) {
+            throw scheduledEventNotFound(group, name);
+        }
+        return Uni.createFrom().voidItem();
+    }
+
+    @DELETE
+    @Path("/schedules")
+    public Uni<Void> removeScheduledEvent(@QueryParam("group") @NotBlank String group,
+                                          @QueryParam("name") @NotBlank String name) {
+        if (!schedulerService.removeScheduledEvent(group, name)) {
+            throw scheduledEventNotFound(group, name);
+        }
+        return Uni.createFrom().voidItem();
+    }
+
+    private static void validateCron(String cron) {
+        if (!CronExpression.isValidExpression(cron)) {
+            throw new BadRequestException(String.format("Invalid cron expression: %s", cron));
+        }
+    }
+
+    private static NotFoundException scheduledEventNotFound(String group, String name) {
+        return new NotFoundException(String.format("Scheduled event not found: %s.%s", group, name));
+    }
+
+    private String toJson(List<Module> moduleControls) {
+        try {
+            return jsonMapper.writeValueAsString(moduleControls);
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException(String.format("Unable to serialize module controls: %s", e.getMessage()));
+        }
+    }
+
+    private static Long parseCursor(String cursor) {
+        try {
+            return UnitLogPage.decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    private static ZonedDateTime parseDateTime(String dateTime) {
+        try {
+            return ZonedDateTime.parse(dateTime);
+        } catch (DateTimeParseException e) {
+            throw new BadRequestException(String.format("Invalid ISO-8601 date-time: %s", dateTime));
+        }
     }
 
-    public void pauseScheduledEvent() {
-        //TODO
+    /**
+     * No content like the empty Uni of the missing unit, a 304 without body if the client has the current version.
+     */
+    private static Response cachedResponse(Request request, UnitReadCache.CachedResponse cached) {
+        if (cached.getBody() == null) {
+            return Response.noContent().build();
+        }
+        var notModified = request.evaluatePreconditions(cached.getEntityTag());
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return Response.ok(cached.getBody(), MediaType.APPLICATION_JSON_TYPE)
+                .tag(cached.getEntityTag())
+                .build();
     }
 
-    public void removeScheduledEvent() {
-        //TODO
+    /**
+     * The rows are serialized as they are handed over, the output is flushed only when the Jackson buffer is full.
+     */
+    private <T> StreamingOutput ndjson(Class<T> type, RowSource<T> source) {
+        var writer = jsonMapper.writerFor(type).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        return output -> {
+            try (var generator = jsonMapper.getFactory().createGenerator(output)) {
+                generator.setRootValueSeparator(null);
+                source.forEach(row -> {
+                    writer.writeValue(generator, row);
+                    generator.writeRaw('\n');
+                });
+            } catch (IOException | RuntimeException e) {
+                log.atSevere().log("Unable to stream %s rows: %s", type.getSimpleName(), e.getMessage());
+                throw e;
+            }
+        };
     }
 
-    public void getAllScheduledEvents() {
-        //TODO
+    /**
+     * Like {@link #ndjson(Class, RowSource)}, but the rows are written as the elements of a single JSON array.
+     */
+    private <T> StreamingOutput jsonArray(Class<T> type, RowSource<T> source) {
+        var writer = jsonMapper.writerFor(type).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        return output -> {
+            try (var generator = jsonMapper.getFactory().createGenerator(output)) {
+                generator.writeStartArray();
+                source.forEach(row -> writer.writeValue(generator, row));
+                generator.writeEndArray();
+            } catch (IOException | RuntimeException e) {
+                log.atSevere().log("Unable to stream %s rows: %s", type.getSimpleName(), e.getMessage());
+                throw e;
+            }
+        };
     }
 
-    public void getScheduledEventsForUnit(Long unitId) {
-        //TODO
+    @FunctionalInterface
+    private interface RowSource<T> {
+        void forEach(EntityStreamer.RowHandler<T> handler) throws IOException;
     }
 }
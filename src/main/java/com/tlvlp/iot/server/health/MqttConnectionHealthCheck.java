@@ -1,5 +1,6 @@
 package com.tlvlp.iot.server.health;
 
+import com.tlvlp.iot.server.mcu.IngressDispatcher;
 import com.tlvlp.iot.server.mqtt.MessageService;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
@@ -8,21 +9,32 @@ import org.eclipse.microprofile.health.Readiness;
 
 import javax.inject.Singleton;
 
+/**
+ * Ready when the broker is connected and the ingress queues are not saturated.
+ */
 @Readiness
 @Singleton
 public class MqttConnectionHealthCheck implements HealthCheck {
 
     private final MessageService messageService;
+    private final IngressDispatcher ingressDispatcher;
 
-    public MqttConnectionHealthCheck(MessageService messageService) {
+    public MqttConnectionHealthCheck(MessageService messageService, IngressDispatcher ingressDispatcher) {
         this.messageService = messageService;
+        this.ingressDispatcher = ingressDispatcher;
     }
 
 
     @Override
     public HealthCheckResponse call() {
         HealthCheckResponseBuilder responseBuilder = HealthCheckResponse.named("Mqtt connection");
-        if (messageService.isBrokerConnected()) {
+        var isIngressSaturated = ingressDispatcher.isSaturated();
+        responseBuilder
+                .withData("ingressSaturated", isIngressSaturated)
+                .withData("ingressPendingMessages", ingressDispatcher.getPendingMessages())
+                .withData("ingressLagMs", ingressDispatcher.getLagMillis())
+                .withData("publishPendingMessages", messageService.getPendingMessages());
+        if (messageService.isBrokerConnected() && !isIngressSaturated) {
             responseBuilder.up();
         } else {
             responseBuilder.down();
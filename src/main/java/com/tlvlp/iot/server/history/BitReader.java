@@ -0,0 +1,33 @@
+package com.tlvlp.iot.server.history;
+
+/**
+ * Reads the bit stream of a {@link BitWriter}.
+ */
+final class BitReader {
+
+    private final byte[] bytes;
+    private int bitPosition;
+
+    BitReader(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    boolean readBit() {
+        boolean bit = (bytes[bitPosition >>> 3] & (0x80 >>> (bitPosition & 7))) != 0;
+        bitPosition++;
+        return bit;
+    }
+
+    long readBits(int count) {
+        long value = 0;
+        while (count > 0) {
+            int available = 8 - (bitPosition & 7);
+            int length = Math.min(available, count);
+            int bits = ((bytes[bitPosition >>> 3] & 0xFF) >>> (available - length)) & ((1 << length) - 1);
+            value = (value << length) | bits;
+            bitPosition += length;
+            count -= length;
+        }
+        return value;
+    }
+}
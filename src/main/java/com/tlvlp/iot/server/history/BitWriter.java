@@ -0,0 +1,54 @@
+package com.tlvlp.iot.server.history;
+
+import java.util.Arrays;
+
+/**
+ * Growable bit stream, the bits are written from the most significant one.
+ */
+final class BitWriter {
+
+    private byte[] bytes;
+    private int bitPosition;
+
+    BitWriter(int initialCapacity) {
+        this.bytes = new byte[Math.max(1, initialCapacity)];
+    }
+
+    void writeBit(boolean bit) {
+        ensureCapacity(1);
+        if (bit) {
+            bytes[bitPosition >>> 3] |= (byte) (0x80 >>> (bitPosition & 7));
+        }
+        bitPosition++;
+    }
+
+    /**
+     * Writes the lowest {@code count} bits of the value.
+     */
+    void writeBits(long value, int count) {
+        ensureCapacity(count);
+        while (count > 0) {
+            int free = 8 - (bitPosition & 7);
+            int length = Math.min(free, count);
+            int bits = (int) (value >>> (count - length)) & ((1 << length) - 1);
+            bytes[bitPosition >>> 3] |= (byte) (bits << (free - length));
+            bitPosition += length;
+            count -= length;
+        }
+    }
+
+    int getByteLength() {
+        return (bitPosition + 7) >>> 3;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, getByteLength());
+    }
+
+    private void ensureCapacity(int bitCount) {
+        int required = (bitPosition + bitCount + 7) >>> 3;
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+        }
+    }
+}
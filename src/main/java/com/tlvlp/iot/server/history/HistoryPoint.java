@@ -0,0 +1,29 @@
+package com.tlvlp.iot.server.history;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.time.ZonedDateTime;
+
+/**
+ * A point of the module value history.
+ * Raw points have a value, rollups have the min, max, avg and count of the values in the bucket starting at the time.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class HistoryPoint {
+
+    private ZonedDateTime time;
+    private Double value;
+    private Double min;
+    private Double max;
+    private Double avg;
+    private Long count;
+
+}
@@ -0,0 +1,478 @@
+package com.tlvlp.iot.server.history;
+
+import com.tlvlp.iot.server.persistence.TransactionCallbacks;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.interceptor.Interceptor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded, append-only history of the module values.
+ * <p>
+ * The readings of every module are compressed into an open in-memory chunk ({@link TimeSeriesEncoder}),
+ * which is sealed into the raw {@link SegmentStore} when it is full or older than the seal interval.
+ * A background job rolls the raw readings up into min/max/avg buckets of a minute, an hour and a day,
+ * which are stored the same way, so long ranges can be queried without decoding every reading.
+ * Only complete buckets are rolled up. Open chunks and pending rollups are sealed on shutdown,
+ * a crash loses at most one seal interval of readings.
+ * <p>
+ * The same job deletes the segments of the raw readings and of the rollups after their retention,
+ * and a query is limited to history.max-points points.
+ */
+@Flogger
+@ApplicationScoped
+public class ModuleHistoryService {
+
+    private static final Resolution[] ROLLUP_RESOLUTIONS = {Resolution.MINUTE, Resolution.HOUR, Resolution.DAY};
+    private static final int ROLLUP_BLOCK_SIZE = 60;
+
+    private final TransactionCallbacks transactionCallbacks;
+    private final Path directory;
+    private final int segmentSize;
+    private final int chunkSize;
+    private final long sealIntervalMillis;
+    private final int maxPoints;
+    private final long rawRetentionMillis;
+    private final long rollupRetentionMillis;
+    private final Map<Resolution, SegmentStore> stores = new EnumMap<>(Resolution.class);
+    private final ConcurrentMap<Long, OpenChunk> openChunks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, ModuleRollups> rollups = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final Counter appendedPoints;
+    private final Map<Resolution, Counter> sealedBlocks = new EnumMap<>(Resolution.class);
+    private final Timer rollupTimer;
+
+    public ModuleHistoryService(TransactionCallbacks transactionCallbacks,
+                                MeterRegistry meterRegistry,
+                                @ConfigProperty(name = "history.directory", defaultValue = "history") String directory,
+                                @ConfigProperty(name = "history.segment-size-mb", defaultValue = "16") Integer segmentSizeMb,
+                                @ConfigProperty(name = "history.chunk-size", defaultValue = "512") Integer chunkSize,
+                                @ConfigProperty(name = "history.seal-interval-minutes", defaultValue = "10") Integer sealIntervalMinutes,
+                                @ConfigProperty(name = "history.max-points", defaultValue = "10000") Integer maxPoints,
+                                @ConfigProperty(name = "history.retention-raw-days", defaultValue = "90") Integer rawRetentionDays,
+                                @ConfigProperty(name = "history.retention-rollup-days", defaultValue = "1095") Integer rollupRetentionDays) {
+        this.transactionCallbacks = transactionCallbacks;
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSizeMb * 1024 * 1024;
+        this.chunkSize = Math.max(2, chunkSize);
+        this.sealIntervalMillis = TimeUnit.MINUTES.toMillis(sealIntervalMinutes);
+        this.maxPoints = maxPoints;
+        this.rawRetentionMillis = TimeUnit.DAYS.toMillis(rawRetentionDays);
+        this.rollupRetentionMillis = TimeUnit.DAYS.toMillis(rollupRetentionDays);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "module-history"));
+
+        this.appendedPoints = Counter.builder("mcu.history.points")
+                .description("Module readings appended to the history.")
+                .register(meterRegistry);
+        for (Resolution resolution : Resolution.values()) {
+            sealedBlocks.put(resolution, Counter.builder("mcu.history.blocks.sealed")
+                    .description("History blocks sealed into the segment files.")
+                    .tag("resolution", resolution.toString())
+                    .register(meterRegistry));
+        }
+        this.rollupTimer = Timer.builder("mcu.history.rollup.duration")
+                .description("Time to roll up the history of all modules.")
+                .register(meterRegistry);
+        meterRegistry.gaugeMapSize("mcu.history.open.chunks", List.of(), openChunks);
+    }
+
+    @PostConstruct
+    void open() {
+        try {
+            for (Resolution resolution : Resolution.values()) {
+                stores.put(resolution, new SegmentStore(directory.resolve(resolution.name().toLowerCase()), segmentSize));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the module history in " + directory.toAbsolutePath(), e);
+        }
+    }
+
+    void start(@Observes StartupEvent event) {
+        long now = System.currentTimeMillis();
+        long delayToNextMinute = Resolution.MINUTE.truncate(now) + Resolution.MINUTE.getBucketMillis() - now;
+        scheduler.scheduleAtFixedRate(this::runBackgroundJob,
+                delayToNextMinute + 1000, Resolution.MINUTE.getBucketMillis(), TimeUnit.MILLISECONDS);
+        log.atInfo().log("Module history is started in %s", directory.toAbsolutePath());
+    }
+
+    /**
+     * Runs after the default shutdown observers, so the readings of the last ingress batches are sealed as well.
+     */
+    void stop(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) ShutdownEvent event) {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        openChunks.values().forEach(this::seal);
+        rollups.forEach(this::sealRollups);
+        stores.values().forEach(SegmentStore::force);
+        log.atInfo().log("Module history is stopped, open chunks and rollups are sealed.");
+    }
+
+    /**
+     * Records a module reading. Within a transaction the reading is recorded only after the transaction is committed.
+     */
+    public void record(Long moduleId, ZonedDateTime time, Double value) {
+        long timestamp = time.toInstant().toEpochMilli();
+        transactionCallbacks.afterCommit(() -> append(moduleId, timestamp, value));
+    }
+
+    /**
+     * @return the history of the module within the [from, to) time range at the given resolution.
+     * @throws IllegalArgumentException if the range has more than history.max-points buckets at the resolution,
+     *                                  or more raw readings.
+     */
+    public List<HistoryPoint> getHistory(Long moduleId, ZonedDateTime from, ZonedDateTime to, Resolution resolution) {
+        long fromMillis = from.toInstant().toEpochMilli();
+        long toMillis = to.toInstant().toEpochMilli();
+        var points = new ArrayList<HistoryPoint>();
+        if (resolution == Resolution.RAW) {
+            readRaw(moduleId, fromMillis, toMillis, (timestamp, value) -> {
+                if (points.size() >= maxPoints) {
+                    throw new IllegalArgumentException(String.format(
+                            "More than %d readings in the range, use a shorter range or a coarser resolution.", maxPoints));
+                }
+                points.add(new HistoryPoint()
+                        .setTime(toDateTime(timestamp))
+                        .setValue(value));
+            });
+        } else {
+            long buckets = (Math.max(toMillis, fromMillis) - fromMillis + resolution.getBucketMillis() - 1)
+                    / resolution.getBucketMillis();
+            if (buckets > maxPoints) {
+                throw new IllegalArgumentException(String.format(
+                        "The range has %d buckets at %s resolution, the limit is %d.", buckets, resolution, maxPoints));
+            }
+            readRollups(moduleId, resolution, fromMillis, toMillis).forEach(rollup -> points.add(new HistoryPoint()
+                    .setTime(toDateTime(rollup.getBucketStart()))
+                    .setMin(rollup.getMin())
+                    .setMax(rollup.getMax())
+                    .setAvg(rollup.getAvg())
+                    .setCount(rollup.getCount())));
+        }
+        return points;
+    }
+
+    void append(long moduleId, long timestamp, double value) {
+        var chunk = openChunks.computeIfAbsent(moduleId, OpenChunk::new);
+        synchronized (chunk) {
+            if (chunk.encoder == null) {
+                chunk.encoder = new TimeSeriesEncoder(chunkSize * 2);
+                chunk.openedAtMillis = System.currentTimeMillis();
+            }
+            // Blocks are kept in time order, a reading from a clock that went backwards is recorded at the last timestamp.
+            chunk.lastTimestamp = Math.max(timestamp, chunk.lastTimestamp);
+            chunk.encoder.add(chunk.lastTimestamp, value);
+            if (chunk.encoder.getCount() >= chunkSize) {
+                seal(chunk);
+            }
+        }
+        appendedPoints.increment();
+    }
+
+    private void runBackgroundJob() {
+        try {
+            long now = System.currentTimeMillis();
+            rollupTimer.record(() -> rollUpAll(Resolution.MINUTE.truncate(now)));
+            openChunks.values().stream()
+                    .filter(chunk -> now - chunk.openedAtMillis >= sealIntervalMillis)
+                    .forEach(this::seal);
+            expire(now);
+        } catch (Exception e) {
+            log.atSevere().withCause(e).log("Unexpected error in the module history background job.");
+        }
+    }
+
+    /**
+     * Deletes the expired segments of every resolution, a retention of 0 keeps them forever.
+     */
+    private void expire(long now) {
+        for (Resolution resolution : Resolution.values()) {
+            long retentionMillis = resolution == Resolution.RAW ? rawRetentionMillis : rollupRetentionMillis;
+            if (retentionMillis > 0) {
+                stores.get(resolution).expire(now - retentionMillis);
+            }
+        }
+    }
+
+    private void rollUpAll(long upTo) {
+        var moduleIds = new HashSet<>(openChunks.keySet());
+        moduleIds.addAll(stores.get(Resolution.RAW).getSeriesIds());
+        for (Long moduleId : moduleIds) {
+            var state = rollups.computeIfAbsent(moduleId, this::restoreRollups);
+            synchronized (state) {
+                rollUp(moduleId, state, upTo);
+                if (state.getPendingCount() >= ROLLUP_BLOCK_SIZE
+                        || (state.getPendingCount() > 0 && upTo - state.pendingSinceMillis >= sealIntervalMillis)) {
+                    sealRollups(moduleId, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rolls up the raw readings up to the given minute boundary into minute buckets,
+     * the minutes into the open hour and the hours into the open day. These are completed once the time passes them.
+     */
+    private void rollUp(long moduleId, ModuleRollups state, long upTo) {
+        if (state.rolledUpTo >= upTo) {
+            return;
+        }
+        var minutes = new TreeMap<Long, Rollup>();
+        readRaw(moduleId, state.rolledUpTo, upTo, (timestamp, value) ->
+                minutes.computeIfAbsent(Resolution.MINUTE.truncate(timestamp), Rollup::new).add(value));
+        for (Rollup minute : minutes.values()) {
+            state.addPending(Resolution.MINUTE, minute, upTo);
+            long hourStart = Resolution.HOUR.truncate(minute.getBucketStart());
+            if (state.hour != null && state.hour.getBucketStart() != hourStart) {
+                closeHour(state, upTo);
+            }
+            if (state.hour == null) {
+                state.hour = new Rollup(hourStart);
+            }
+            state.hour.merge(minute);
+        }
+        if (state.hour != null && state.hour.getBucketStart() + Resolution.HOUR.getBucketMillis() <= upTo) {
+            closeHour(state, upTo);
+        }
+        if (state.day != null && state.day.getBucketStart() + Resolution.DAY.getBucketMillis() <= upTo) {
+            state.addPending(Resolution.DAY, state.day, upTo);
+            state.day = null;
+        }
+        state.rolledUpTo = upTo;
+    }
+
+    private void closeHour(ModuleRollups state, long now) {
+        var hour = state.hour;
+        state.addPending(Resolution.HOUR, hour, now);
+        long dayStart = Resolution.DAY.truncate(hour.getBucketStart());
+        if (state.day != null && state.day.getBucketStart() != dayStart) {
+            state.addPending(Resolution.DAY, state.day, now);
+            state.day = null;
+        }
+        if (state.day == null) {
+            state.day = new Rollup(dayStart);
+        }
+        state.day.merge(hour);
+        state.hour = null;
+    }
+
+    /**
+     * Restores the rollup progress of a module from the stored rollups after a restart.
+     * The open hour and day are rebuilt from the stored minutes and hours.
+     */
+    private ModuleRollups restoreRollups(Long moduleId) {
+        var state = new ModuleRollups();
+        var lastMinute = stores.get(Resolution.MINUTE).getLastTimestamp(moduleId);
+        if (lastMinute.isEmpty()) {
+            return state;
+        }
+        state.rolledUpTo = lastMinute.getAsLong() + Resolution.MINUTE.getBucketMillis();
+        long hourStart = Resolution.HOUR.truncate(lastMinute.getAsLong());
+        if (stores.get(Resolution.HOUR).getLastTimestamp(moduleId).orElse(Long.MIN_VALUE) < hourStart) {
+            state.hour = aggregate(hourStart, readStoredRollups(moduleId, Resolution.MINUTE, hourStart, state.rolledUpTo));
+        }
+        long dayStart = Resolution.DAY.truncate(lastMinute.getAsLong());
+        if (stores.get(Resolution.DAY).getLastTimestamp(moduleId).orElse(Long.MIN_VALUE) < dayStart) {
+            state.day = aggregate(dayStart, readStoredRollups(moduleId, Resolution.HOUR, dayStart, hourStart));
+        }
+        return state;
+    }
+
+    private static Rollup aggregate(long bucketStart, List<Rollup> rollups) {
+        if (rollups.isEmpty()) {
+            return null;
+        }
+        var aggregate = new Rollup(bucketStart);
+        rollups.forEach(aggregate::merge);
+        return aggregate;
+    }
+
+    private void seal(OpenChunk chunk) {
+        synchronized (chunk) {
+            var encoder = chunk.encoder;
+            if (encoder == null) {
+                return;
+            }
+            chunk.encoder = null;
+            try {
+                stores.get(Resolution.RAW).append(chunk.moduleId, encoder.getFirstTimestamp(), encoder.getLastTimestamp(),
+                        encoder.getCount(), encoder.toByteArray());
+                sealedBlocks.get(Resolution.RAW).increment();
+            } catch (RuntimeException e) {
+                log.atSevere().log("Unable to seal %d history readings of module %d: %s",
+                        encoder.getCount(), chunk.moduleId, e.getMessage());
+            }
+        }
+    }
+
+    private void sealRollups(Long moduleId, ModuleRollups state) {
+        synchronized (state) {
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                var pending = state.pending.get(resolution);
+                if (pending.isEmpty()) {
+                    continue;
+                }
+                var data = ByteBuffer.allocate(pending.size() * Rollup.RECORD_SIZE);
+                pending.forEach(rollup -> rollup.writeTo(data));
+                try {
+                    stores.get(resolution).append(moduleId, pending.get(0).getBucketStart(),
+                            pending.get(pending.size() - 1).getBucketStart(), pending.size(), data.array());
+                    sealedBlocks.get(resolution).increment();
+                } catch (RuntimeException e) {
+                    log.atSevere().log("Unable to seal %d %s history rollups of module %d: %s",
+                            pending.size(), resolution, moduleId, e.getMessage());
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Reads the sealed blocks and the open chunk of the module under the lock of the chunk,
+     * so a concurrent seal can't hide or duplicate readings.
+     */
+    private void readRaw(long moduleId, long from, long to, PointConsumer consumer) {
+        var chunk = openChunks.get(moduleId);
+        if (chunk == null) {
+            readRawBlocks(moduleId, from, to, consumer);
+            return;
+        }
+        byte[] openData = null;
+        int openCount = 0;
+        synchronized (chunk) {
+            readRawBlocks(moduleId, from, to, consumer);
+            if (chunk.encoder != null && chunk.encoder.getFirstTimestamp() < to && chunk.encoder.getLastTimestamp() >= from) {
+                openData = chunk.encoder.toByteArray();
+                openCount = chunk.encoder.getCount();
+            }
+        }
+        if (openData != null) {
+            decode(openData, openCount, from, to, consumer);
+        }
+    }
+
+    private void readRawBlocks(long moduleId, long from, long to, PointConsumer consumer) {
+        stores.get(Resolution.RAW).read(moduleId, from, to)
+                .forEach(block -> decode(block.getData(), block.getCount(), from, to, consumer));
+    }
+
+    private static void decode(byte[] data, int count, long from, long to, PointConsumer consumer) {
+        var decoder = new TimeSeriesDecoder(data, count);
+        while (decoder.hasNext()) {
+            decoder.next();
+            long timestamp = decoder.getTimestamp();
+            if (timestamp >= to) {
+                return;
+            }
+            if (timestamp >= from) {
+                consumer.accept(timestamp, decoder.getValue());
+            }
+        }
+    }
+
+    private List<Rollup> readRollups(long moduleId, Resolution resolution, long from, long to) {
+        var state = rollups.get(moduleId);
+        if (state == null) {
+            return readStoredRollups(moduleId, resolution, from, to);
+        }
+        synchronized (state) {
+            var result = readStoredRollups(moduleId, resolution, from, to);
+            state.pending.get(resolution).stream()
+                    .filter(rollup -> rollup.getBucketStart() >= from && rollup.getBucketStart() < to)
+                    .forEach(result::add);
+            return result;
+        }
+    }
+
+    private List<Rollup> readStoredRollups(long moduleId, Resolution resolution, long from, long to) {
+        var result = new ArrayList<Rollup>();
+        for (var block : stores.get(resolution).read(moduleId, from, to)) {
+            var data = ByteBuffer.wrap(block.getData());
+            for (int i = 0; i < block.getCount(); i++) {
+                var rollup = Rollup.readFrom(data);
+                if (rollup.getBucketStart() >= from && rollup.getBucketStart() < to) {
+                    result.add(rollup);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ZonedDateTime toDateTime(long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC);
+    }
+
+    @FunctionalInterface
+    private interface PointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    private static final class OpenChunk {
+        private final long moduleId;
+        private TimeSeriesEncoder encoder;
+        private long openedAtMillis;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private OpenChunk(long moduleId) {
+            this.moduleId = moduleId;
+        }
+    }
+
+    private static final class ModuleRollups {
+        private final Map<Resolution, List<Rollup>> pending = new EnumMap<>(Resolution.class);
+        private long rolledUpTo = Long.MIN_VALUE;
+        private long pendingSinceMillis;
+        private Rollup hour;
+        private Rollup day;
+
+        private ModuleRollups() {
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                pending.put(resolution, new ArrayList<>());
+            }
+        }
+
+        private void addPending(Resolution resolution, Rollup rollup, long now) {
+            if (getPendingCount() == 0) {
+                pendingSinceMillis = now;
+            }
+            pending.get(resolution).add(rollup);
+        }
+
+        private int getPendingCount() {
+            return pending.get(Resolution.MINUTE).size() + pending.get(Resolution.HOUR).size()
+                    + pending.get(Resolution.DAY).size();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.tlvlp.iot.server.history;
+
+import java.util.Arrays;
+
+/**
+ * Resolution of the module value history: the raw readings or the min/max/avg rollups of fixed UTC time buckets.
+ */
+public enum Resolution {
+    RAW("raw", 0),
+    MINUTE("1m", 60_000L),
+    HOUR("1h", 3_600_000L),
+    DAY("1d", 86_400_000L);
+
+    private final String code;
+    private final long bucketMillis;
+
+    Resolution(String code, long bucketMillis) {
+        this.code = code;
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Used for the query parameters, accepts the code (eg. 1h) or the name of the resolution.
+     */
+    public static Resolution fromString(String value) {
+        return Arrays.stream(values())
+                .filter(resolution -> resolution.code.equalsIgnoreCase(value) || resolution.name().equalsIgnoreCase(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown resolution: " + value));
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * @return the start of the bucket that contains the timestamp.
+     */
+    public long truncate(long timestamp) {
+        return bucketMillis == 0 ? timestamp : Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+    }
+
+    @Override
+    public String toString() {
+        return code;
+    }
+}
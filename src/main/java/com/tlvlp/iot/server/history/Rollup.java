@@ -0,0 +1,57 @@
+package com.tlvlp.iot.server.history;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Aggregate of the values in a time bucket, stored as a fixed size record.
+ */
+@Getter
+@ToString
+final class Rollup {
+
+    static final int RECORD_SIZE = 40;
+
+    private final long bucketStart;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+    private long count;
+
+    Rollup(long bucketStart) {
+        this.bucketStart = bucketStart;
+    }
+
+    void add(double value) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+    }
+
+    void merge(Rollup other) {
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        count += other.count;
+    }
+
+    double getAvg() {
+        return sum / count;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(bucketStart).putDouble(min).putDouble(max).putDouble(sum).putLong(count);
+    }
+
+    static Rollup readFrom(ByteBuffer buffer) {
+        var rollup = new Rollup(buffer.getLong());
+        rollup.min = buffer.getDouble();
+        rollup.max = buffer.getDouble();
+        rollup.sum = buffer.getDouble();
+        rollup.count = buffer.getLong();
+        return rollup;
+    }
+}
@@ -0,0 +1,273 @@
+package com.tlvlp.iot.server.history;
+
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only store of data blocks in memory-mapped segment files of a fixed size.
+ * Every block belongs to a series and covers a time range, the blocks of a series are appended in time order.
+ * The block index is kept in memory and rebuilt by scanning the segments on startup.
+ * The segments that only hold expired blocks are unmapped and deleted with their index entries.
+ * <p>
+ * Block layout: magic (4), series id (8), first timestamp (8), last timestamp (8), point count (4), data length (4), data.
+ * The magic is written last, so a block that was torn by a crash is ignored on the next scan.
+ */
+@Flogger
+final class SegmentStore {
+
+    private static final int MAGIC = 0x54534231;
+    private static final int HEADER_SIZE = 36;
+    private static final String SEGMENT_FILE_FORMAT = "segment-%08d.dat";
+    private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d{8})\\.dat");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final NavigableMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Long, List<BlockRef>> index = new HashMap<>();
+    private int writePosition;
+
+    SegmentStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> segmentFiles;
+        try (var files = Files.list(directory)) {
+            segmentFiles = files
+                    .filter(file -> SEGMENT_FILE_PATTERN.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path segmentFile : segmentFiles) {
+            var matcher = SEGMENT_FILE_PATTERN.matcher(segmentFile.getFileName().toString());
+            matcher.matches();
+            var segment = new Segment(Integer.parseInt(matcher.group(1)), segmentFile, map(segmentFile));
+            segments.put(segment.number, segment);
+            writePosition = scan(segment);
+        }
+        if (segments.isEmpty()) {
+            addSegment();
+        }
+        log.atInfo().log("Opened history segment store %s with %d segments and %d series.",
+                directory, segments.size(), index.size());
+    }
+
+    synchronized void append(long seriesId, long firstTimestamp, long lastTimestamp, int count, byte[] data) {
+        int blockSize = HEADER_SIZE + data.length;
+        if (blockSize > segmentSize) {
+            throw new IllegalArgumentException(String.format(
+                    "Block of %d bytes does not fit the segment size of %d bytes.", blockSize, segmentSize));
+        }
+        var segment = currentSegment();
+        if (writePosition + blockSize > segment.buffer.capacity()) {
+            segment.buffer.force();
+            segment = addSegment();
+        }
+        int position = writePosition;
+        var buffer = segment.buffer;
+        buffer.putLong(position + 4, seriesId);
+        buffer.putLong(position + 12, firstTimestamp);
+        buffer.putLong(position + 20, lastTimestamp);
+        buffer.putInt(position + 28, count);
+        buffer.putInt(position + 32, data.length);
+        var dataView = buffer.duplicate();
+        dataView.position(position + HEADER_SIZE);
+        dataView.put(data);
+        buffer.putInt(position, MAGIC);
+        writePosition += blockSize;
+        segment.lastTimestamp = Math.max(segment.lastTimestamp, lastTimestamp);
+        index.computeIfAbsent(seriesId, id -> new ArrayList<>())
+                .add(new BlockRef(segment.number, position + HEADER_SIZE, data.length, firstTimestamp, lastTimestamp, count));
+    }
+
+    /**
+     * @return the blocks of the series that overlap the [from, to) time range, in time order.
+     */
+    synchronized List<Block> read(long seriesId, long from, long to) {
+        var blockRefs = index.getOrDefault(seriesId, List.of());
+        var blocks = new ArrayList<Block>();
+        for (int i = firstBlockEndingAfter(blockRefs, from); i < blockRefs.size(); i++) {
+            var blockRef = blockRefs.get(i);
+            if (blockRef.getFirstTimestamp() >= to) {
+                break;
+            }
+            var data = new byte[blockRef.getLength()];
+            var dataView = segments.get(blockRef.getSegment()).buffer.duplicate();
+            dataView.position(blockRef.getDataPosition());
+            dataView.get(data);
+            blocks.add(new Block(blockRef.getFirstTimestamp(), blockRef.getLastTimestamp(), blockRef.getCount(), data));
+        }
+        return blocks;
+    }
+
+    synchronized OptionalLong getLastTimestamp(long seriesId) {
+        var blockRefs = index.get(seriesId);
+        return blockRefs == null ? OptionalLong.empty() : OptionalLong.of(blockRefs.get(blockRefs.size() - 1).getLastTimestamp());
+    }
+
+    synchronized Set<Long> getSeriesIds() {
+        return Set.copyOf(index.keySet());
+    }
+
+    synchronized void force() {
+        currentSegment().buffer.force();
+    }
+
+    /**
+     * Deletes the segments that only hold blocks ending before the cutoff, except the one that is written.
+     * The blocks of a segment are dropped together, so a block is kept until every block of its segment expired.
+     *
+     * @return the number of deleted segments.
+     */
+    synchronized int expire(long cutoff) {
+        var expired = segments.headMap(segments.lastKey()).values().stream()
+                .filter(segment -> segment.lastTimestamp < cutoff)
+                .collect(Collectors.toList());
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        var expiredNumbers = expired.stream().map(segment -> segment.number).collect(Collectors.toSet());
+        for (var iterator = index.values().iterator(); iterator.hasNext(); ) {
+            var blockRefs = iterator.next();
+            blockRefs.removeIf(blockRef -> expiredNumbers.contains(blockRef.getSegment()));
+            if (blockRefs.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        for (Segment segment : expired) {
+            segments.remove(segment.number);
+            unmap(segment.buffer);
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.atWarning().log("Unable to delete the expired history segment %s: %s", segment.file, e.getMessage());
+            }
+        }
+        log.atInfo().log("Deleted %d expired history segments from %s.", expired.size(), directory);
+        return expired.size();
+    }
+
+    private static int firstBlockEndingAfter(List<BlockRef> blockRefs, long from) {
+        int low = 0;
+        int high = blockRefs.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blockRefs.get(middle).getLastTimestamp() < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int scan(Segment segment) {
+        var buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            long seriesId = buffer.getLong(position + 4);
+            long firstTimestamp = buffer.getLong(position + 12);
+            long lastTimestamp = buffer.getLong(position + 20);
+            int count = buffer.getInt(position + 28);
+            int length = buffer.getInt(position + 32);
+            if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                log.atWarning().log("Corrupt history block in segment %d at %d, ignoring the rest of the segment.",
+                        segment.number, position);
+                break;
+            }
+            segment.lastTimestamp = Math.max(segment.lastTimestamp, lastTimestamp);
+            index.computeIfAbsent(seriesId, id -> new ArrayList<>())
+                    .add(new BlockRef(segment.number, position + HEADER_SIZE, length, firstTimestamp, lastTimestamp, count));
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private Segment currentSegment() {
+        return segments.lastEntry().getValue();
+    }
+
+    private Segment addSegment() {
+        int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        var file = directory.resolve(String.format(SEGMENT_FILE_FORMAT, number));
+        try {
+            var segment = new Segment(number, file, map(file));
+            segments.put(number, segment);
+            writePosition = 0;
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create a new history segment in " + directory, e);
+        }
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (var channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), segmentSize);
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Releases the mapping right away instead of when the buffer is collected.
+     * Safe as the blocks are only read under the lock of the store, into copies.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            var unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            var unsafe = unsafeField.get(null);
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.atFine().log("Unable to unmap the history segment, it is released when collected: %s", e.getMessage());
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private Segment(int number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    @Value
+    static class Block {
+        long firstTimestamp;
+        long lastTimestamp;
+        int count;
+        byte[] data;
+    }
+
+    @Value
+    private static class BlockRef {
+        int segment;
+        int dataPosition;
+        int length;
+        long firstTimestamp;
+        long lastTimestamp;
+        int count;
+    }
+}
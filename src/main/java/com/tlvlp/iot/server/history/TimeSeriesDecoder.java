@@ -0,0 +1,76 @@
+package com.tlvlp.iot.server.history;
+
+/**
+ * Decodes a block of the {@link TimeSeriesEncoder}.
+ */
+final class TimeSeriesDecoder {
+
+    private final BitReader in;
+    private final int count;
+    private int index;
+    private long timestamp;
+    private long delta;
+    private long valueBits;
+    private int leadingZeros;
+    private int trailingZeros;
+
+    TimeSeriesDecoder(byte[] block, int count) {
+        this.in = new BitReader(block);
+        this.count = count;
+    }
+
+    boolean hasNext() {
+        return index < count;
+    }
+
+    /**
+     * Moves to the next point, read by {@link #getTimestamp()} and {@link #getValue()}.
+     */
+    void next() {
+        if (index == 0) {
+            timestamp = in.readBits(64);
+            valueBits = in.readBits(64);
+        } else {
+            delta += readDeltaOfDelta();
+            timestamp += delta;
+            valueBits ^= readXor();
+        }
+        index++;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    double getValue() {
+        return Double.longBitsToDouble(valueBits);
+    }
+
+    private long readDeltaOfDelta() {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.readBits(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.readBits(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.readBits(12) - 2047;
+        }
+        return in.readBits(64);
+    }
+
+    private long readXor() {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (in.readBit()) {
+            leadingZeros = (int) in.readBits(5);
+            int meaningfulBits = (int) in.readBits(6) + 1;
+            trailingZeros = 64 - leadingZeros - meaningfulBits;
+        }
+        return in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+    }
+}
@@ -0,0 +1,106 @@
+package com.tlvlp.iot.server.history;
+
+/**
+ * Compresses a series of (timestamp, value) points as described in the Gorilla paper (Pelkonen et al., VLDB 2015).
+ * The timestamps are stored as delta-of-deltas and the values as the XOR against the previous value,
+ * so regular readings of slowly changing values take one or two bits per timestamp and only a few bits per value.
+ * <p>
+ * Block layout: the first timestamp and value on 64 bits each, then for every following point:
+ * <ul>
+ *     <li>delta-of-delta: '0' | '10' + 7 bits | '110' + 9 bits | '1110' + 12 bits | '1111' + 64 bits</li>
+ *     <li>value: '0' if unchanged | '10' + meaningful bits within the previous window |
+ *     '11' + 5 bits leading zeros + 6 bits length + meaningful bits</li>
+ * </ul>
+ */
+final class TimeSeriesEncoder {
+
+    private final BitWriter out;
+    private int count;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeadingZeros = -1;
+    private int lastTrailingZeros;
+
+    TimeSeriesEncoder(int initialCapacity) {
+        this.out = new BitWriter(initialCapacity);
+    }
+
+    void add(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            out.writeBits(timestamp, 64);
+            out.writeBits(valueBits, 64);
+            firstTimestamp = timestamp;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeValue(valueBits);
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.writeBit(false);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            out.writeBits(0b10, 2);
+            out.writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            out.writeBits(0b110, 3);
+            out.writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeValue(long valueBits) {
+        long xor = valueBits ^ lastValueBits;
+        if (xor == 0) {
+            out.writeBit(false);
+            return;
+        }
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (lastLeadingZeros >= 0 && leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+            out.writeBits(0b10, 2);
+            out.writeBits(xor >>> lastTrailingZeros, 64 - lastLeadingZeros - lastTrailingZeros);
+        } else {
+            int meaningfulBits = 64 - leadingZeros - trailingZeros;
+            out.writeBits(0b11, 2);
+            out.writeBits(leadingZeros, 5);
+            out.writeBits(meaningfulBits - 1, 6);
+            out.writeBits(xor >>> trailingZeros, meaningfulBits);
+            lastLeadingZeros = leadingZeros;
+            lastTrailingZeros = trailingZeros;
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int getByteLength() {
+        return out.getByteLength();
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.PublishResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+/**
+ * The delivery of a project-wide control message, see {@link McuService#sendBroadcastControl(String, List)}.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class BroadcastControlResult {
+
+    private String project;
+    private String topic;
+    /**
+     * The members of the project when the message was sent.
+     */
+    private List<Long> unitIds;
+    /**
+     * The control message was acknowledged by the broker, not by the units.
+     */
+    private boolean delivered;
+    private int attempts;
+    private Long latencyMs;
+    private String error;
+
+    static BroadcastControlResult of(String project, List<Long> unitIds, PublishResult publishResult) {
+        return new BroadcastControlResult()
+                .setProject(project)
+                .setTopic(publishResult.getTopic())
+                .setUnitIds(unitIds)
+                .setDelivered(publishResult.isDelivered())
+                .setAttempts(publishResult.getAttempts())
+                .setLatencyMs(publishResult.getLatency().toMillis())
+                .setError(publishResult.getError());
+    }
+
+    static BroadcastControlResult projectNotFound(String project) {
+        return new BroadcastControlResult()
+                .setProject(project)
+                .setUnitIds(List.of())
+                .setError("Project has no units.");
+    }
+}
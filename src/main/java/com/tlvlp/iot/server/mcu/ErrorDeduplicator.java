@@ -0,0 +1,146 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.persistence.UnitLogWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.vertx.core.Vertx;
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Folds the repeated errors of a unit into a single {@link UnitLog}, so an MCU that reports the same error
+ * many times a second does not flood the unit logs.
+ * <p>
+ * The first occurrence of an error text opens a window (mcu.error-dedup.window-millis, 0 to disable),
+ * the repeats within it are only counted. When the window closes, one log is written with the time of the first
+ * and the last occurrence and the number of occurrences. Beyond mcu.error-dedup.max-errors open windows,
+ * the new errors are written right away. The open windows are flushed on shutdown.
+ * <p>
+ * The windows are closed on a worker thread, as the unit log writer may block or spill to disk when its queue is full.
+ */
+@Flogger
+@ApplicationScoped
+public class ErrorDeduplicator {
+
+    private final Vertx vertx;
+    private final UnitLogWriter unitLogWriter;
+    private final long windowMillis;
+    private final int maxErrors;
+
+    private final ConcurrentMap<ErrorKey, Occurrences> openErrors = new ConcurrentHashMap<>();
+
+    private final Counter receivedErrors;
+    private final Counter foldedErrors;
+
+    public ErrorDeduplicator(Vertx vertx,
+                             UnitLogWriter unitLogWriter,
+                             MeterRegistry meterRegistry,
+                             @ConfigProperty(name = "mcu.error-dedup.window-millis", defaultValue = "10000") Long windowMillis,
+                             @ConfigProperty(name = "mcu.error-dedup.max-errors", defaultValue = "10000") Integer maxErrors) {
+        this.vertx = vertx;
+        this.unitLogWriter = unitLogWriter;
+        this.windowMillis = windowMillis;
+        this.maxErrors = maxErrors;
+        this.receivedErrors = Counter.builder("mcu.errors.received")
+                .description("Error messages received from the units.")
+                .register(meterRegistry);
+        this.foldedErrors = Counter.builder("mcu.errors.folded")
+                .description("Repeated error messages that were folded into the log of their first occurrence.")
+                .register(meterRegistry);
+        meterRegistry.gaugeMapSize("mcu.errors.open", List.of(), openErrors);
+    }
+
+    /**
+     * @return true if this is the first occurrence of the error in its window, false if it was folded.
+     */
+    public boolean record(Long unitId, String error, ZonedDateTime timeUtc) {
+        receivedErrors.increment();
+        var key = new ErrorKey(unitId, error);
+        if (windowMillis <= 0 || (openErrors.size() >= maxErrors && !openErrors.containsKey(key))) {
+            write(unitId, error, new Occurrences(timeUtc));
+            return true;
+        }
+        var occurrences = openErrors.compute(key, (errorKey, open) -> open == null
+                ? new Occurrences(timeUtc)
+                : open.add(timeUtc));
+        if (occurrences.getCount() > 1) {
+            foldedErrors.increment();
+            return false;
+        }
+        vertx.setTimer(windowMillis, id -> vertx.executeBlocking(promise -> {
+            close(key);
+            promise.complete();
+        }, false, result -> {
+            if (result.failed()) {
+                log.atWarning().withCause(result.cause()).log("Unable to write the folded errors of unit: %s", unitId);
+            }
+        }));
+        return true;
+    }
+
+    private void close(ErrorKey key) {
+        var occurrences = openErrors.remove(key);
+        if (occurrences != null) {
+            write(key.getUnitId(), key.getError(), occurrences);
+        }
+    }
+
+    /**
+     * Runs before the unit log writer is stopped, so the folded errors are flushed with the rest of the logs.
+     */
+    void flush(@Observes ShutdownEvent event) {
+        if (!openErrors.isEmpty()) {
+            log.atInfo().log("Flushing %d open error windows.", openErrors.size());
+            List.copyOf(openErrors.keySet()).forEach(this::close);
+        }
+    }
+
+    private void write(Long unitId, String error, Occurrences occurrences) {
+        unitLogWriter.write(new UnitLog()
+                .setUnitId(unitId)
+                .setTimeUtc(occurrences.getFirstTimeUtc())
+                .setLastTimeUtc(occurrences.getLastTimeUtc())
+                .setOccurrences(occurrences.getCount())
+                .setType(UnitLog.Type.INCOMING_ERROR)
+                .setLogEntry(error));
+    }
+
+    @Value
+    private static class ErrorKey {
+        Long unitId;
+        String error;
+    }
+
+    /**
+     * Immutable, a repeat replaces it within the atomic compute of the map.
+     */
+    @Value
+    private static class Occurrences {
+        ZonedDateTime firstTimeUtc;
+        ZonedDateTime lastTimeUtc;
+        int count;
+
+        Occurrences(ZonedDateTime timeUtc) {
+            this(timeUtc, timeUtc, 1);
+        }
+
+        Occurrences(ZonedDateTime firstTimeUtc, ZonedDateTime lastTimeUtc, int count) {
+            this.firstTimeUtc = firstTimeUtc;
+            this.lastTimeUtc = lastTimeUtc;
+            this.count = count;
+        }
+
+        Occurrences add(ZonedDateTime timeUtc) {
+            return new Occurrences(firstTimeUtc, timeUtc, count + 1);
+        }
+    }
+}
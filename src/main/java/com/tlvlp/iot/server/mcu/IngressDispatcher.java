@@ -0,0 +1,127 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.Message;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.vertx.ConsumeEvent;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Dispatches the ingress messages to a number of ordered {@link IngressLane}s that are processed in parallel.
+ * The lane is picked by hashing the unit id (project and unit name), so the messages of a unit
+ * are always handled by the same lane, in their order of arrival.
+ * Each lane has a bounded {@link IngressQueue}, messages over the capacity are coalesced or shed
+ * according to the {@link IngressQueue.OverloadPolicy}.
+ */
+@Flogger
+@ApplicationScoped
+public class IngressDispatcher {
+
+    private final IngressMessageParser ingressMessageParser;
+    private final List<IngressLane> lanes;
+    private final MeterRegistry meterRegistry;
+
+    public IngressDispatcher(McuService mcuService,
+                             IngressMessageParser ingressMessageParser,
+                             MeterRegistry meterRegistry,
+                             @ConfigProperty(name = "mcu.ingress.lanes", defaultValue = "4") Integer laneCount,
+                             @ConfigProperty(name = "mcu.ingress.lane.capacity", defaultValue = "10000") Integer laneCapacity,
+                             @ConfigProperty(name = "mcu.ingress.overload.policy", defaultValue = "COALESCE") IngressQueue.OverloadPolicy overloadPolicy,
+                             @ConfigProperty(name = "mcu.ingress.batch.size", defaultValue = "100") Integer maxBatchSize,
+                             @ConfigProperty(name = "mcu.ingress.batch.max-linger-ms", defaultValue = "20") Long maxLingerMs) {
+        this.ingressMessageParser = ingressMessageParser;
+        this.meterRegistry = meterRegistry;
+        var batchSize = Math.max(1, maxBatchSize);
+        var maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        this.lanes = IntStream.range(0, Math.max(1, laneCount))
+                .mapToObj(index -> new IngressLane(index, mcuService, meterRegistry,
+                        new IngressQueue(Math.max(1, laneCapacity), overloadPolicy), batchSize, maxLingerNanos))
+                .collect(Collectors.toUnmodifiableList());
+
+        Gauge.builder("mcu.ingress.lag.max.ms", this::getLagMillis)
+                .description("Waiting time of the oldest pending ingress message across the lanes.")
+                .register(meterRegistry);
+        Gauge.builder("mcu.ingress.lanes", lanes::size)
+                .description("Number of ordered ingress lanes.")
+                .register(meterRegistry);
+        Gauge.builder("mcu.ingress.batch.max.size", () -> batchSize)
+                .description("Configured maximum number of messages in an ingress batch.")
+                .register(meterRegistry);
+        Gauge.builder("mcu.ingress.batch.max.linger.ms", () -> maxLingerMs)
+                .description("Configured maximum time to wait for an ingress batch to fill up.")
+                .register(meterRegistry);
+    }
+
+    void start(@Observes StartupEvent event) {
+        log.atInfo().log("Starting %d ingress lanes.", lanes.size());
+        lanes.forEach(IngressLane::start);
+    }
+
+    void stop(@Observes ShutdownEvent event) {
+        for (IngressLane lane : lanes) {
+            try {
+                lane.stop(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @ConsumeEvent("mqtt_ingress")
+    public void dispatch(Message message) {
+        try {
+            var ingressMessage = ingressMessageParser.parse(message);
+            var result = getLane(ingressMessage).offer(ingressMessage);
+            if (result != IngressQueue.Result.ACCEPTED) {
+                log.atWarning().atMostEvery(10, TimeUnit.SECONDS)
+                        .log("Ingress queue is saturated, message was %s: %s", result, ingressMessage);
+            }
+            meterRegistry.counter("mcu.ingress.messages",
+                    "topic", ingressMessage.getTopic().topic(),
+                    "result", result.name().toLowerCase())
+                    .increment();
+        } catch (Exception e) {
+            log.atSevere().log("Unable to parse ingress message: %s %n%s", message, e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if any of the lanes is at capacity and has started to coalesce or shed messages.
+     */
+    public boolean isSaturated() {
+        return lanes.stream().anyMatch(lane -> lane.getQueue().isSaturated());
+    }
+
+    /**
+     * @return the waiting time of the oldest pending ingress message across the lanes, in milliseconds.
+     */
+    public long getLagMillis() {
+        return lanes.stream()
+                .mapToLong(lane -> lane.getQueue().getLagMillis())
+                .max()
+                .orElse(0);
+    }
+
+    public int getPendingMessages() {
+        return lanes.stream()
+                .mapToInt(lane -> lane.getQueue().size())
+                .sum();
+    }
+
+    private IngressLane getLane(IngressMessage message) {
+        var hash = Objects.hash(message.getProject(), message.getUnitName());
+        return lanes.get(Math.floorMod(hash, lanes.size()));
+    }
+}
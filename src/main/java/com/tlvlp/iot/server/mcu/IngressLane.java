@@ -0,0 +1,176 @@
+package com.tlvlp.iot.server.mcu;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.flogger.Flogger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ordered ingress lane of the {@link IngressDispatcher}.
+ * Collects the ingress messages into micro-batches that are processed in a single transaction.
+ * A batch is closed when it reaches the maximum size or when the maximum linger time passes after its first message.
+ * Batches are processed one after the other by the single worker of the lane, so the message order is kept.
+ * A batch size of 1 falls back to one transaction per message.
+ */
+@Flogger
+class IngressLane {
+
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final Integer index;
+    private final McuService mcuService;
+    private final Integer maxBatchSize;
+    private final Long maxLingerNanos;
+    private final IngressQueue queue;
+    private final ExecutorService worker;
+    private volatile boolean isRunning;
+
+    private final Counter committedBatches;
+    private final Counter failedBatches;
+    private final DistributionSummary batchSizes;
+    private final Timer batchTimer;
+    private final Timer ingressLatency;
+
+    IngressLane(Integer index, McuService mcuService, MeterRegistry meterRegistry, IngressQueue queue,
+                Integer maxBatchSize, Long maxLingerNanos) {
+        this.index = index;
+        this.mcuService = mcuService;
+        this.queue = queue;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = maxLingerNanos;
+        this.worker = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "ingress-lane-" + index));
+
+        var tags = Tags.of("lane", String.valueOf(index));
+        this.committedBatches = Counter.builder("mcu.ingress.batches.committed")
+                .description("Ingress batches committed in a single transaction.")
+                .tags(tags)
+                .register(meterRegistry);
+        this.failedBatches = Counter.builder("mcu.ingress.batches.failed")
+                .description("Ingress batches that were rolled back and retried message by message.")
+                .tags(tags)
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("mcu.ingress.batch.size")
+                .description("Number of messages in the committed ingress batches.")
+                .tags(tags)
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("mcu.ingress.batch.duration")
+                .description("Processing time of an ingress batch including the commit.")
+                .tags(tags)
+                .register(meterRegistry);
+        // Shared by the lanes, so the latency histogram is not multiplied by the number of lanes.
+        this.ingressLatency = Timer.builder("mcu.ingress.latency")
+                .description("End-to-end time from the MQTT receipt of a message to the commit of its batch.")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(meterRegistry);
+        Gauge.builder("mcu.ingress.queue.size", queue::size)
+                .description("Number of pending ingress messages.")
+                .tags(tags)
+                .register(meterRegistry);
+        Gauge.builder("mcu.ingress.lag.ms", queue::getLagMillis)
+                .description("Waiting time of the oldest pending ingress message.")
+                .tags(tags)
+                .register(meterRegistry);
+    }
+
+    void start() {
+        isRunning = true;
+        worker.submit(this::processBatches);
+    }
+
+    /**
+     * Stops the lane after the queued messages are processed.
+     */
+    void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        log.atInfo().log("Stopping ingress lane %d, remaining messages: %d", index, queue.size());
+        isRunning = false;
+        worker.shutdown();
+        worker.awaitTermination(timeout, unit);
+    }
+
+    IngressQueue.Result offer(IngressMessage message) {
+        return queue.offer(message);
+    }
+
+    IngressQueue getQueue() {
+        return queue;
+    }
+
+    private void processBatches() {
+        var batch = new ArrayList<IngressMessage>(maxBatchSize);
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                var deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    var remaining = deadline - System.nanoTime();
+                    var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                processBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.atSevere().withCause(e).log("Unexpected error in ingress lane %d.", index);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void processBatch(List<IngressMessage> batch) {
+        if (batch.size() > 1) {
+            try {
+                batchTimer.record(() -> mcuService.handleIngressBatch(batch));
+                recordLatency(batch);
+                committedBatches.increment();
+                batchSizes.record(batch.size());
+                return;
+            } catch (Exception e) {
+                failedBatches.increment();
+                log.atWarning().log("Ingress batch of %d messages was rolled back, retrying them one by one: %s",
+                        batch.size(), e.getMessage());
+            }
+        }
+        // A failing message only rolls back itself.
+        batch.forEach(message -> {
+            try {
+                batchTimer.record(() -> mcuService.handleIngressBatch(List.of(message)));
+                recordLatency(List.of(message));
+                committedBatches.increment();
+                batchSizes.record(1);
+            } catch (Exception e) {
+                log.atSevere().log("Unable to handle ingress message: %s %n%s", message, e.getMessage());
+            }
+        });
+    }
+
+    private void recordLatency(List<IngressMessage> committed) {
+        var committedAtNanos = System.nanoTime();
+        for (IngressMessage message : committed) {
+            ingressLatency.record(committedAtNanos - message.getReceivedAtNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
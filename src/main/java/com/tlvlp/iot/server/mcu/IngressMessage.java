@@ -0,0 +1,33 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+/**
+ * An ingress message from an MCU, parsed from the MQTT payload by the {@link IngressMessageParser}.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class IngressMessage {
+
+    private GlobalTopics topic;
+    private String project;
+    private String unitName;
+    private String error;
+    /**
+     * Null if the payload has no modules field, as opposed to an empty list of modules.
+     */
+    private List<ModuleDTO> modules;
+    @ToString.Exclude
+    private long receivedAtNanos = System.nanoTime();
+
+}
@@ -0,0 +1,144 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.buffer.Buffer;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser for the MCU ingress payloads.
+ * The MQTT payload is read once, token by token, straight into an {@link IngressMessage}
+ * without building an intermediate JSON tree or String copies of the payload.
+ * <p>
+ * Payload format: {"id": {"project": "..", "unitName": ".."}, "error": "..", "modules": [{"module": "..", "name": "..", "value": 1.0}]}
+ * A missing modules field is kept apart from an empty modules array, the modules are left null.
+ */
+@ApplicationScoped
+public class IngressMessageParser {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    public IngressMessage parse(Message message) {
+        var topic = GlobalTopics.fromTopic(message.topic())
+                .filter(GlobalTopics::isIngress)
+                .orElseThrow(() -> new UnitException(String.format("Unrecognized topic name: %s", message.topic())));
+        var ingressMessage = new IngressMessage()
+                .setTopic(topic)
+                .setReceivedAtNanos(message.receivedAtNanos());
+        try (var parser = createParser(message.payload())) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT, "payload");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.getCurrentName();
+                var token = parser.nextToken();
+                switch (field) {
+                    case "id":
+                        expect(token, JsonToken.START_OBJECT, field);
+                        parseId(parser, ingressMessage);
+                        break;
+                    case "error":
+                        ingressMessage.setError(scalarValue(parser, token, field));
+                        break;
+                    case "modules":
+                        expect(token, JsonToken.START_ARRAY, field);
+                        parseModules(parser, ingressMessage);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new UnitException(String.format("Unable to parse ingress message payload: %s", e.getMessage()), e);
+        }
+        if (ingressMessage.getProject() == null || ingressMessage.getUnitName() == null) {
+            throw new UnitException("Missing unit id in ingress message payload.");
+        }
+        return ingressMessage;
+    }
+
+    private JsonParser createParser(Buffer payload) throws IOException {
+        var byteBuf = payload.getByteBuf();
+        if (byteBuf.hasArray()) {
+            return jsonFactory.createParser(
+                    byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), byteBuf.readableBytes());
+        }
+        return jsonFactory.createParser((InputStream) new ByteBufInputStream(byteBuf));
+    }
+
+    private void parseId(JsonParser parser, IngressMessage ingressMessage) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            var token = parser.nextToken();
+            switch (field) {
+                case "project":
+                    ingressMessage.setProject(scalarValue(parser, token, field));
+                    break;
+                case "unitName":
+                    ingressMessage.setUnitName(scalarValue(parser, token, field));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseModules(JsonParser parser, IngressMessage ingressMessage) throws IOException {
+        var modules = new ArrayList<ModuleDTO>();
+        ingressMessage.setModules(modules);
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            var module = new ModuleDTO();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.getCurrentName();
+                token = parser.nextToken();
+                switch (field) {
+                    case "module":
+                        module.setModule(scalarValue(parser, token, field));
+                        break;
+                    case "name":
+                        module.setName(scalarValue(parser, token, field));
+                        break;
+                    case "value":
+                        if (!token.isNumeric()) {
+                            throw new UnitException(String.format("Module value is not a number: %s", parser.getText()));
+                        }
+                        module.setValue(parser.getDoubleValue());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (module.getModule() == null || module.getName() == null || module.getValue() == null) {
+                throw new UnitException(String.format("Incomplete module in ingress message payload: %s", module));
+            }
+            modules.add(module);
+        }
+        expect(token, JsonToken.END_ARRAY, "modules");
+    }
+
+    /**
+     * An object or array in place of a text field rejects the message,
+     * instead of leaving the parser inside it and reading its fields as the ones of the enclosing object.
+     */
+    private String scalarValue(JsonParser parser, JsonToken token, String field) throws IOException {
+        if (token == null || !token.isScalarValue()) {
+            throw new UnitException(String.format("Invalid ingress message payload, expected a value for %s but found %s",
+                    field, token));
+        }
+        return parser.getValueAsString();
+    }
+
+    private void expect(JsonToken actual, JsonToken expected, String field) {
+        if (actual != expected) {
+            throw new UnitException(String.format("Invalid ingress message payload, expected %s for %s but found %s",
+                    expected, field, actual));
+        }
+    }
+}
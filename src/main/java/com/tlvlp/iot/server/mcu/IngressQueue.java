@@ -0,0 +1,179 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import lombok.Value;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO queue of an {@link IngressLane} with overload handling.
+ * When the queue is full and the policy is {@link OverloadPolicy#COALESCE}:
+ * <ul>
+ *     <li>A status message replaces the pending status message of the same unit,
+ *     if that is the last pending message of the unit, so the unit's message order is kept.
+ *     The replacement keeps the receipt time of the replaced message, so the lag is not understated.
+ *     Any other status message is shed.</li>
+ *     <li>Error and inactive messages are kept by shedding the oldest pending status message.
+ *     If there is none, they are queued over the capacity, they are never shed.</li>
+ * </ul>
+ * With {@link OverloadPolicy#SHED} every new message is shed while the queue is full.
+ */
+class IngressQueue {
+
+    public enum OverloadPolicy {
+        COALESCE, SHED
+    }
+
+    public enum Result {
+        ACCEPTED, COALESCED, SHED
+    }
+
+    private final Integer capacity;
+    private final OverloadPolicy overloadPolicy;
+    private final ArrayDeque<Entry> entries;
+    private final Map<UnitKey, Entry> lastEntryByUnit = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    IngressQueue(Integer capacity, OverloadPolicy overloadPolicy) {
+        this.capacity = capacity;
+        this.overloadPolicy = overloadPolicy;
+        this.entries = new ArrayDeque<>(Math.min(capacity, 1024));
+    }
+
+    Result offer(IngressMessage message) {
+        var unitKey = new UnitKey(message.getProject(), message.getUnitName());
+        lock.lock();
+        try {
+            var result = Result.ACCEPTED;
+            if (entries.size() >= capacity) {
+                result = makeSpace(message, unitKey);
+                if (result == Result.SHED) {
+                    return result;
+                }
+                if (result == Result.COALESCED) {
+                    var lastEntry = lastEntryByUnit.get(unitKey);
+                    message.setReceivedAtNanos(lastEntry.message.getReceivedAtNanos());
+                    lastEntry.message = message;
+                    return result;
+                }
+            }
+            var entry = new Entry(unitKey, message);
+            entries.addLast(entry);
+            lastEntryByUnit.put(unitKey, entry);
+            notEmpty.signal();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Result makeSpace(IngressMessage message, UnitKey unitKey) {
+        if (overloadPolicy == OverloadPolicy.SHED) {
+            return Result.SHED;
+        }
+        if (message.getTopic() == GlobalTopics.GLOBAL_STATUS) {
+            var lastEntry = lastEntryByUnit.get(unitKey);
+            var isCoalescable = lastEntry != null && lastEntry.message.getTopic() == GlobalTopics.GLOBAL_STATUS;
+            return isCoalescable ? Result.COALESCED : Result.SHED;
+        }
+        var iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.message.getTopic() == GlobalTopics.GLOBAL_STATUS) {
+                iterator.remove();
+                lastEntryByUnit.remove(entry.unitKey, entry);
+                return Result.ACCEPTED;
+            }
+        }
+        return Result.ACCEPTED;
+    }
+
+    IngressMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        var nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int drainTo(Collection<IngressMessage> target, int maxElements) {
+        lock.lock();
+        try {
+            var count = 0;
+            while (count < maxElements && !entries.isEmpty()) {
+                target.add(removeFirst());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private IngressMessage removeFirst() {
+        var entry = entries.pollFirst();
+        lastEntryByUnit.remove(entry.unitKey, entry);
+        return entry.message;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isSaturated() {
+        return size() >= capacity;
+    }
+
+    /**
+     * @return the time the oldest pending message has been waiting, in milliseconds.
+     */
+    long getLagMillis() {
+        lock.lock();
+        try {
+            var oldest = entries.peekFirst();
+            return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.message.getReceivedAtNanos());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Value
+    private static class UnitKey {
+        String project;
+        String unitName;
+    }
+
+    private static class Entry {
+        private final UnitKey unitKey;
+        private IngressMessage message;
+
+        private Entry(UnitKey unitKey, IngressMessage message) {
+            this.unitKey = unitKey;
+            this.message = message;
+        }
+    }
+}
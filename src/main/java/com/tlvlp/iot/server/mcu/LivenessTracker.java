@@ -0,0 +1,194 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.vertx.core.Vertx;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.interceptor.Interceptor;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the heartbeat deadline of the active units in memory and hands over the ones that went silent
+ * to {@link McuService#inactivateSilentUnits(SilentUnits)} on the "unit_silent" address, in a single batch per tick.
+ * <p>
+ * The deadlines are kept in a hashed timer wheel with a slot for every tick of the heartbeat timeout.
+ * A refresh only replaces the deadline of the unit, it is not moved between the slots:
+ * when its slot is reached, a unit with a later deadline is put in the slot of that deadline.
+ * The wheel is seeded from the McuRegistry on startup, the units table is never polled.
+ */
+@Flogger
+@ApplicationScoped
+public class LivenessTracker {
+
+    /**
+     * A forgotten unit stays in its slot until it is reached, so a refresh in the meantime does not add it twice.
+     */
+    private static final long FORGOTTEN = Long.MIN_VALUE;
+
+    private final Vertx vertx;
+    private final EventBus eventBus;
+    private final McuRegistry registry;
+    private final boolean isEnabled;
+    private final long timeoutMillis;
+    private final long tickMillis;
+
+    private final ConcurrentMap<Long, Long> deadlines = new ConcurrentHashMap<>();
+    private final Queue<Long>[] wheel;
+    private volatile long nextTick;
+
+    private final Counter expiredUnits;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LivenessTracker(Vertx vertx,
+                           EventBus eventBus,
+                           McuRegistry registry,
+                           MeterRegistry meterRegistry,
+                           @ConfigProperty(name = "mcu.liveness.enabled", defaultValue = "true") Boolean isEnabled,
+                           @ConfigProperty(name = "mcu.liveness.heartbeat-timeout-seconds", defaultValue = "600") Long timeoutSeconds,
+                           @ConfigProperty(name = "mcu.liveness.tick-millis", defaultValue = "1000") Long tickMillis) {
+        this.vertx = vertx;
+        this.eventBus = eventBus;
+        this.registry = registry;
+        this.isEnabled = isEnabled;
+        this.timeoutMillis = timeoutSeconds * 1000;
+        this.tickMillis = tickMillis;
+        // A deadline is at most a timeout ahead, so it never wraps around the wheel.
+        var slots = (int) Math.max(2, (timeoutMillis + tickMillis - 1) / tickMillis + 2);
+        this.wheel = new Queue[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.nextTick = System.currentTimeMillis() / tickMillis;
+
+        this.expiredUnits = Counter.builder("mcu.liveness.expired")
+                .description("Active units that went silent for longer than the heartbeat timeout.")
+                .register(meterRegistry);
+        meterRegistry.gaugeMapSize("mcu.liveness.tracked", List.of(), deadlines);
+    }
+
+    /**
+     * Runs after the McuRegistry is loaded, the active units are due at their last seen time plus the timeout.
+     */
+    void start(@Observes @Priority(Interceptor.Priority.APPLICATION + 600) StartupEvent event) {
+        if (!isEnabled) {
+            log.atInfo().log("The liveness tracker is disabled, silent units are not inactivated.");
+            return;
+        }
+        var units = registry.findActiveUnits();
+        units.forEach(unit -> schedule(unit.getId(), unit.getLastSeenUtc() == null
+                ? System.currentTimeMillis() + timeoutMillis
+                : unit.getLastSeenUtc().toInstant().toEpochMilli() + timeoutMillis));
+        vertx.setPeriodic(tickMillis, id -> tick());
+        log.atInfo().log("The liveness tracker is started with %d active units and a heartbeat timeout of %d seconds.",
+                units.size(), timeoutMillis / 1000);
+    }
+
+    /**
+     * The unit was seen, its deadline is pushed a timeout ahead.
+     */
+    public void refresh(Long unitId) {
+        if (isEnabled) {
+            schedule(unitId, System.currentTimeMillis() + timeoutMillis);
+        }
+    }
+
+    /**
+     * The unit is inactive, it is not tracked until it is seen again.
+     */
+    public void forget(Long unitId) {
+        deadlines.computeIfPresent(unitId, (id, deadline) -> FORGOTTEN);
+    }
+
+    /**
+     * @return the last seen time of the units that are inactivated now, the ones seen after it are kept active.
+     */
+    public ZonedDateTime getSilenceCutoff() {
+        return ZonedDateTime.now(ZoneOffset.UTC).minus(Duration.ofMillis(timeoutMillis));
+    }
+
+    private void schedule(Long unitId, long deadline) {
+        if (deadlines.put(unitId, deadline) == null) {
+            slot(deadline).add(unitId);
+        }
+    }
+
+    private Queue<Long> slot(long deadline) {
+        // An overdue deadline goes to the next slot instead of a full round later.
+        var tick = Math.max(Math.floorDiv(deadline, tickMillis), nextTick);
+        return wheel[(int) Math.floorMod(tick, (long) wheel.length)];
+    }
+
+    /**
+     * Advances the wheel to the current time on the event loop.
+     */
+    private void tick() {
+        var now = System.currentTimeMillis();
+        var currentTick = now / tickMillis;
+        var expired = new ArrayList<Long>();
+        for (var tick = nextTick; tick <= currentTick; tick++) {
+            var slot = wheel[(int) Math.floorMod(tick, (long) wheel.length)];
+            nextTick = tick + 1;
+            for (int size = slot.size(); size > 0; size--) {
+                var unitId = slot.poll();
+                if (unitId == null) {
+                    break;
+                }
+                expireOrReschedule(unitId, now, expired);
+            }
+        }
+        if (!expired.isEmpty()) {
+            expiredUnits.increment(expired.size());
+            log.atInfo().log("%d units went silent for longer than %d seconds.", expired.size(), timeoutMillis / 1000);
+            eventBus.sendAndForget("unit_silent", new SilentUnits(expired), McuService.LOCAL_DELIVERY);
+        }
+    }
+
+    private void expireOrReschedule(Long unitId, long now, List<Long> expired) {
+        while (true) {
+            var deadline = deadlines.get(unitId);
+            if (deadline == null) {
+                return;
+            }
+            if (deadline == FORGOTTEN) {
+                if (deadlines.remove(unitId, FORGOTTEN)) {
+                    return;
+                }
+                continue;
+            }
+            if (deadline > now) {
+                slot(deadline).add(unitId);
+                return;
+            }
+            if (deadlines.remove(unitId, deadline)) {
+                expired.add(unitId);
+                return;
+            }
+            // Refreshed in the meantime.
+        }
+    }
+
+    /**
+     * The units that went silent in a tick.
+     */
+    @Value
+    public static class SilentUnits {
+        List<Long> unitIds;
+    }
+}
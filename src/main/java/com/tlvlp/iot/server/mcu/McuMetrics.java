@@ -0,0 +1,70 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.persistence.TransactionCallbacks;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Meters of the {@link McuService}.
+ * All of them are registered up front, so the hot path does not look them up in the registry.
+ * The unit and module lifecycle events are only counted when their transaction is committed.
+ */
+@Getter
+@ApplicationScoped
+class McuMetrics {
+
+    private final Timer statusHandlerTimer;
+    private final Timer errorHandlerTimer;
+    private final Timer inactiveHandlerTimer;
+    private final Timer controlHandlerTimer;
+
+    private final Counter unitsCreated;
+    private final Counter unitsReactivated;
+    private final Counter unitsInactivated;
+    private final Counter modulesCreated;
+    private final Counter modulesReactivated;
+    private final Counter modulesInactivated;
+
+    @Getter(AccessLevel.NONE)
+    private final TransactionCallbacks transactionCallbacks;
+
+    McuMetrics(MeterRegistry meterRegistry, TransactionCallbacks transactionCallbacks) {
+        this.transactionCallbacks = transactionCallbacks;
+        this.statusHandlerTimer = handlerTimer(meterRegistry, "status");
+        this.errorHandlerTimer = handlerTimer(meterRegistry, "error");
+        this.inactiveHandlerTimer = handlerTimer(meterRegistry, "inactive");
+        this.controlHandlerTimer = handlerTimer(meterRegistry, "control");
+        this.unitsCreated = lifecycleCounter(meterRegistry, "mcu.units", "created");
+        this.unitsReactivated = lifecycleCounter(meterRegistry, "mcu.units", "reactivated");
+        this.unitsInactivated = lifecycleCounter(meterRegistry, "mcu.units", "inactivated");
+        this.modulesCreated = lifecycleCounter(meterRegistry, "mcu.modules", "created");
+        this.modulesReactivated = lifecycleCounter(meterRegistry, "mcu.modules", "reactivated");
+        this.modulesInactivated = lifecycleCounter(meterRegistry, "mcu.modules", "inactivated");
+    }
+
+    /**
+     * Increments the counter after the current transaction is committed, or right away without a transaction.
+     */
+    void countOnCommit(Counter counter) {
+        transactionCallbacks.afterCommit(counter::increment);
+    }
+
+    private static Timer handlerTimer(MeterRegistry meterRegistry, String handler) {
+        return Timer.builder("mcu.handler.duration")
+                .description("Processing time of a message by the McuService, without the commit.")
+                .tag("handler", handler)
+                .register(meterRegistry);
+    }
+
+    private static Counter lifecycleCounter(MeterRegistry meterRegistry, String name, String event) {
+        return Counter.builder(name)
+                .description("Lifecycle events of the units and modules.")
+                .tag("event", event)
+                .register(meterRegistry);
+    }
+}
@@ -1,29 +1,34 @@
 package com.tlvlp.iot.server.mcu;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.history.ModuleHistoryService;
 import com.tlvlp.iot.server.mqtt.Message;
 import com.tlvlp.iot.server.mqtt.MessageService;
+import com.tlvlp.iot.server.persistence.EntityStreamer;
 import com.tlvlp.iot.server.persistence.ModuleRepository;
+import com.tlvlp.iot.server.persistence.TransactionCallbacks;
 import com.tlvlp.iot.server.persistence.UnitLogRepository;
+import com.tlvlp.iot.server.persistence.UnitLogWriter;
 import com.tlvlp.iot.server.persistence.UnitRepository;
+import com.tlvlp.iot.server.scheduler.ScheduledControlDispatcher;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.panache.common.Sort;
 import io.quarkus.runtime.Startup;
 import io.quarkus.vertx.ConsumeEvent;
-import io.smallrye.mutiny.Multi;
+import io.quarkus.vertx.LocalEventBusCodec;
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.json.Json;
-import io.vertx.core.json.JsonObject;
 import io.vertx.mutiny.core.eventbus.EventBus;
 import lombok.extern.flogger.Flogger;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.transaction.Transactional;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -36,116 +41,289 @@ import static java.util.stream.Collectors.*;
 @ApplicationScoped
 public class McuService {
 
+    /**
+     * The unit events are only published to local consumers, they are passed by reference without a wire codec.
+     */
+    private static final String LOCAL_CODEC = "mcu-local";
+    public static final DeliveryOptions LOCAL_DELIVERY = new DeliveryOptions().setCodecName(LOCAL_CODEC);
+
     private final EventBus eventBus;
-    private final ObjectMapper jsonMapper;
     private final MessageService messageService;
     private final UnitRepository unitRepository;
     private final ModuleRepository moduleRepository;
     private final UnitLogRepository unitLogRepository;
+    private final UnitLogWriter unitLogWriter;
+    private final IngressMessageParser ingressMessageParser;
+    private final ModuleHistoryService moduleHistoryService;
+    private final LivenessTracker livenessTracker;
+    private final ErrorDeduplicator errorDeduplicator;
+    private final UnitReadCache readCache;
+    private final TransactionCallbacks transactionCallbacks;
+    private final McuMetrics metrics;
 
     public McuService(EventBus eventBus,
-                      ObjectMapper jsonMapper,
                       MessageService messageService,
                       UnitRepository unitRepository,
                       ModuleRepository moduleRepository,
-                      UnitLogRepository unitLogRepository) {
+                      UnitLogRepository unitLogRepository,
+                      UnitLogWriter unitLogWriter,
+                      IngressMessageParser ingressMessageParser,
+                      ModuleHistoryService moduleHistoryService,
+                      LivenessTracker livenessTracker,
+                      ErrorDeduplicator errorDeduplicator,
+                      UnitReadCache readCache,
+                      TransactionCallbacks transactionCallbacks,
+                      McuMetrics metrics) {
         this.eventBus = eventBus;
-        this.jsonMapper = jsonMapper;
         this.messageService = messageService;
         this.unitRepository = unitRepository;
         this.moduleRepository = moduleRepository;
         this.unitLogRepository = unitLogRepository;
+        this.unitLogWriter = unitLogWriter;
+        this.ingressMessageParser = ingressMessageParser;
+        this.moduleHistoryService = moduleHistoryService;
+        this.livenessTracker = livenessTracker;
+        this.errorDeduplicator = errorDeduplicator;
+        this.readCache = readCache;
+        this.transactionCallbacks = transactionCallbacks;
+        this.metrics = metrics;
+        eventBus.registerCodec(new LocalEventBusCodec<>(LOCAL_CODEC));
+    }
+
+    /**
+     * @return the JSON of all the units from the {@link UnitReadCache}, read from the database if they changed.
+     */
+    public UnitReadCache.CachedResponse getAllUnits() {
+        try {
+            return readCache.getAllUnits(() -> unitRepository.listAll(Sort.by("id")));
+        } catch (RuntimeException e) {
+            log.atSevere().log("Unable to get all units: %s", e.getMessage());
+            throw e;
+        }
+    }
+
+    public UnitReadCache.CachedResponse getUnitById(Long unitId) {
+        try {
+            return readCache.getUnit(unitId, () -> unitRepository.findById(unitId));
+        } catch (RuntimeException e) {
+            log.atSevere().log("Unable to get unit by id(%s): %s", unitId, e.getMessage());
+            throw e;
+        }
     }
 
-    public Multi<Unit> getAllUnits() {
-        return Multi.createFrom().items(unitRepository.streamAll())
-                .onFailure().invoke(e -> log.atSevere().log("Unable to get all units: %s", e.getMessage()));
+    /**
+     * @param afterId the id of the last log of the previous page, see {@link UnitLogPage#decodeCursor(String)}.
+     */
+    public Uni<UnitLogPage> getUnitLogsByUnitId(Long unitId, Long afterId, ZonedDateTime from, ZonedDateTime to,
+                                                List<UnitLog.Type> types, int limit) {
+        return Uni.createFrom().item(() -> {
+            // One extra log is read to tell if there is a next page.
+            var logs = unitLogRepository.findPageByUnitId(unitId, afterId, from, to, types, limit + 1);
+            var page = new UnitLogPage().setLogs(logs);
+            if (logs.size() > limit) {
+                logs.remove(limit);
+                page.setNextCursor(UnitLogPage.encodeCursor(logs.get(limit - 1).getId()));
+            }
+            return page;
+        }).onFailure().invoke(e -> log.atSevere().log("Unable to get unit logs by unit id(%s): %s", unitId, e.getMessage()));
     }
 
-    public Uni<Unit> getUnitById(Long unitId) {
-        return Uni.createFrom().item(unitRepository.findById(unitId))
-                .onFailure().invoke(e -> log.atSevere().log("Unable to get unit by id(%s): %s", unitId, e.getMessage()));
+    public UnitReadCache.CachedResponse getModulesByUnitId(Long unitId) {
+        try {
+            return readCache.getModules(unitId, () -> moduleRepository.findAllByUnitId(unitId));
+        } catch (RuntimeException e) {
+            log.atSevere().log("Unable to get modules by unit id(%s): %s", unitId, e.getMessage());
+            throw e;
+        }
     }
 
-    public Multi<UnitLog> getUnitLogsByUnitId(Long unitId) {
-        return Multi.createFrom().items(unitLogRepository.findAllByUnitId(unitId).stream())
-                .onFailure().invoke(e -> log.atSevere().log("Unable to get unit logs by unit id(%s): %s", unitId, e.getMessage()));
+    /**
+     * @return the units with all their modules, read with a single query instead of one per unit.
+     */
+    public Uni<List<UnitWithModules>> getUnitsWithModulesByIds(List<Long> unitIds) {
+        return Uni.createFrom().item(() -> unitRepository.findAllWithModulesByIds(unitIds))
+                .onFailure().invoke(e -> log.atSevere().log("Unable to get units with modules by ids%s: %s", unitIds, e.getMessage()));
     }
 
-    public Multi<Module> getModulesByUnitId(Long unitId) {
-        return Multi.createFrom().items(moduleRepository.findAllByUnitId(unitId).stream())
-                .onFailure().invoke(e -> log.atSevere().log("Unable to get modules by unit id(%s): %s", unitId, e.getMessage()));
+    public Uni<List<UnitWithModules>> getUnitsWithModulesByProject(String project) {
+        return Uni.createFrom().item(() -> unitRepository.findAllWithModulesByProject(project))
+                .onFailure().invoke(e -> log.atSevere().log("Unable to get units with modules by project(%s): %s", project, e.getMessage()));
     }
 
-    @ConsumeEvent(value = "unit_control", blocking = true)
-    public Uni<Void> sendScheduledControlMessages(String moduleControlsJson) {
-        try {
-            List<Module> moduleControlsAll = jsonMapper.readValue(moduleControlsJson, new TypeReference<>() {});
-            sendControlMessages(moduleControlsAll);
-        } catch (JsonProcessingException e) {
-            var err = String.format("Unable to send module control messages. Cannot parse message contents: %s", moduleControlsJson);
-            log.atSevere().log(err);
+    /**
+     * Streams every unit with its active modules.
+     */
+    public void streamFleetSnapshot(EntityStreamer.RowHandler<UnitWithModules> handler) throws IOException {
+        unitRepository.forEachUnitWithActiveModules(handler);
+    }
 
-        }
-        return Uni.createFrom().voidItem();
+    public void streamAllUnits(EntityStreamer.RowHandler<Unit> handler) throws IOException {
+        unitRepository.forEachUnit(handler);
+    }
+
+    public void streamModulesByUnitId(Long unitId, EntityStreamer.RowHandler<Module> handler) throws IOException {
+        moduleRepository.forEachModuleByUnitId(unitId, handler);
+    }
+
+    public void streamUnitLogsByUnitId(Long unitId, ZonedDateTime from, ZonedDateTime to, List<UnitLog.Type> types,
+                                       EntityStreamer.RowHandler<UnitLog> handler) throws IOException {
+        unitLogRepository.forEachLogByUnitId(unitId, from, to, types, handler);
+    }
+
+    /**
+     * The module controls of the scheduled events that fired together, see {@link ScheduledControlDispatcher}.
+     * They were parsed and validated when the events were scheduled.
+     */
+    @ConsumeEvent(value = ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS, blocking = true)
+    public Uni<Void> sendScheduledControlMessages(List<Module> moduleControls) {
+        return sendControlMessages(moduleControls)
+                .onFailure().invoke(e -> log.atSevere().log("Unable to send scheduled module control messages: %s", e.getMessage()))
+                .onItem().ignore().andContinueWithNull();
     }
 
     /**
      * Sends out unit control messages for any number of units and modules.
+     * The messages are sent right away, the Uni only waits for their acknowledgements.
      * Note: If a module has more than one instance in the list, then the execution order is not guaranteed.
      *
      * @param moduleControlsAll a list of modified {@link Module}s that will be converted and sent out to control the MCUs.
-     * @return void.
+     * @return the delivery result of every unit.
      */
-    public Uni<Void> sendControlMessages(List<Module> moduleControlsAll) {
+    public Uni<List<UnitControlResult>> sendControlMessages(List<Module> moduleControlsAll) {
+        var sample = Timer.start();
         try {
             Map<Long, List<ModuleDTO>> modulesByUnitIds = moduleControlsAll.stream()
                     .collect(groupingBy(Module::getUnitId, mapping(this::convertModuleToModuleDTO, toList())));
+            var units = unitRepository.findAllByIds(modulesByUnitIds.keySet());
+            var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
+            var unitLogs = new ArrayList<UnitLog>(units.size());
+            var results = new ArrayList<Uni<UnitControlResult>>(modulesByUnitIds.size());
 
             modulesByUnitIds.forEach((unitId, moduleControls) -> {
-                Unit unit = unitRepository.findById(unitId);
+                Unit unit = units.get(unitId);
                 if (unit == null) {
                     log.atSevere().log("Unable to send module control messages to non-existent unit Id:%s, modules:%s",
                             unitId, moduleControls);
+                    results.add(Uni.createFrom().item(UnitControlResult.unitNotFound(unitId)));
                     return;
                 }
 
+                // The unit's own modules are encoded once, the same compact JSON is sent and logged.
                 Buffer body = Json.encodeToBuffer(moduleControls);
-                messageService.sendMessage(getControlTopic(unit), body);
+                results.add(messageService.publish(getControlTopic(unit), body)
+                        .map(publishResult -> UnitControlResult.of(unit, publishResult)));
 
-                var unitLog = new UnitLog()
+                unitLogs.add(new UnitLog()
                         .setUnitId(unit.getId())
-                        .setTimeUtc(ZonedDateTime.now(ZoneOffset.UTC))
+                        .setTimeUtc(timeUtc)
                         .setType(UnitLog.Type.OUTGOING_CONTROL)
-                        .setLogEntry(Json.encodePrettily(moduleControlsAll));
-                unitLogRepository.save(unitLog);
+                        .setLogEntry(body.toString(StandardCharsets.UTF_8)));
             });
+            unitLogWriter.writeAll(unitLogs);
 
-            return Uni.createFrom().voidItem();
+            if (results.isEmpty()) {
+                return Uni.createFrom().item(List.of());
+            }
+            return Uni.combine().all().unis(results)
+                    .combinedWith(unitResults -> unitResults.stream()
+                            .map(UnitControlResult.class::cast)
+                            .collect(toList()));
         } catch (Exception e) {
             return Uni.createFrom().failure(new UnitException(
                     String.format("Unable to send unit control message! Module controls:%s %n%s",
                             moduleControlsAll, e.getMessage())));
+        } finally {
+            sample.stop(metrics.getControlHandlerTimer());
         }
 
     }
 
-    @ConsumeEvent(value = "mqtt_ingress", blocking = true)
+    /**
+     * Sends a single control message to every unit of a project on the project's control topic,
+     * each unit applies the modules that it has. The members are resolved from the McuRegistry
+     * and the broadcast is logged once, on the member with the lowest id.
+     *
+     * @return the delivery result of the broadcast, the Uni only waits for its acknowledgement.
+     */
+    public Uni<BroadcastControlResult> sendBroadcastControl(String project, List<ModuleDTO> moduleControls) {
+        var sample = Timer.start();
+        try {
+            var units = unitRepository.findAllByProject(project);
+            if (units.isEmpty()) {
+                log.atWarning().log("Unable to broadcast module control messages to project without units: %s, modules:%s",
+                        project, moduleControls);
+                return Uni.createFrom().item(BroadcastControlResult.projectNotFound(project));
+            }
+            var unitIds = units.stream().map(Unit::getId).collect(toList());
+
+            Buffer body = Json.encodeToBuffer(moduleControls);
+            var result = messageService.publish(getBroadcastControlTopic(project), body)
+                    .map(publishResult -> BroadcastControlResult.of(project, unitIds, publishResult));
+
+            unitLogWriter.write(new UnitLog()
+                    .setUnitId(unitIds.get(0))
+                    .setTimeUtc(ZonedDateTime.now(ZoneOffset.UTC))
+                    .setType(UnitLog.Type.OUTGOING_CONTROL)
+                    .setLogEntry(String.format("Broadcast to project %s (%d units): %s",
+                            project, unitIds.size(), body.toString(StandardCharsets.UTF_8))));
+            return result;
+        } catch (Exception e) {
+            return Uni.createFrom().failure(new UnitException(
+                    String.format("Unable to send broadcast control message! Project:%s Module controls:%s %n%s",
+                            project, moduleControls, e.getMessage())));
+        } finally {
+            sample.stop(metrics.getControlHandlerTimer());
+        }
+    }
+
+    /**
+     * Inactivates the units that the {@link LivenessTracker} found silent with a single update.
+     * The units that were seen since the tracker's check are left active: the silent units are locked first,
+     * only the locked ones are updated, logged and published.
+     */
+    @ConsumeEvent(value = "unit_silent", blocking = true)
+    @Transactional
+    public void inactivateSilentUnits(LivenessTracker.SilentUnits expired) {
+        var cutoff = livenessTracker.getSilenceCutoff();
+        var units = unitRepository.findAllByIds(expired.getUnitIds());
+        var candidateIds = units.values().stream()
+                .filter(unit -> Boolean.TRUE.equals(unit.getActive()))
+                .filter(unit -> unit.getLastSeenUtc() == null || unit.getLastSeenUtc().isBefore(cutoff))
+                .map(Unit::getId)
+                .collect(toList());
+        if (candidateIds.isEmpty()) {
+            return;
+        }
+        var silentUnitIds = unitRepository.lockSilentUnitIds(candidateIds, cutoff);
+        if (silentUnitIds.isEmpty()) {
+            return;
+        }
+        var inactivated = unitRepository.inactivateAll(silentUnitIds, cutoff);
+        var silentUnits = silentUnitIds.stream().map(units::get).collect(toList());
+
+        var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
+        var unitLogs = new ArrayList<UnitLog>(silentUnits.size());
+        silentUnits.forEach(unit -> {
+            // The bulk update bypasses the save, the registry gets the inactivated copy like after a save.
+            unit.setActive(false);
+            unitRepository.onSaved(unit, false);
+            metrics.countOnCommit(metrics.getUnitsInactivated());
+            unitChangedOnCommit(unit.getId());
+            unitLogs.add(new UnitLog()
+                    .setUnitId(unit.getId())
+                    .setTimeUtc(timeUtc)
+                    .setType(UnitLog.Type.STATUS_CHANGE)
+                    .setLogEntry(String.format("Unit was inactivated, it was last seen at %s.", unit.getLastSeenUtc())));
+            publishOnCommit("unit_inactive", unit);
+        });
+        unitLogWriter.writeAll(unitLogs);
+        log.atInfo().log("Inactivated %d silent units: %s", inactivated, silentUnitIds);
+    }
+
     @Transactional
     public Uni<Void> handleIngressMessage(Message message) {
         try {
-            log.atFine().log("Message event received: %s", message);
-            var body = message.payload();
-            var topic = message.topic();
-            if (topic.equals(GlobalTopics.GLOBAL_STATUS.topic())) {
-                handleStatusMessage(body);
-            } else if (topic.equals(GlobalTopics.GLOBAL_INACTIVE.topic())) {
-                handleInactiveMessage(body);
-            } else if (topic.equals(GlobalTopics.GLOBAL_ERROR.topic())) {
-                handleErrorMessage(body);
-            } else {
-                log.atSevere().log("Unrecognized topic name: %s", topic);
-            }
+            handleIngressMessage(ingressMessageParser.parse(message));
             return Uni.createFrom().voidItem();
         } catch (Exception e) {
             log.atSevere().log("Unable to handle ingress message: %s", e.getMessage());
@@ -153,62 +331,136 @@ public class McuService {
         }
     }
 
-    private void handleErrorMessage(JsonObject body) {
+    /**
+     * Handles a micro-batch of ingress messages in order, in a single transaction that is flushed once on commit.
+     * Any failure rolls back the whole batch.
+     *
+     * @param messages the parsed ingress messages in their order of arrival.
+     */
+    @Transactional
+    public void handleIngressBatch(List<IngressMessage> messages) {
+        messages.forEach(this::handleIngressMessage);
+    }
+
+    private void handleIngressMessage(IngressMessage message) {
+        log.atFine().log("Message event received: %s", message);
+        switch (message.getTopic()) {
+            case GLOBAL_STATUS:
+                metrics.getStatusHandlerTimer().record(() -> handleStatusMessage(message));
+                break;
+            case GLOBAL_INACTIVE:
+                metrics.getInactiveHandlerTimer().record(() -> handleInactiveMessage(message));
+                break;
+            case GLOBAL_ERROR:
+                metrics.getErrorHandlerTimer().record(() -> handleErrorMessage(message));
+                break;
+            default:
+                log.atSevere().log("Unrecognized topic name: %s", message.getTopic());
+        }
+    }
+
+    private void handleErrorMessage(IngressMessage message) {
         var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
-        var unit = getOrCreateUnitFromBody(body)
-                .setActive(true)
-                .setLastSeenUtc(timeUtc);
+        var unit = unitRepository.save(activate(getOrCreateUnit(message))
+                .setLastSeenUtc(timeUtc));
+        unitSeenOnCommit(unit.getId());
+        livenessTracker.refresh(unit.getId());
 
-        var error = Optional.ofNullable(body.getString("error"))
+        var error = Optional.ofNullable(message.getError())
                 .orElseGet(() -> {
                     log.atSevere().log("Missing error message for unit: %s", unit);
                     return "Error message is missing!";
                 });
-        var unitLog = new UnitLog()
-                .setUnitId(unit.getId())
-                .setTimeUtc(timeUtc)
-                .setType(UnitLog.Type.INCOMING_ERROR)
-                .setLogEntry(error);
-        unitLogRepository.save(unitLog);
-
-        eventBus.publish("unit_error", Map.of(
-                "unit", unit,
-                "error", error));
+        // The repeats of the error are folded into one log and published once, after the ingress batch is committed.
+        transactionCallbacks.afterCommit(() -> {
+            if (errorDeduplicator.record(unit.getId(), error, timeUtc)) {
+                eventBus.publish("unit_error", Map.of(
+                        "unit", unit,
+                        "error", error), LOCAL_DELIVERY);
+            }
+        });
     }
 
-    private void handleInactiveMessage(JsonObject body) {
+    private void handleInactiveMessage(IngressMessage message) {
         var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
-        var unit = getOrCreateUnitFromBody(body)
-                .setActive(false);
+        var unit = getOrCreateUnit(message);
+        if (Boolean.TRUE.equals(unit.getActive())) {
+            metrics.countOnCommit(metrics.getUnitsInactivated());
+        }
+        unit.setActive(false);
         if (unit.getLastSeenUtc() == null) {
             // Keep last seen data if present.
             unit.setLastSeenUtc(ZonedDateTime.now(ZoneOffset.UTC));
         }
-        var unitSaved = unitRepository.saveAndFlush(unit);
+        var unitSaved = unitRepository.save(unit);
+        unitChangedOnCommit(unitSaved.getId());
+        livenessTracker.forget(unitSaved.getId());
 
         var unitLog = new UnitLog()
                 .setUnitId(unitSaved.getId())
                 .setTimeUtc(timeUtc)
                 .setType(UnitLog.Type.INCOMING_INACTIVE)
                 .setLogEntry("Unit is inactive.");
-        unitLogRepository.save(unitLog);
+        unitLogWriter.write(unitLog);
 
-        eventBus.publish("unit_inactive", unitSaved);
+        publishOnCommit("unit_inactive", unitSaved);
     }
 
-    private void handleStatusMessage(JsonObject body) {
+    private void handleStatusMessage(IngressMessage message) {
         var timeUtc = ZonedDateTime.now(ZoneOffset.UTC);
-        var unit = getOrCreateUnitFromBody(body)
-                .setActive(true)
+        var unit = activate(getOrCreateUnit(message))
                 .setLastSeenUtc(timeUtc);
-        var savedUnit = unitRepository.saveAndFlush(unit);
-        updateOrCreateModulesFromBody(savedUnit, body);
+        var savedUnit = unitRepository.save(unit);
+        unitSeenOnCommit(savedUnit.getId());
+        livenessTracker.refresh(savedUnit.getId());
+        // Without a modules field the status is only a check-in, the modules of the unit are left as they are.
+        if (message.getModules() != null) {
+            updateOrCreateModules(savedUnit, message.getModules(), timeUtc);
+        }
     }
 
-    private Unit getOrCreateUnitFromBody(JsonObject body) {
-        var idJson = body.getJsonObject("id");
-        var project = idJson.getString("project");
-        var name = idJson.getString("unitName");
+    private Unit activate(Unit unit) {
+        if (Boolean.FALSE.equals(unit.getActive())) {
+            metrics.countOnCommit(metrics.getUnitsReactivated());
+            unit.setActive(true);
+            unitChangedOnCommit(unit.getId());
+            publishChange(UnitChange.ofUnit(unit, ZonedDateTime.now(ZoneOffset.UTC)));
+        }
+        return unit.setActive(true);
+    }
+
+    /**
+     * The live stream only gets the changes of the committed ingress batches, see {@link UnitChangeStream}.
+     */
+    private void publishChange(UnitChange change) {
+        publishOnCommit(UnitChangeStream.UNIT_CHANGE_ADDRESS, change);
+    }
+
+    private void publishOnCommit(String address, Object message) {
+        transactionCallbacks.afterCommit(() -> eventBus.publish(address, message, LOCAL_DELIVERY));
+    }
+
+    /**
+     * The cached responses of the unit are only invalidated by committed changes, see {@link UnitReadCache}.
+     */
+    private void unitChangedOnCommit(Long unitId) {
+        transactionCallbacks.afterCommit(() -> readCache.unitChanged(unitId));
+    }
+
+    /**
+     * A check-in that only changed the last seen time of the unit.
+     */
+    private void unitSeenOnCommit(Long unitId) {
+        transactionCallbacks.afterCommit(() -> readCache.unitSeen(unitId));
+    }
+
+    private void modulesChangedOnCommit(Long unitId) {
+        transactionCallbacks.afterCommit(() -> readCache.modulesChanged(unitId));
+    }
+
+    private Unit getOrCreateUnit(IngressMessage message) {
+        var project = message.getProject();
+        var name = message.getUnitName();
 
         return unitRepository
                 .findByProjectAndName(project, name)
@@ -223,16 +475,19 @@ public class McuService {
                 .setName(name)
                 .setActive(true)
                 .setLastSeenUtc(timeUtc);
-        var unitSaved = unitRepository.saveAndFlush(unit);
+        var unitSaved = unitRepository.save(unit);
 
         var unitLog = new UnitLog()
                 .setUnitId(unitSaved.getId())
                 .setTimeUtc(timeUtc)
                 .setType(UnitLog.Type.STATUS_CHANGE)
                 .setLogEntry("New Unit was registered.");
-        unitLogRepository.save(unitLog);
+        unitLogWriter.write(unitLog);
 
         log.atInfo().log("New Unit was registered: %s", unitSaved);
+        metrics.countOnCommit(metrics.getUnitsCreated());
+        unitChangedOnCommit(unitSaved.getId());
+        publishChange(UnitChange.ofUnit(unitSaved, timeUtc));
 
         return unitSaved;
     }
@@ -241,12 +496,21 @@ public class McuService {
         return String.format("/units/%s-%s/control", unit.getProject(), unit.getName());
     }
 
-    private void updateOrCreateModulesFromBody(Unit unit, JsonObject body) {
+    /**
+     * Subscribed by every unit of the project next to its own control topic.
+     */
+    private String getBroadcastControlTopic(String project) {
+        return String.format("/projects/%s/control", project);
+    }
+
+    private void updateOrCreateModules(Unit unit, List<ModuleDTO> moduleDTOs, ZonedDateTime timeUtc) {
         Long unitId = unit.getId();
-        var newModules = body.getJsonArray("modules")
-                .stream()
-                .map(moduleDtoObj -> Json.decodeValue(String.valueOf(moduleDtoObj), ModuleDTO.class))
-                .map(moduleDTO -> updateOrCreateModule(unitId, moduleDTO))
+        var newModules = moduleDTOs.stream()
+                .map(moduleDTO -> {
+                    var module = updateOrCreateModule(unit, moduleDTO);
+                    moduleHistoryService.record(module.getId(), timeUtc, moduleDTO.getValue());
+                    return module;
+                })
                 .collect(Collectors.toSet());
 
         // Check for modules that are active in the DB but are no longer present in the status summary and inactivate them.
@@ -256,27 +520,32 @@ public class McuService {
                 .forEach(module -> {
                     module.setActive(false);
                     moduleRepository.save(module);
+                    publishChange(UnitChange.ofModule(unit, module, timeUtc));
+                    modulesChangedOnCommit(unitId);
 
                     var updateMessage = String.format("Module was inactivated: %s", module);
 
                     log.atInfo().log(updateMessage);
+                    metrics.countOnCommit(metrics.getModulesInactivated());
 
                     var unitLog = new UnitLog()
                             .setUnitId(unitId)
                             .setTimeUtc(ZonedDateTime.now(ZoneOffset.UTC))
                             .setType(UnitLog.Type.STATUS_CHANGE)
                             .setLogEntry(updateMessage);
-                    unitLogRepository.save(unitLog);
+                    unitLogWriter.write(unitLog);
                 });
     }
 
-    private Module updateOrCreateModule(Long unitId, ModuleDTO dto) {
+    private Module updateOrCreateModule(Unit unit, ModuleDTO dto) {
+        var unitId = unit.getId();
         var moduleType = dto.getModule();
         var name = dto.getName();
         var value = dto.getValue();
 
         var moduleDb = moduleRepository.findByUnitIdAndModuleAndName(unitId, moduleType, name)
-                .orElseGet(() -> createAndPersistNewModule(unitId, moduleType, name, value));
+                .orElseGet(() -> createAndPersistNewModule(unit, moduleType, name, value));
+        var isChanged = false;
 
         // Reactivation
         if (!moduleDb.getActive().equals(true)) {
@@ -287,27 +556,38 @@ public class McuService {
                     .setTimeUtc(ZonedDateTime.now(ZoneOffset.UTC))
                     .setType(UnitLog.Type.STATUS_CHANGE)
                     .setLogEntry(msg);
-            unitLogRepository.save(unitLog);
+            unitLogWriter.write(unitLog);
             log.atInfo().log(msg);
+            metrics.countOnCommit(metrics.getModulesReactivated());
+            isChanged = true;
         }
 
         // Value change
         if (!moduleDb.getValue().equals(value)) {
             moduleDb.setValue(value);
             log.atFine().log("Module value was updated: %s", moduleDb);
+            isChanged = true;
         }
 
-        return moduleDb;
+        if (!isChanged) {
+            return moduleDb;
+        }
+        // Modules from the McuRegistry are detached, so changes have to be saved explicitly.
+        var moduleSaved = moduleRepository.save(moduleDb);
+        publishChange(UnitChange.ofModule(unit, moduleSaved, ZonedDateTime.now(ZoneOffset.UTC)));
+        modulesChangedOnCommit(unitId);
+        return moduleSaved;
     }
 
-    private Module createAndPersistNewModule(Long unitId, String moduleType, String name, Double value) {
+    private Module createAndPersistNewModule(Unit unit, String moduleType, String name, Double value) {
+        var unitId = unit.getId();
         var module = new Module()
                 .setUnitId(unitId)
                 .setModule(moduleType)
                 .setName(name)
                 .setValue(value)
                 .setActive(true);
-        var moduleSaved = moduleRepository.saveAndFlush(module);
+        var moduleSaved = moduleRepository.save(module);
 
         var newModuleMessage = String.format("New Module was registered: %s", moduleSaved);
 
@@ -316,9 +596,12 @@ public class McuService {
                 .setTimeUtc(ZonedDateTime.now(ZoneOffset.UTC))
                 .setType(UnitLog.Type.STATUS_CHANGE)
                 .setLogEntry(newModuleMessage);
-        unitLogRepository.save(unitLog);
+        unitLogWriter.write(unitLog);
 
         log.atInfo().log(newModuleMessage);
+        metrics.countOnCommit(metrics.getModulesCreated());
+        publishChange(UnitChange.ofModule(unit, moduleSaved, ZonedDateTime.now(ZoneOffset.UTC)));
+        modulesChangedOnCommit(unitId);
 
         return moduleSaved;
     }
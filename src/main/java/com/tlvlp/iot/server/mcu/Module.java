@@ -13,6 +13,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
@@ -33,7 +34,10 @@ import java.io.Serializable;
 public class Module implements Serializable {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "modules_id")
+    @TableGenerator(name = "modules_id", catalog = "tlvlp_iot", table = "id_sequences",
+            pkColumnName = "sequence_name", valueColumnName = "next_val", pkColumnValue = "modules",
+            allocationSize = 50)
     private Long id;
 
     @NotNull
@@ -14,6 +14,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import java.io.Serializable;
@@ -33,7 +34,10 @@ import java.time.ZonedDateTime;
 public class Unit implements Serializable {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "units_id")
+    @TableGenerator(name = "units_id", catalog = "tlvlp_iot", table = "id_sequences",
+            pkColumnName = "sequence_name", valueColumnName = "next_val", pkColumnValue = "units",
+            allocationSize = 50)
     private Long id;
 
     @NotBlank
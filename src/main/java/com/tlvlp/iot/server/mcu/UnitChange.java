@@ -0,0 +1,69 @@
+package com.tlvlp.iot.server.mcu;
+
+import lombok.Value;
+
+import java.time.ZonedDateTime;
+
+/**
+ * An immutable snapshot of a unit or module change, pushed to the live stream clients by the {@link UnitChangeStream}.
+ * The {@link Unit}s and {@link Module}s are updated in place in the McuRegistry, so the changes copy their state.
+ */
+@Value
+public class UnitChange {
+
+    public enum Type {
+        /**
+         * The unit was registered, reactivated or inactivated.
+         */
+        UNIT,
+        /**
+         * The module was registered, its value was updated, or it was reactivated or inactivated.
+         */
+        MODULE,
+        /**
+         * The unit reported an error, the repeats within the error window are not pushed again.
+         */
+        ERROR
+    }
+
+    Type type;
+    Long unitId;
+    String project;
+    String unitName;
+    Long moduleId;
+    String module;
+    String moduleName;
+    Double value;
+    Boolean active;
+    String error;
+    ZonedDateTime timeUtc;
+
+    public static UnitChange ofUnit(Unit unit, ZonedDateTime timeUtc) {
+        return new UnitChange(Type.UNIT, unit.getId(), unit.getProject(), unit.getName(),
+                null, null, null, null, unit.getActive(), null, timeUtc);
+    }
+
+    public static UnitChange ofModule(Unit unit, Module module, ZonedDateTime timeUtc) {
+        return new UnitChange(Type.MODULE, unit.getId(), unit.getProject(), unit.getName(),
+                module.getId(), module.getModule(), module.getName(), module.getValue(), module.getActive(), null, timeUtc);
+    }
+
+    public static UnitChange ofError(Unit unit, String error, ZonedDateTime timeUtc) {
+        return new UnitChange(Type.ERROR, unit.getId(), unit.getProject(), unit.getName(),
+                null, null, null, null, unit.getActive(), error, timeUtc);
+    }
+
+    /**
+     * The changes with the same key replace each other in the buffer of a slow client, only the latest one is sent.
+     */
+    String getConflationKey() {
+        switch (type) {
+            case MODULE:
+                return "module:" + moduleId;
+            case ERROR:
+                return "error:" + unitId + ":" + error;
+            default:
+                return "unit:" + unitId;
+        }
+    }
+}
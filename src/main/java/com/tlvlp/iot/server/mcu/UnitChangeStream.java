@@ -0,0 +1,107 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.vertx.ConsumeEvent;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.io.UncheckedIOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes the unit and module changes of the ingress path to the live stream clients (Server-Sent Events),
+ * optionally filtered by project or unit. Each client has its own conflating buffer, see {@link UnitChangeSubscription}.
+ * <p>
+ * The changes are consumed from the local event bus after the ingress transaction is committed:
+ * unit_change from the {@link McuService}, unit_inactive and unit_error.
+ */
+@Flogger
+@ApplicationScoped
+public class UnitChangeStream {
+
+    public static final String UNIT_CHANGE_ADDRESS = "unit_change";
+
+    private final ObjectMapper jsonMapper;
+    private final int bufferSize;
+
+    private final Set<UnitChangeSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private final Counter publishedChanges;
+    private final Counter conflatedChanges;
+    private final Counter droppedSubscriptions;
+
+    public UnitChangeStream(ObjectMapper jsonMapper,
+                            MeterRegistry meterRegistry,
+                            @ConfigProperty(name = "mcu.stream.buffer-size", defaultValue = "1000") Integer bufferSize) {
+        this.jsonMapper = jsonMapper;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.publishedChanges = Counter.builder("mcu.stream.changes.published")
+                .description("Unit and module changes published to the live stream.")
+                .register(meterRegistry);
+        this.conflatedChanges = Counter.builder("mcu.stream.changes.conflated")
+                .description("Changes that replaced an unsent change of the same module or unit for a slow client.")
+                .register(meterRegistry);
+        this.droppedSubscriptions = Counter.builder("mcu.stream.clients.dropped")
+                .description("Live stream clients that were disconnected, because their buffer was full.")
+                .register(meterRegistry);
+        meterRegistry.gaugeCollectionSize("mcu.stream.clients", List.of(), subscriptions);
+    }
+
+    /**
+     * @param project only the changes of the units of this project are sent, if not null.
+     * @param unitId  only the changes of this unit are sent, if not null.
+     */
+    public void subscribe(SseEventSink sink, Sse sse, String project, Long unitId) {
+        var subscription = new UnitChangeSubscription(project, unitId, bufferSize, sink,
+                change -> toEvent(sse, change), conflatedChanges, droppedSubscriptions);
+        subscriptions.add(subscription);
+        log.atFine().log("Live stream client subscribed, project:%s unit id:%s", project, unitId);
+    }
+
+    @ConsumeEvent(UNIT_CHANGE_ADDRESS)
+    void onUnitChange(UnitChange change) {
+        publish(change);
+    }
+
+    @ConsumeEvent("unit_inactive")
+    void onUnitInactive(Unit unit) {
+        publish(UnitChange.ofUnit(unit, ZonedDateTime.now(ZoneOffset.UTC)));
+    }
+
+    @ConsumeEvent("unit_error")
+    void onUnitError(Map<String, Object> unitError) {
+        publish(UnitChange.ofError((Unit) unitError.get("unit"), (String) unitError.get("error"),
+                ZonedDateTime.now(ZoneOffset.UTC)));
+    }
+
+    void publish(UnitChange change) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        publishedChanges.increment();
+        subscriptions.removeIf(subscription -> !subscription.offer(change));
+    }
+
+    private OutboundSseEvent toEvent(Sse sse, UnitChange change) {
+        try {
+            return sse.newEventBuilder()
+                    .name(change.getType().name().toLowerCase())
+                    .data(String.class, jsonMapper.writeValueAsString(change))
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.tlvlp.iot.server.mcu;
+
+import io.micrometer.core.instrument.Counter;
+
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A live stream client of the {@link UnitChangeStream}.
+ * <p>
+ * Only one event is written to the client at a time. The changes that arrive in the meantime wait in a buffer
+ * where they are conflated by their {@link UnitChange#getConflationKey()}, so a slow client gets the latest value
+ * of each module instead of every update. The buffer is bounded to bufferSize keys, a client that falls further
+ * behind is disconnected, it can reconnect and reload the current state.
+ * The ingress path only puts the change in the buffer, it never waits for the client.
+ */
+class UnitChangeSubscription {
+
+    private final String project;
+    private final Long unitId;
+    private final int bufferSize;
+    private final SseEventSink sink;
+    private final Function<UnitChange, OutboundSseEvent> toEvent;
+    private final Counter conflatedChanges;
+    private final Counter droppedSubscriptions;
+
+    private final LinkedHashMap<String, UnitChange> pending = new LinkedHashMap<>();
+    private boolean isSending;
+    private boolean isClosed;
+
+    UnitChangeSubscription(String project,
+                           Long unitId,
+                           int bufferSize,
+                           SseEventSink sink,
+                           Function<UnitChange, OutboundSseEvent> toEvent,
+                           Counter conflatedChanges,
+                           Counter droppedSubscriptions) {
+        this.project = project;
+        this.unitId = unitId;
+        this.bufferSize = bufferSize;
+        this.sink = sink;
+        this.toEvent = toEvent;
+        this.conflatedChanges = conflatedChanges;
+        this.droppedSubscriptions = droppedSubscriptions;
+    }
+
+    boolean matches(UnitChange change) {
+        return (project == null || project.equals(change.getProject()))
+                && (unitId == null || unitId.equals(change.getUnitId()));
+    }
+
+    /**
+     * @return false if the client is disconnected, or it was disconnected because its buffer is full.
+     */
+    boolean offer(UnitChange change) {
+        synchronized (this) {
+            if (isClosed || sink.isClosed()) {
+                isClosed = true;
+                return false;
+            }
+            if (!matches(change)) {
+                return true;
+            }
+            var key = change.getConflationKey();
+            // A replaced key keeps its place, so a module that keeps changing is not starved by the others.
+            if (pending.put(key, change) != null) {
+                conflatedChanges.increment();
+            } else if (pending.size() > bufferSize) {
+                droppedSubscriptions.increment();
+                close();
+                return false;
+            }
+            if (isSending) {
+                return true;
+            }
+            isSending = true;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Sends the buffered changes one by one. A send that completes right away is followed in the loop,
+     * the others continue from their completion, so the stack does not grow with the buffer.
+     */
+    private void drain() {
+        while (true) {
+            UnitChange next;
+            synchronized (this) {
+                var iterator = pending.values().iterator();
+                if (isClosed || !iterator.hasNext()) {
+                    isSending = false;
+                    return;
+                }
+                next = iterator.next();
+                iterator.remove();
+            }
+            CompletableFuture<?> sent;
+            try {
+                sent = sink.send(toEvent.apply(next)).toCompletableFuture();
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            if (!sent.isDone()) {
+                sent.whenComplete((result, e) -> {
+                    if (e != null) {
+                        close();
+                    } else {
+                        drain();
+                    }
+                });
+                return;
+            }
+            if (sent.isCompletedExceptionally()) {
+                close();
+                return;
+            }
+        }
+    }
+
+    synchronized void close() {
+        isClosed = true;
+        isSending = false;
+        pending.clear();
+        if (!sink.isClosed()) {
+            sink.close();
+        }
+    }
+}
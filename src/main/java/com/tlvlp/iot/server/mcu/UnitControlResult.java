@@ -0,0 +1,47 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.PublishResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * The delivery of the control message of a unit, see {@link McuService#sendControlMessages(java.util.List)}.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class UnitControlResult {
+
+    private Long unitId;
+    private String project;
+    private String name;
+    /**
+     * The control message was acknowledged by the broker.
+     */
+    private boolean delivered;
+    private int attempts;
+    private Long latencyMs;
+    private String error;
+
+    static UnitControlResult of(Unit unit, PublishResult publishResult) {
+        return new UnitControlResult()
+                .setUnitId(unit.getId())
+                .setProject(unit.getProject())
+                .setName(unit.getName())
+                .setDelivered(publishResult.isDelivered())
+                .setAttempts(publishResult.getAttempts())
+                .setLatencyMs(publishResult.getLatency().toMillis())
+                .setError(publishResult.getError());
+    }
+
+    static UnitControlResult unitNotFound(Long unitId) {
+        return new UnitControlResult()
+                .setUnitId(unitId)
+                .setError("Unit not found.");
+    }
+}
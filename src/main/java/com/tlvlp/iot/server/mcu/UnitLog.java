@@ -15,6 +15,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
@@ -33,12 +34,22 @@ import java.time.ZonedDateTime;
 @Table(name ="unit_logs", catalog = "tlvlp_iot")
 public class UnitLog implements Serializable {
 
+    /**
+     * Longer log entries are truncated, eg. a control message for a unit with a lot of modules or a long MCU error.
+     */
+    public static final int MAX_LOG_ENTRY_LENGTH = 4096;
+    private static final String TRUNCATED_SUFFIX = "...";
+
     public enum Type {
         INCOMING_ERROR, INCOMING_INACTIVE, OUTGOING_CONTROL, STATUS_CHANGE
     }
 
+    // Ids are allocated in pools from the id_sequences table (unlike IDENTITY) so the inserts can be JDBC batched.
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "unit_logs_id")
+    @TableGenerator(name = "unit_logs_id", catalog = "tlvlp_iot", table = "id_sequences",
+            pkColumnName = "sequence_name", valueColumnName = "next_val", pkColumnValue = "unit_logs",
+            allocationSize = 500)
     private Long id;
 
     @NotNull
@@ -50,12 +61,31 @@ public class UnitLog implements Serializable {
     @Column(name = "time_utc", columnDefinition = "TIMESTAMP")
     private ZonedDateTime timeUtc;
 
+    /**
+     * The time of the last occurrence of a folded error, see {@link ErrorDeduplicator}. Null for the other logs.
+     */
+    @Column(name = "last_time_utc", columnDefinition = "TIMESTAMP")
+    private ZonedDateTime lastTimeUtc;
+
+    /**
+     * The number of occurrences of a folded error since {@link #timeUtc}. Null for the other logs.
+     */
+    @Column(name = "occurrences")
+    private Integer occurrences;
+
     @NotNull
     @Enumerated(EnumType.STRING)
     private Type type;
 
     @NotBlank
-    @Column(name = "log_entry", nullable = false)
+    @Column(name = "log_entry", nullable = false, length = MAX_LOG_ENTRY_LENGTH)
     private String logEntry;
 
+    public UnitLog setLogEntry(String logEntry) {
+        this.logEntry = logEntry != null && logEntry.length() > MAX_LOG_ENTRY_LENGTH
+                ? logEntry.substring(0, MAX_LOG_ENTRY_LENGTH - TRUNCATED_SUFFIX.length()) + TRUNCATED_SUFFIX
+                : logEntry;
+        return this;
+    }
+
 }
\ No newline at end of file
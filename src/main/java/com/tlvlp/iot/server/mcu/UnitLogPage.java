@@ -0,0 +1,46 @@
+package com.tlvlp.iot.server.mcu;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A page of {@link UnitLog}s in id order.
+ * The next page is requested with the nextCursor, which is missing on the last page.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class UnitLogPage {
+
+    private List<UnitLog> logs;
+    private String nextCursor;
+
+    /**
+     * @return an opaque cursor pointing after the log with the given id.
+     */
+    public static String encodeCursor(Long lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(lastId.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the id of the last log before the cursor.
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    public static Long decodeCursor(String cursor) {
+        try {
+            return Long.valueOf(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid cursor: %s", cursor), e);
+        }
+    }
+}
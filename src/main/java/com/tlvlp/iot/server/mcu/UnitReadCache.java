@@ -0,0 +1,166 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.EntityTag;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pre-serialized JSON responses of the unit read endpoints, tagged with the version of the data they were read at.
+ * <p>
+ * The {@link McuService} bumps the version of a unit, its modules and the one of all the units after every change
+ * is committed. A cached response is served while its version is current, so polling an unchanged unit does not
+ * touch the database, and a client that sends the ETag of the current version gets a 304.
+ * The version is read before the data, so a response is never newer than its version suggests.
+ * The versions are local to the node: the ETags carry a random epoch, so they do not match across restarts or nodes.
+ * <p>
+ * Every status message of a unit only changes its last seen time. These check-ins invalidate the list of all the units
+ * at most once per mcu.read-cache.last-seen-refresh-millis, otherwise the list would hardly ever be served from the cache.
+ */
+@ApplicationScoped
+public class UnitReadCache {
+
+    private static final String ALL_UNITS = "units";
+    private static final String UNIT = "unit:";
+    private static final String MODULES = "modules:";
+
+    private final ObjectMapper jsonMapper;
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    private final AtomicLong unitsVersion = new AtomicLong();
+    private final AtomicBoolean isUnitSeen = new AtomicBoolean();
+    private final long lastSeenRefreshNanos;
+    private volatile long nextLastSeenRefreshNanos = System.nanoTime();
+    private final ConcurrentMap<Long, AtomicLong> unitVersions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, AtomicLong> moduleVersions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CachedResponse> responses = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public UnitReadCache(ObjectMapper jsonMapper,
+                         MeterRegistry meterRegistry,
+                         @ConfigProperty(name = "mcu.read-cache.last-seen-refresh-millis", defaultValue = "1000") Long lastSeenRefreshMillis) {
+        this.jsonMapper = jsonMapper;
+        this.lastSeenRefreshNanos = TimeUnit.MILLISECONDS.toNanos(lastSeenRefreshMillis);
+        this.hits = lookupCounter(meterRegistry, "hit");
+        this.misses = lookupCounter(meterRegistry, "miss");
+        meterRegistry.gaugeMapSize("mcu.read.cache.responses", List.of(), responses);
+    }
+
+    private static Counter lookupCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("mcu.read.cache.lookups")
+                .description("UnitReadCache lookups, misses are read from the database and serialized.")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * The unit itself was changed, also invalidates the list of all the units.
+     */
+    public void unitChanged(Long unitId) {
+        unitVersions.computeIfAbsent(unitId, id -> new AtomicLong()).incrementAndGet();
+        unitsVersion.incrementAndGet();
+    }
+
+    /**
+     * Only the last seen time of the unit was changed by a check-in, the list of all the units is refreshed later.
+     */
+    public void unitSeen(Long unitId) {
+        unitVersions.computeIfAbsent(unitId, id -> new AtomicLong()).incrementAndGet();
+        isUnitSeen.set(true);
+    }
+
+    /**
+     * A module of the unit was registered, updated, reactivated or inactivated.
+     */
+    public void modulesChanged(Long unitId) {
+        moduleVersions.computeIfAbsent(unitId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    public CachedResponse getAllUnits(Supplier<List<Unit>> loader) {
+        refreshLastSeen();
+        return get(ALL_UNITS, unitsVersion.get(), loader);
+    }
+
+    /**
+     * Invalidates the list of all the units for the check-ins since the last refresh, if it is due.
+     */
+    private void refreshLastSeen() {
+        var now = System.nanoTime();
+        if (now - nextLastSeenRefreshNanos >= 0 && isUnitSeen.compareAndSet(true, false)) {
+            nextLastSeenRefreshNanos = now + lastSeenRefreshNanos;
+            unitsVersion.incrementAndGet();
+        }
+    }
+
+    public CachedResponse getUnit(Long unitId, Supplier<Unit> loader) {
+        return get(UNIT + unitId, versionOf(unitVersions, unitId), loader);
+    }
+
+    public CachedResponse getModules(Long unitId, Supplier<List<Module>> loader) {
+        return get(MODULES + unitId, versionOf(moduleVersions, unitId), loader);
+    }
+
+    private static long versionOf(ConcurrentMap<Long, AtomicLong> versions, Long unitId) {
+        var version = versions.get(unitId);
+        return version == null ? 0L : version.get();
+    }
+
+    /**
+     * Concurrent misses of the same response are all loaded, only the newest one is kept.
+     * A missing unit (null) is not cached.
+     */
+    private CachedResponse get(String key, long version, Supplier<?> loader) {
+        var cached = responses.get(key);
+        if (cached != null && cached.getVersion() == version) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        var data = loader.get();
+        if (data == null) {
+            return CachedResponse.EMPTY;
+        }
+        var response = new CachedResponse(version, new EntityTag(epoch + "-" + key + "-" + version), serialize(data));
+        responses.merge(key, response, (current, loaded) -> current.getVersion() >= loaded.getVersion() ? current : loaded);
+        return response;
+    }
+
+    private byte[] serialize(Object data) {
+        try {
+            return jsonMapper.writeValueAsBytes(data);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Value
+    public static class CachedResponse {
+        static final CachedResponse EMPTY = new CachedResponse(0L, null, null);
+
+        long version;
+        /**
+         * Null if there is no data.
+         */
+        EntityTag entityTag;
+        /**
+         * The JSON body, null if there is no data.
+         */
+        byte[] body;
+    }
+}
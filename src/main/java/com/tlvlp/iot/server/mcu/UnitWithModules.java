@@ -0,0 +1,14 @@
+package com.tlvlp.iot.server.mcu;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * A {@link Unit} with its {@link Module}s in id order, read together with a single join query.
+ */
+@Value
+public class UnitWithModules {
+    Unit unit;
+    List<Module> modules;
+}
@@ -1,6 +1,7 @@
 package com.tlvlp.iot.server.mqtt;
 
 import java.util.Arrays;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 public enum GlobalTopics {
@@ -26,6 +27,12 @@ public enum GlobalTopics {
         return isIngress;
     }
 
+    public static Optional<GlobalTopics> fromTopic(String topic) {
+        return Arrays.stream(GlobalTopics.values())
+                .filter(globalTopic -> globalTopic.topic.equals(topic))
+                .findFirst();
+    }
+
     public static Stream<String> getIngressTopicStream() {
         return Arrays.stream(GlobalTopics.values())
                 .filter(GlobalTopics::isIngress)
@@ -1,6 +1,6 @@
 package com.tlvlp.iot.server.mqtt;
 
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.buffer.Buffer;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -17,6 +17,10 @@ import java.io.Serializable;
 public class Message implements Serializable {
 
     private String topic;
-    private JsonObject payload;
+    private Buffer payload;
+    /**
+     * {@link System#nanoTime()} at the MQTT receipt, the start of the end-to-end ingress latency.
+     */
+    private long receivedAtNanos = System.nanoTime();
 
 }
@@ -0,0 +1,339 @@
+package com.tlvlp.iot.server.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only journal of the outgoing messages, so the unacknowledged ones survive a broker disconnect or a restart.
+ * A message is appended (and flushed to the file) before it is published, and it is settled once it is acknowledged,
+ * failed or expired. The settlements are flushed lazily, a message that was settled right before a crash is replayed.
+ * The journal is compacted to the outstanding messages on startup and when mostly settled messages are left in it.
+ * <p>
+ * The journal is written by a dedicated thread in the order of the calls, so the callers never wait on the disk:
+ * an append completes once its record is flushed, the settlements and the compaction are not waited for.
+ */
+@Flogger
+@ApplicationScoped
+public class MessageOutbox {
+
+    private static final int COMPACTION_MIN_RECORDS = 10_000;
+
+    private final boolean isEnabled;
+    private final Path file;
+    private final Duration ttl;
+    private final ExecutorService journal;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicBoolean isFlushQueued = new AtomicBoolean();
+    private volatile int depth;
+
+    // Confined to the journal thread.
+    private final Map<Long, Entry> outstanding = new LinkedHashMap<>();
+    private BufferedWriter writer;
+    private long records;
+
+    private final Counter expiredMessages;
+
+    public MessageOutbox(MeterRegistry meterRegistry,
+                         @ConfigProperty(name = "mqtt.outbox.enabled", defaultValue = "true") Boolean isEnabled,
+                         @ConfigProperty(name = "mqtt.outbox.file", defaultValue = "mqtt_outbox.jsonl") String file,
+                         @ConfigProperty(name = "mqtt.outbox.ttl-seconds", defaultValue = "300") Long ttlSeconds) {
+        this.isEnabled = isEnabled;
+        this.file = Paths.get(file);
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+        this.journal = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "mqtt-outbox-journal"));
+
+        this.expiredMessages = Counter.builder("mqtt.outbox.expired")
+                .description("Outgoing messages that were dropped unpublished after their time to live.")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.outbox.depth", this, outbox -> outbox.depth)
+                .description("Outgoing messages in the outbox that are not acknowledged yet.")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Reads the outstanding messages of the journal and compacts it to them.
+     * The records that can not be read, eg. the torn last record after a crash, are moved to the .rejected file.
+     * Without a readable journal the outbox only keeps the messages in memory.
+     *
+     * @return the outstanding messages that are within their time to live, in their original order.
+     */
+    public List<Entry> open() {
+        if (!isEnabled) {
+            log.atInfo().log("The message outbox is disabled, the outgoing messages are not journaled.");
+            return List.of();
+        }
+        return CompletableFuture.supplyAsync(this::openJournal, journal).join();
+    }
+
+    private List<Entry> openJournal() {
+        try {
+            if (Files.exists(file)) {
+                readRecords();
+            }
+            var oldest = System.currentTimeMillis() - ttl.toMillis();
+            var restored = new ArrayList<Entry>(outstanding.size());
+            for (var iterator = outstanding.values().iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                if (entry.getCreatedAtMillis() < oldest) {
+                    iterator.remove();
+                    expiredMessages.increment();
+                } else {
+                    restored.add(entry);
+                }
+            }
+            compact();
+            log.atInfo().log("Opened the message outbox %s with %d outstanding messages.", file, restored.size());
+            return restored;
+        } catch (IOException | RuntimeException e) {
+            log.atSevere().log("Unable to open the message outbox %s, the messages are not journaled: %s", file, e.getMessage());
+            writer = null;
+            return List.copyOf(outstanding.values());
+        } finally {
+            depth = outstanding.size();
+        }
+    }
+
+    private void readRecords() throws IOException {
+        // The reader replaces the malformed bytes of a torn record, so it is rejected by the JSON decoder instead.
+        try (var reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    readRecord(line);
+                } catch (RuntimeException e) {
+                    reject(line, lineNumber, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A rejected settlement only means that its message is published again.
+     */
+    private void reject(String line, long lineNumber, RuntimeException e) throws IOException {
+        var rejectedFile = file.resolveSibling(file.getFileName() + ".rejected");
+        log.atWarning().log("Unable to read the record at line %d of the message outbox %s, moving it to %s: %s",
+                lineNumber, file, rejectedFile, e.getMessage());
+        Files.writeString(rejectedFile, line + System.lineSeparator(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void readRecord(String line) {
+        var record = new JsonObject(line);
+        var id = record.getLong("id");
+        nextId.accumulateAndGet(id + 1, Math::max);
+        if (record.containsKey("topic")) {
+            outstanding.put(id, new Entry(id, record.getString("topic"), Buffer.buffer(record.getBinary("body")),
+                    record.getLong("createdAt")));
+        } else {
+            outstanding.remove(id);
+        }
+    }
+
+    /**
+     * @return the message, once it is journaled. It completes without the journal when it can not be written.
+     */
+    public CompletableFuture<Entry> append(String topic, Buffer body) {
+        var entry = new Entry(nextId.getAndIncrement(), topic, body, System.currentTimeMillis());
+        if (!isEnabled) {
+            return CompletableFuture.completedFuture(entry);
+        }
+        var journaled = new CompletableFuture<Entry>();
+        if (!submit(() -> {
+            outstanding.put(entry.getId(), entry);
+            depth = outstanding.size();
+            if (writer != null) {
+                try {
+                    writeRecord(new JsonObject()
+                            .put("id", entry.getId())
+                            .put("topic", topic)
+                            .put("body", body.getBytes())
+                            .put("createdAt", entry.getCreatedAtMillis()));
+                    writer.flush();
+                } catch (IOException e) {
+                    log.atSevere().log("Unable to journal the message to topic %s: %s", topic, e.getMessage());
+                }
+            }
+            journaled.complete(entry);
+        })) {
+            journaled.complete(entry);
+        }
+        return journaled;
+    }
+
+    /**
+     * The message is acknowledged or failed, it is not replayed any more.
+     */
+    public void settle(long id) {
+        if (!isEnabled) {
+            return;
+        }
+        submit(() -> {
+            if (outstanding.remove(id) == null) {
+                return;
+            }
+            depth = outstanding.size();
+            if (writer != null) {
+                try {
+                    writeRecord(new JsonObject().put("id", id));
+                } catch (IOException e) {
+                    log.atWarning().log("Unable to journal the settlement of message %d: %s", id, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * The message is dropped unpublished after its time to live.
+     */
+    public void expire(long id) {
+        expiredMessages.increment();
+        settle(id);
+    }
+
+    /**
+     * Flushes the settlements and compacts the journal when it is mostly settled.
+     * A flush is only queued if the previous one is done.
+     */
+    public void flush() {
+        if (!isEnabled || !isFlushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        if (!submit(this::flushJournal)) {
+            isFlushQueued.set(false);
+        }
+    }
+
+    private void flushJournal() {
+        isFlushQueued.set(false);
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (records > COMPACTION_MIN_RECORDS && records > 4L * outstanding.size()) {
+                compact();
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            log.atWarning().log("Unable to flush the message outbox %s: %s", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the queued records and closes the journal.
+     */
+    public void close() {
+        if (!isEnabled) {
+            return;
+        }
+        submit(() -> {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.atWarning().log("Unable to close the message outbox %s: %s", file, e.getMessage());
+            }
+            writer = null;
+        });
+        journal.shutdown();
+        try {
+            if (!journal.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.atSevere().log("Unable to close the message outbox %s in time.", file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false if the journal is closed already.
+     */
+    private boolean submit(Runnable task) {
+        try {
+            journal.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.atWarning().log("The message outbox %s is closed, the record is not journaled.", file);
+            return false;
+        }
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Rewrites the journal with the outstanding messages, the new journal replaces the old one atomically.
+     */
+    private void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        var compacted = file.resolveSibling(file.getFileName() + ".compact");
+        writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        records = 0;
+        for (Entry entry : outstanding.values()) {
+            writeRecord(new JsonObject()
+                    .put("id", entry.getId())
+                    .put("topic", entry.getTopic())
+                    .put("body", entry.getBody().getBytes())
+                    .put("createdAt", entry.getCreatedAtMillis()));
+        }
+        writer.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void writeRecord(JsonObject record) throws IOException {
+        writer.write(record.encode());
+        writer.newLine();
+        records++;
+    }
+
+    @Value
+    public static class Entry {
+        long id;
+        String topic;
+        Buffer body;
+        long createdAtMillis;
+    }
+}
@@ -1,8 +1,12 @@
 package com.tlvlp.iot.server.mqtt;
 
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.quarkus.runtime.Startup;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Context;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.mqtt.MqttClient;
@@ -12,7 +16,10 @@ import lombok.extern.flogger.Flogger;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import java.time.Duration;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Flogger
@@ -20,32 +27,68 @@ import java.util.stream.Collectors;
 @ApplicationScoped
 public class MessageService {
 
-    private Boolean isBrokerConnected;
+    private volatile boolean isBrokerConnected;
+    private volatile boolean isStopping;
     private Boolean isServiceDisabled;
+    private boolean hasConnected;
+    private int reconnectAttempts;
 
     private final String brokerHost;
     private final Integer brokerPort;
     private final Integer brokerQoS;
+    private final Boolean brokerSsl;
+    private final Long reconnectInitialBackoffMs;
+    private final Long reconnectMaxBackoffMs;
 
     private final EventBus eventBus;
+    private final Vertx vertx;
+    private final Context context;
     private final MqttClient mqttClient;
+    private final MessageOutbox outbox;
+    private final PublishWindow publishWindow;
+
+    private final Map<String, Counter> receivedByTopic;
+    private final Counter receivedOther;
+    private final Counter reconnects;
 
     public MessageService(Vertx vertx,
                           EventBus eventBus,
+                          MeterRegistry meterRegistry,
+                          MessageOutbox outbox,
                           @ConfigProperty(name = "mqtt.message.service.disabled", defaultValue = "false") Boolean isServiceDisabled,
                           @ConfigProperty(name = "mqtt.broker.host") String brokerHost,
                           @ConfigProperty(name = "mqtt.broker.port") Integer brokerPort,
                           @ConfigProperty(name = "mqtt.broker.username") String brokerUser,
                           @ConfigProperty(name = "mqtt.broker.password") String brokerPassword,
-                          @ConfigProperty(name = "mqtt.broker.qos", defaultValue = "1") Integer brokerQoS
+                          @ConfigProperty(name = "mqtt.broker.qos", defaultValue = "1") Integer brokerQoS,
+                          @ConfigProperty(name = "mqtt.broker.ssl", defaultValue = "true") Boolean brokerSsl,
+                          @ConfigProperty(name = "mqtt.publish.window", defaultValue = "100") Integer publishWindowSize,
+                          @ConfigProperty(name = "mqtt.publish.max-pending", defaultValue = "100000") Integer publishMaxPending,
+                          @ConfigProperty(name = "mqtt.publish.ack-timeout-seconds", defaultValue = "10") Integer publishAckTimeoutSeconds,
+                          @ConfigProperty(name = "mqtt.publish.max-retries", defaultValue = "3") Integer publishMaxRetries,
+                          @ConfigProperty(name = "mqtt.publish.retry-backoff-ms", defaultValue = "200") Long publishRetryBackoffMs,
+                          @ConfigProperty(name = "mqtt.reconnect.initial-backoff-ms", defaultValue = "1000") Long reconnectInitialBackoffMs,
+                          @ConfigProperty(name = "mqtt.reconnect.max-backoff-ms", defaultValue = "60000") Long reconnectMaxBackoffMs
     ) {
+        this.vertx = vertx;
         this.eventBus = eventBus;
+        this.outbox = outbox;
         this.brokerHost = brokerHost;
         this.brokerPort = brokerPort;
         this.brokerQoS = brokerQoS;
+        this.brokerSsl = brokerSsl;
+        this.reconnectInitialBackoffMs = reconnectInitialBackoffMs;
+        this.reconnectMaxBackoffMs = reconnectMaxBackoffMs;
         this.isBrokerConnected = false;
         this.isServiceDisabled = isServiceDisabled;
 
+        this.receivedByTopic = GlobalTopics.getIngressTopicStream()
+                .collect(Collectors.toUnmodifiableMap(topic -> topic, topic -> receivedCounter(meterRegistry, topic)));
+        this.receivedOther = receivedCounter(meterRegistry, "other");
+        this.reconnects = Counter.builder("mqtt.reconnects")
+                .description("Successful reconnections to the MQTT broker.")
+                .register(meterRegistry);
+
         log.atInfo().log("Creating MQTT client");
         var clientOptions = new MqttClientOptions()
                 .setClientId("tlvlp-iot-server")
@@ -53,8 +96,24 @@ public class MessageService {
                 .setPassword(brokerPassword.strip())
                 .setWillFlag(true)
                 .setWillMessage("tlvlp-iot-server lost connection.")
-                .setSsl(true);
-        this.mqttClient = MqttClient.create(vertx, clientOptions);
+                .setSsl(brokerSsl)
+                .setMaxInflightQueue(publishWindowSize)
+                .setAckTimeout(publishAckTimeoutSeconds);
+        this.mqttClient = MqttClient.create(vertx, clientOptions)
+                .exceptionHandler(err -> log.atSevere().withCause(err).log("Mqtt client exception."))
+                .publishHandler(mqttMessage -> {
+                    var message = new Message()
+                            .topic(mqttMessage.topicName())
+                            .payload(mqttMessage.payload());
+                    receivedByTopic.getOrDefault(message.topic(), receivedOther).increment();
+                    log.atFine().log("Message received: %s", message);
+                    eventBus.sendAndForget("mqtt_ingress", message);
+                })
+                .closeHandler(na -> disconnected());
+        // The client is connected on this context, so its callbacks and the publish window share the event loop.
+        this.context = vertx.getOrCreateContext();
+        this.publishWindow = new PublishWindow(vertx, context, mqttClient, outbox, meterRegistry, MqttQoS.valueOf(brokerQoS),
+                publishWindowSize, publishMaxPending, publishMaxRetries, publishRetryBackoffMs);
     }
 
     @PostConstruct
@@ -63,33 +122,72 @@ public class MessageService {
             log.atInfo().log("Message service is disabled. MQTT Broker connection is skipped.");
             return;
         }
-        log.atInfo().log("Connecting to the MQTT broker at %s:%d", brokerHost, brokerPort);
+        publishWindow.restore(outbox.open());
+        context.runOnContext(na -> connectToBroker());
+    }
+
+    @PreDestroy
+    void disconnect() {
+        isStopping = true;
+        try {
+            if (mqttClient.isConnected()) {
+                mqttClient.disconnect();
+            }
+        } catch (RuntimeException e) {
+            // The client fails to disconnect when the broker already closed the connection.
+            log.atFine().log("Unable to disconnect from the MQTT broker: %s", e);
+        }
+        outbox.close();
+    }
+
+    /**
+     * A failed connection is retried with an exponential backoff, the ingress topics are subscribed on every connection
+     * as the session is not kept by the broker.
+     */
+    private void connectToBroker() {
+        log.atInfo().log("Connecting to the MQTT broker at %s:%d, SSL: %s", brokerHost, brokerPort, brokerSsl);
         mqttClient.connect(brokerPort, brokerHost.strip(), event -> {
             if(event.failed()) {
-                throw new RuntimeException("Connection failed.");
+                log.atWarning().log("Unable to connect to the MQTT broker: %s", event.cause().getMessage());
+                scheduleReconnect();
+                return;
+            }
+            if (hasConnected) {
+                reconnects.increment();
             }
+            hasConnected = true;
+            reconnectAttempts = 0;
+            isBrokerConnected = true;
             subscribeToGlobalTopics();
+            publishWindow.connected();
             sendGlobalStatusRequest();
         });
     }
 
+    private void disconnected() {
+        isBrokerConnected = false;
+        publishWindow.disconnected();
+        if (!isStopping) {
+            log.atWarning().log("Lost the connection to the MQTT broker.");
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (isStopping) {
+            return;
+        }
+        var backoffMs = Math.min(reconnectInitialBackoffMs << Math.min(reconnectAttempts, 16), reconnectMaxBackoffMs);
+        reconnectAttempts++;
+        log.atInfo().log("Reconnecting to the MQTT broker in %d ms, attempt %d.", backoffMs, reconnectAttempts);
+        vertx.setTimer(backoffMs, id -> connectToBroker());
+    }
+
     private void subscribeToGlobalTopics() {
         var topicQosMap = GlobalTopics.getIngressTopicStream()
                 .collect(Collectors.toMap(topic -> topic, na -> brokerQoS));
         log.atInfo().log("Subscribing to global ingress topics: %s", topicQosMap.keySet());
-
-        mqttClient
-                .exceptionHandler(err -> log.atSevere().withCause(err).log("Mqtt client exception."))
-                .publishHandler(mqttMessage -> {
-                    var message = new Message()
-                            .topic(mqttMessage.topicName())
-                            .payload(mqttMessage.payload().toJsonObject());
-                    log.atInfo().log("Message received: %s", message);
-                    eventBus.sendAndForget("mqtt_ingress", message);
-                })
-                .subscribe(topicQosMap);
-
-        isBrokerConnected = true;
+        mqttClient.subscribe(topicQosMap);
     }
 
     public Boolean isBrokerConnected() {
@@ -101,17 +199,37 @@ public class MessageService {
         sendMessage(GlobalTopics.GLOBAL_STATUS_REQUEST.topic(), Buffer.buffer());
     }
 
+    /**
+     * Sends a message without waiting for its result, the failures are logged.
+     */
     public void sendMessage(String topic, Buffer body) {
+        publish(topic, body);
+    }
+
+    /**
+     * Journals and queues a message for the publish window, it is retried until it is acknowledged,
+     * it runs out of attempts or its time to live in the outbox.
+     * While the broker is disconnected the message waits for the next connection.
+     * The message is queued right away, the Uni only reports its result.
+     *
+     * @return the result after the broker acknowledged the message (QoS 1 and 2), or after the last failed attempt.
+     */
+    public Uni<PublishResult> publish(String topic, Buffer body) {
         if(isServiceDisabled) {
-            log.atInfo().log("Message service is disabled. Not sending message. Topic:%s Body:%s", topic, body.toJsonObject());
-            return;
+            log.atInfo().log("Message service is disabled. Not sending message. Topic:%s Body:%s", topic, body);
+            return Uni.createFrom().item(PublishResult.failed(topic, 0, Duration.ZERO, "The message service is disabled."));
         }
-        mqttClient.publish(
-                topic,
-                body,
-                MqttQoS.valueOf(brokerQoS),
-                false,
-                false
-        );
+        return publishWindow.publish(topic, body);
+    }
+
+    public int getPendingMessages() {
+        return publishWindow.getPending();
+    }
+
+    private static Counter receivedCounter(MeterRegistry meterRegistry, String topic) {
+        return Counter.builder("mqtt.messages.received")
+                .description("MQTT messages received from the broker.")
+                .tag("topic", topic)
+                .register(meterRegistry);
     }
 }
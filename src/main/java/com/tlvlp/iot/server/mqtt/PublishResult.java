@@ -0,0 +1,32 @@
+package com.tlvlp.iot.server.mqtt;
+
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * The outcome of an outgoing message, see {@link MessageService#publish(String, io.vertx.core.buffer.Buffer)}.
+ */
+@Value
+public class PublishResult {
+
+    String topic;
+    /**
+     * Acknowledged by the broker (PUBACK or PUBCOMP), or written to the connection with QoS 0.
+     */
+    boolean delivered;
+    int attempts;
+    /**
+     * From the publish request to the acknowledgement or the final failure, including the queueing and the retries.
+     */
+    Duration latency;
+    String error;
+
+    static PublishResult delivered(String topic, int attempts, Duration latency) {
+        return new PublishResult(topic, true, attempts, latency, null);
+    }
+
+    static PublishResult failed(String topic, int attempts, Duration latency, String error) {
+        return new PublishResult(topic, false, attempts, latency, error);
+    }
+}
@@ -0,0 +1,319 @@
+package com.tlvlp.iot.server.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttClient;
+import lombok.extern.flogger.Flogger;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the outgoing messages with at most a window of unacknowledged messages in flight,
+ * the window is also the in-flight limit of the MQTT client, so the client never rejects a publish for being full.
+ * The messages beyond the window are queued, a failed or unacknowledged attempt is retried with an exponential backoff.
+ * <p>
+ * The acknowledgements (PUBACK with QoS 1, PUBCOMP with QoS 2) are correlated by the packet id of the attempt.
+ * All the state is confined to the context of the MQTT client: the packet id of an attempt is registered
+ * before the client can handle its acknowledgement on the same event loop.
+ * <p>
+ * Every message is journaled in the {@link MessageOutbox} until it is settled, the settlements are not waited for.
+ * While the broker is disconnected the messages wait in the queue, and they are replayed through the window
+ * once it is connected again.
+ * The attempts that were in flight on the lost connection are replayed when the client expires them.
+ * A message that is not delivered within the time to live of the outbox is dropped.
+ */
+@Flogger
+class PublishWindow {
+
+    private static final long MAX_RETRY_BACKOFF_MS = 30_000;
+    private static final long HOUSEKEEPING_INTERVAL_MS = 1000;
+
+    private final Vertx vertx;
+    private final Context context;
+    private final MqttClient mqttClient;
+    private final MessageOutbox outbox;
+    private final MqttQoS qos;
+    private final int windowSize;
+    private final int maxPending;
+    private final int maxRetries;
+    private final long retryBackoffMs;
+    private final long ttlNanos;
+
+    private final Deque<Publish> queued = new ArrayDeque<>();
+    private final Map<Integer, Publish> inFlight = new HashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile int inFlightCount;
+    private boolean isConnected;
+    private int connection;
+
+    private final Counter published;
+    private final Counter publishFailures;
+    private final Counter retries;
+    private final Counter replayed;
+    private final Timer publishLatency;
+    private final Timer ackLatency;
+
+    PublishWindow(Vertx vertx, Context context, MqttClient mqttClient, MessageOutbox outbox, MeterRegistry meterRegistry,
+                  MqttQoS qos, int windowSize, int maxPending, int maxRetries, long retryBackoffMs) {
+        this.vertx = vertx;
+        this.context = context;
+        this.mqttClient = mqttClient;
+        this.outbox = outbox;
+        this.qos = qos;
+        this.windowSize = windowSize;
+        this.maxPending = maxPending;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+        this.ttlNanos = outbox.getTtl().toNanos();
+
+        mqttClient
+                .publishCompletionHandler(this::acknowledged)
+                .publishCompletionExpirationHandler(this::expired);
+
+        this.published = Counter.builder("mqtt.messages.published")
+                .description("MQTT messages acknowledged by the broker, or written with QoS 0.")
+                .register(meterRegistry);
+        this.publishFailures = Counter.builder("mqtt.messages.publish.failures")
+                .description("MQTT messages that could not be published, including the retries and the expired ones.")
+                .register(meterRegistry);
+        this.retries = Counter.builder("mqtt.messages.publish.retries")
+                .description("Retried MQTT publish attempts.")
+                .register(meterRegistry);
+        this.replayed = Counter.builder("mqtt.outbox.replayed")
+                .description("Outgoing messages replayed after a broker disconnect or a restart.")
+                .register(meterRegistry);
+        this.publishLatency = Timer.builder("mqtt.publish.latency")
+                .description("From the publish request to the acknowledgement, including the queueing and the retries.")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(meterRegistry);
+        this.ackLatency = Timer.builder("mqtt.publish.ack.latency")
+                .description("From a publish attempt to its acknowledgement by the broker.")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry);
+        Gauge.builder("mqtt.publish.pending", pending, AtomicInteger::get)
+                .description("MQTT messages waiting for their acknowledgement, in flight, queued or waiting for a retry.")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.publish.in.flight", this, window -> window.inFlightCount)
+                .description("Unacknowledged MQTT publish attempts.")
+                .register(meterRegistry);
+
+        context.runOnContext(na -> vertx.setPeriodic(HOUSEKEEPING_INTERVAL_MS, id -> housekeeping()));
+    }
+
+    /**
+     * The message is queued once it is journaled, the Uni only reports its result.
+     *
+     * @return the result after the acknowledgement, or after the last failed attempt.
+     * A message is rejected without an attempt when the pending messages reached their limit.
+     */
+    Uni<PublishResult> publish(String topic, Buffer body) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            publishFailures.increment();
+            log.atWarning().log("Unable to publish message to topic %s: %d messages are pending.", topic, maxPending);
+            return Uni.createFrom().item(PublishResult.failed(topic, 0, Duration.ZERO, "Too many pending messages."));
+        }
+        var createdNanos = System.nanoTime();
+        var result = outbox.append(topic, body).thenCompose(entry -> {
+            var publish = new Publish(entry, createdNanos);
+            context.runOnContext(na -> {
+                publish.isReplay = !isConnected;
+                queued.addLast(publish);
+                dispatch();
+            });
+            return publish.result;
+        });
+        return Uni.createFrom().completionStage(result);
+    }
+
+    /**
+     * Queues the outstanding messages of the outbox from an earlier run, they are not limited by the pending limit.
+     */
+    void restore(List<MessageOutbox.Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        pending.addAndGet(entries.size());
+        var nowNanos = System.nanoTime();
+        var nowMillis = System.currentTimeMillis();
+        context.runOnContext(na -> {
+            for (MessageOutbox.Entry entry : entries) {
+                var age = TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - entry.getCreatedAtMillis()));
+                var publish = new Publish(entry, nowNanos - age);
+                publish.isReplay = true;
+                queued.addLast(publish);
+            }
+            dispatch();
+        });
+    }
+
+    /**
+     * Starts to publish the queued messages on a new connection.
+     */
+    void connected() {
+        context.runOnContext(na -> {
+            isConnected = true;
+            connection++;
+            dispatch();
+        });
+    }
+
+    /**
+     * The queued messages wait for the next connection.
+     */
+    void disconnected() {
+        context.runOnContext(na -> isConnected = false);
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    private void dispatch() {
+        while (isConnected && inFlight.size() < windowSize && !queued.isEmpty()) {
+            send(queued.pollFirst());
+        }
+        inFlightCount = inFlight.size();
+    }
+
+    private void send(Publish publish) {
+        if (publish.isReplay) {
+            publish.isReplay = false;
+            replayed.increment();
+        }
+        publish.attempts++;
+        publish.attemptNanos = System.nanoTime();
+        publish.connection = connection;
+        try {
+            mqttClient.publish(publish.entry.getTopic(), publish.entry.getBody(), qos, false, false,
+                    sent -> attempted(publish, sent));
+        } catch (RuntimeException e) {
+            retryOrFail(publish, e.getMessage());
+        }
+    }
+
+    private void attempted(Publish publish, AsyncResult<Integer> sent) {
+        if (sent.failed()) {
+            retryOrFail(publish, sent.cause().getMessage());
+        } else if (qos == MqttQoS.AT_MOST_ONCE) {
+            delivered(publish);
+        } else {
+            inFlight.put(sent.result(), publish);
+        }
+    }
+
+    private void acknowledged(Integer packetId) {
+        var publish = inFlight.remove(packetId);
+        if (publish != null) {
+            ackLatency.record(System.nanoTime() - publish.attemptNanos, TimeUnit.NANOSECONDS);
+            delivered(publish);
+            dispatch();
+        }
+    }
+
+    private void expired(Integer packetId) {
+        var publish = inFlight.remove(packetId);
+        if (publish == null) {
+            return;
+        }
+        if (publish.connection != connection || !isConnected) {
+            // Lost with the connection, the attempt is not counted.
+            publish.attempts--;
+            publish.isReplay = true;
+            queued.addFirst(publish);
+        } else {
+            retryOrFail(publish, "Not acknowledged in time.");
+        }
+        dispatch();
+    }
+
+    private void retryOrFail(Publish publish, String error) {
+        if (publish.attempts > maxRetries) {
+            failed(publish, error);
+            outbox.settle(publish.entry.getId());
+            return;
+        }
+        if (System.nanoTime() - publish.createdNanos > ttlNanos) {
+            failed(publish, "Expired: " + error);
+            outbox.expire(publish.entry.getId());
+            return;
+        }
+        retries.increment();
+        var backoffMs = Math.min(retryBackoffMs << (publish.attempts - 1), MAX_RETRY_BACKOFF_MS);
+        log.atFine().log("Retrying the message to topic %s in %d ms: %s", publish.entry.getTopic(), backoffMs, error);
+        vertx.setTimer(backoffMs, id -> context.runOnContext(na -> {
+            queued.addFirst(publish);
+            dispatch();
+        }));
+    }
+
+    /**
+     * Drops the queued messages after their time to live and flushes the outbox.
+     */
+    private void housekeeping() {
+        var oldest = System.nanoTime() - ttlNanos;
+        for (var iterator = queued.iterator(); iterator.hasNext(); ) {
+            var publish = iterator.next();
+            if (publish.createdNanos < oldest) {
+                iterator.remove();
+                failed(publish, "Expired before it could be published.");
+                outbox.expire(publish.entry.getId());
+            }
+        }
+        outbox.flush();
+    }
+
+    private void delivered(Publish publish) {
+        var latencyNanos = System.nanoTime() - publish.createdNanos;
+        pending.decrementAndGet();
+        published.increment();
+        publishLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+        outbox.settle(publish.entry.getId());
+        publish.result.complete(PublishResult.delivered(publish.entry.getTopic(), publish.attempts,
+                Duration.ofNanos(latencyNanos)));
+    }
+
+    private void failed(Publish publish, String error) {
+        var topic = publish.entry.getTopic();
+        pending.decrementAndGet();
+        publishFailures.increment();
+        log.atWarning().log("Unable to publish message to topic %s after %d attempts: %s", topic, publish.attempts, error);
+        publish.result.complete(PublishResult.failed(topic, publish.attempts,
+                Duration.ofNanos(System.nanoTime() - publish.createdNanos), error));
+    }
+
+    private static class Publish {
+        private final MessageOutbox.Entry entry;
+        private final long createdNanos;
+        private final CompletableFuture<PublishResult> result = new CompletableFuture<>();
+        private boolean isReplay;
+        private int attempts;
+        private long attemptNanos;
+        private int connection;
+
+        private Publish(MessageOutbox.Entry entry, long createdNanos) {
+            this.entry = entry;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.tlvlp.iot.server.persistence;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.ScrollMode;
+import org.hibernate.SessionFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads query results one row at a time with a forward-only cursor of a stateless session,
+ * so neither the result list nor a persistence context grows with the number of rows.
+ * The session is independent of the request, the rows can be read while the response is written.
+ */
+@ApplicationScoped
+public class EntityStreamer {
+
+    @FunctionalInterface
+    public interface RowHandler<T> {
+        void handle(T row) throws IOException;
+    }
+
+    private final SessionFactory sessionFactory;
+    private final Integer fetchSize;
+
+    /**
+     * @param fetchSize the JDBC fetch size, MySQL Connector/J streams the rows one by one with Integer.MIN_VALUE
+     *                  instead of reading the whole result set into memory.
+     */
+    public EntityStreamer(EntityManagerFactory entityManagerFactory,
+                          @ConfigProperty(name = "mcu.streaming.fetch-size", defaultValue = "-2147483648") Integer fetchSize) {
+        this.sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        this.fetchSize = fetchSize;
+    }
+
+    public <T> void stream(String query, Class<T> type, Map<String, Object> parameters, RowHandler<T> handler)
+            throws IOException {
+        try (var session = sessionFactory.openStatelessSession()) {
+            var hibernateQuery = session.createQuery(query, type)
+                    .setFetchSize(fetchSize)
+                    .setReadOnly(true);
+            parameters.forEach(hibernateQuery::setParameter);
+            try (var results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    handler.handle(type.cast(results.get(0)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the rows of a query that selects more than one entity or value, eg. the two sides of a join.
+     */
+    public void streamTuples(String query, Map<String, Object> parameters, RowHandler<Object[]> handler)
+            throws IOException {
+        try (var session = sessionFactory.openStatelessSession()) {
+            var hibernateQuery = session.createQuery(query)
+                    .setFetchSize(fetchSize)
+                    .setReadOnly(true);
+            parameters.forEach(hibernateQuery::setParameter);
+            try (var results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    handler.handle(results.get());
+                }
+            }
+        }
+    }
+}
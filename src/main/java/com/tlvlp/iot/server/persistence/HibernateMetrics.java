@@ -0,0 +1,180 @@
+package com.tlvlp.iot.server.persistence;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.Startup;
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEvent;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEvent;
+import org.hibernate.event.spi.FlushEventListener;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.event.spi.PostLoadEvent;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JDBC statement, batch and flush timings of the Hibernate sessions.
+ * A {@link Listener} is created for every session, outside of CDI, so the timers are handed over to it in a static field.
+ * Quarkus does not pass hibernate.session.events.auto through to Hibernate, so the {@link ListenerIntegrator}
+ * (META-INF/services) adds the listener to a session on its first flush, auto flush or entity load.
+ * Every statement of a transaction is preceded by one of these, a query outside of a transaction is only timed
+ * from the second statement of the session.
+ */
+@Startup
+@ApplicationScoped
+public class HibernateMetrics {
+
+    private static volatile Timers timers;
+
+    public HibernateMetrics(MeterRegistry meterRegistry) {
+        timers = new Timers(
+                timer(meterRegistry, "hibernate.jdbc.statement.duration", "Execution time of the JDBC statements."),
+                timer(meterRegistry, "hibernate.jdbc.batch.duration", "Execution time of the JDBC batches."),
+                timer(meterRegistry, "hibernate.flush.duration", "Duration of the session flushes."));
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .register(meterRegistry);
+    }
+
+    private static class Timers {
+        private final Timer statement;
+        private final Timer batch;
+        private final Timer flush;
+
+        private Timers(Timer statement, Timer batch, Timer flush) {
+            this.statement = statement;
+            this.batch = batch;
+            this.flush = flush;
+        }
+    }
+
+    public static class ListenerIntegrator implements Integrator {
+
+        @Override
+        public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+                              SessionFactoryServiceRegistry serviceRegistry) {
+            var attacher = new ListenerAttacher();
+            var eventListenerRegistry = serviceRegistry.getService(EventListenerRegistry.class);
+            // Before the default listeners, which execute the statements
+            eventListenerRegistry.prependListeners(EventType.FLUSH, attacher);
+            eventListenerRegistry.prependListeners(EventType.AUTO_FLUSH, attacher);
+            eventListenerRegistry.prependListeners(EventType.LOAD, attacher);
+            eventListenerRegistry.appendListeners(EventType.POST_LOAD, attacher);
+        }
+
+        @Override
+        public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        }
+    }
+
+    /**
+     * Adds a {@link Listener} to the session of the event, once. The listener forgets the session when it ends.
+     */
+    private static class ListenerAttacher
+            implements FlushEventListener, AutoFlushEventListener, LoadEventListener, PostLoadEventListener {
+
+        private final ConcurrentMap<SharedSessionContractImplementor, Listener> listeners = new ConcurrentHashMap<>();
+
+        private void attach(SharedSessionContractImplementor session) {
+            if (!listeners.containsKey(session)) {
+                listeners.computeIfAbsent(session, key -> {
+                    var listener = new Listener(() -> listeners.remove(key));
+                    key.getEventListenerManager().addListener(listener);
+                    return listener;
+                });
+            }
+        }
+
+        @Override
+        public void onFlush(FlushEvent event) {
+            attach(event.getSession());
+        }
+
+        @Override
+        public void onAutoFlush(AutoFlushEvent event) {
+            attach(event.getSession());
+        }
+
+        @Override
+        public void onLoad(LoadEvent event, LoadType loadType) {
+            attach(event.getSession());
+        }
+
+        @Override
+        public void onPostLoad(PostLoadEvent event) {
+            attach(event.getSession());
+        }
+    }
+
+    /**
+     * A session scoped listener, the events of a session are not nested and come from a single thread.
+     */
+    private static class Listener extends BaseSessionEventListener {
+
+        private final Runnable onEnd;
+        private long statementStart;
+        private long batchStart;
+        private long flushStart;
+
+        private Listener(Runnable onEnd) {
+            this.onEnd = onEnd;
+        }
+
+        @Override
+        public void jdbcExecuteStatementStart() {
+            statementStart = System.nanoTime();
+        }
+
+        @Override
+        public void jdbcExecuteStatementEnd() {
+            record(statementStart, timers != null ? timers.statement : null);
+        }
+
+        @Override
+        public void jdbcExecuteBatchStart() {
+            batchStart = System.nanoTime();
+        }
+
+        @Override
+        public void jdbcExecuteBatchEnd() {
+            record(batchStart, timers != null ? timers.batch : null);
+        }
+
+        @Override
+        public void flushStart() {
+            flushStart = System.nanoTime();
+        }
+
+        @Override
+        public void flushEnd(int numberOfEntities, int numberOfCollections) {
+            record(flushStart, timers != null ? timers.flush : null);
+        }
+
+        @Override
+        public void end() {
+            onEnd.run();
+        }
+
+        private static void record(long startNanos, Timer timer) {
+            if (timer != null && startNanos != 0) {
+                timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
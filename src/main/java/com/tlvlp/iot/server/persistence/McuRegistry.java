@@ -0,0 +1,256 @@
+package com.tlvlp.iot.server.persistence;
+
+import com.tlvlp.iot.server.mcu.Module;
+import com.tlvlp.iot.server.mcu.Unit;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.persistence.EntityManager;
+import javax.transaction.Transactional;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Write-through, in-memory registry of the {@link Unit}s and {@link Module}s.
+ * It is loaded in bulk at startup and kept up to date by the repositories on every save,
+ * so the ingress lookups can be answered without querying the database.
+ * <p>
+ * The registry never shares its instances: the lookups hand out copies and the puts store copies.
+ * A caller can change and save its copy like a detached entity, without another session seeing or flushing
+ * the half-applied changes. The saved state replaces the entry, the last save wins like in the database.
+ * Entries put by a transaction that is rolled back are evicted and reloaded on the next lookup.
+ */
+@Flogger
+@ApplicationScoped
+public class McuRegistry {
+
+    private static final String TOUCHED_UNITS_RESOURCE = McuRegistry.class.getName() + ".touched";
+
+    private final EntityManager entityManager;
+    private final TransactionCallbacks transactionCallbacks;
+
+    private final ConcurrentMap<UnitKey, Unit> unitsByKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Unit> unitsById = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, UnitModules> modulesByUnitId = new ConcurrentHashMap<>();
+
+    private final Counter unitHits;
+    private final Counter unitMisses;
+    private final Counter moduleHits;
+    private final Counter moduleMisses;
+    private final Counter activeModulesHits;
+    private final Counter activeModulesMisses;
+
+    public McuRegistry(EntityManager entityManager,
+                       TransactionCallbacks transactionCallbacks,
+                       MeterRegistry meterRegistry) {
+        this.entityManager = entityManager;
+        this.transactionCallbacks = transactionCallbacks;
+        this.unitHits = lookupCounter(meterRegistry, "unit", "hit");
+        this.unitMisses = lookupCounter(meterRegistry, "unit", "miss");
+        this.moduleHits = lookupCounter(meterRegistry, "module", "hit");
+        this.moduleMisses = lookupCounter(meterRegistry, "module", "miss");
+        this.activeModulesHits = lookupCounter(meterRegistry, "active_modules", "hit");
+        this.activeModulesMisses = lookupCounter(meterRegistry, "active_modules", "miss");
+        meterRegistry.gaugeMapSize("mcu.registry.units", List.of(), unitsById);
+        meterRegistry.gaugeMapSize("mcu.registry.units.with.modules", List.of(), modulesByUnitId);
+    }
+
+    private static Counter lookupCounter(MeterRegistry meterRegistry, String type, String result) {
+        return Counter.builder("mcu.registry.lookups")
+                .description("McuRegistry lookups, misses are answered by the database.")
+                .tag("type", type)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    @Transactional
+    void loadOnStartup(@Observes StartupEvent event) {
+        var units = entityManager.createQuery("from Unit", Unit.class).getResultList();
+        var modules = entityManager.createQuery("from Module", Module.class).getResultList();
+        units.forEach(unit -> putUnit(unit, true));
+        modules.forEach(this::putModule);
+        log.atInfo().log("McuRegistry is loaded with %d units and %d modules.", units.size(), modules.size());
+    }
+
+    public Optional<Unit> findUnit(String project, String name) {
+        var key = new UnitKey(project, name);
+        var unit = unitsByKey.get(key);
+        if (unit == null) {
+            unitMisses.increment();
+            return Optional.empty();
+        }
+        unitHits.increment();
+        return Optional.of(copyOf(unit));
+    }
+
+    public Optional<Unit> findUnitById(Long unitId) {
+        var unit = unitsById.get(unitId);
+        if (unit == null) {
+            unitMisses.increment();
+            return Optional.empty();
+        }
+        unitHits.increment();
+        return Optional.of(copyOf(unit));
+    }
+
+    /**
+     * Resolves the members of a project from memory, ordered by their id.
+     * A unit that was evicted after a rollback is left out until its next lookup.
+     */
+    public List<Unit> findUnitsByProject(String project) {
+        return unitsById.values().stream()
+                .filter(unit -> project.equals(unit.getProject()))
+                .sorted(Comparator.comparing(Unit::getId))
+                .map(McuRegistry::copyOf)
+                .collect(Collectors.toList());
+    }
+
+    public List<Unit> findActiveUnits() {
+        return unitsById.values().stream()
+                .filter(unit -> Boolean.TRUE.equals(unit.getActive()))
+                .map(McuRegistry::copyOf)
+                .collect(Collectors.toList());
+    }
+
+    public Optional<Module> findModule(Long unitId, String module, String name) {
+        var unitModules = modulesByUnitId.get(unitId);
+        var found = unitModules == null ? null : unitModules.modules.get(new ModuleKey(module, name));
+        if (found == null) {
+            moduleMisses.increment();
+            return Optional.empty();
+        }
+        moduleHits.increment();
+        return Optional.of(copyOf(found));
+    }
+
+    /**
+     * @return the active modules of the unit or an empty Optional if the registry doesn't hold the full module set.
+     */
+    public Optional<Set<Module>> findActiveModules(Long unitId) {
+        var unitModules = modulesByUnitId.get(unitId);
+        if (unitModules == null || !unitModules.complete) {
+            activeModulesMisses.increment();
+            return Optional.empty();
+        }
+        activeModulesHits.increment();
+        return Optional.of(unitModules.modules.values().stream()
+                .filter(Module::getActive)
+                .map(McuRegistry::copyOf)
+                .collect(Collectors.toSet()));
+    }
+
+    /**
+     * @param complete true if the unit is known to have no modules other than the ones put in the registry,
+     *                 eg. the unit was just created.
+     * @return the given unit, the registry keeps a copy of it.
+     */
+    public Unit putUnit(Unit unit, boolean complete) {
+        var entry = copyOf(unit);
+        var previous = unitsById.put(entry.getId(), entry);
+        if (previous != null) {
+            unitsByKey.remove(new UnitKey(previous.getProject(), previous.getName()), previous);
+        }
+        unitsByKey.put(new UnitKey(entry.getProject(), entry.getName()), entry);
+        if (complete) {
+            modulesByUnitId.computeIfAbsent(unit.getId(), id -> new UnitModules(true));
+        }
+        touch(unit.getId());
+        return unit;
+    }
+
+    /**
+     * @return the given module, the registry keeps a copy of it.
+     */
+    public Module putModule(Module module) {
+        modulesByUnitId.computeIfAbsent(module.getUnitId(), id -> new UnitModules(false))
+                .modules.put(new ModuleKey(module.getModule(), module.getName()), copyOf(module));
+        touch(module.getUnitId());
+        return module;
+    }
+
+    /**
+     * Replaces the module set of the unit with the full list of its modules.
+     */
+    public void putModules(Long unitId, Collection<Module> modules) {
+        var unitModules = new UnitModules(true);
+        modules.forEach(module -> unitModules.modules.put(new ModuleKey(module.getModule(), module.getName()), copyOf(module)));
+        modulesByUnitId.put(unitId, unitModules);
+        touch(unitId);
+    }
+
+    public void evictUnit(Long unitId) {
+        var unit = unitsById.remove(unitId);
+        if (unit != null) {
+            unitsByKey.remove(new UnitKey(unit.getProject(), unit.getName()), unit);
+        }
+        modulesByUnitId.remove(unitId);
+    }
+
+    /**
+     * Remembers the units that are put in the current transaction, so their uncommitted state can be evicted on rollback.
+     */
+    private void touch(Long unitId) {
+        if (!transactionCallbacks.isTransactionActive()) {
+            return;
+        }
+        Set<Long> touched = transactionCallbacks.getResource(TOUCHED_UNITS_RESOURCE, HashSet::new);
+        if (touched.add(unitId)) {
+            transactionCallbacks.afterRollback(() -> {
+                log.atWarning().log("Transaction was rolled back, evicting unit from the registry: %s", unitId);
+                evictUnit(unitId);
+            });
+        }
+    }
+
+    private static Unit copyOf(Unit unit) {
+        return new Unit()
+                .setId(unit.getId())
+                .setProject(unit.getProject())
+                .setName(unit.getName())
+                .setActive(unit.getActive())
+                .setLastSeenUtc(unit.getLastSeenUtc());
+    }
+
+    private static Module copyOf(Module module) {
+        return new Module()
+                .setId(module.getId())
+                .setUnitId(module.getUnitId())
+                .setModule(module.getModule())
+                .setName(module.getName())
+                .setValue(module.getValue())
+                .setActive(module.getActive());
+    }
+
+    @Value
+    private static class UnitKey {
+        String project;
+        String name;
+    }
+
+    @Value
+    private static class ModuleKey {
+        String module;
+        String name;
+    }
+
+    private static class UnitModules {
+        private final ConcurrentMap<ModuleKey, Module> modules = new ConcurrentHashMap<>();
+        private final boolean complete;
+
+        private UnitModules(boolean complete) {
+            this.complete = complete;
+        }
+    }
+}
@@ -3,24 +3,53 @@ package com.tlvlp.iot.server.persistence;
 import com.tlvlp.iot.server.mcu.Module;
 
 import javax.enterprise.context.ApplicationScoped;
-import java.util.HashSet;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class ModuleRepository implements PanacheRepositoryWithSave<Module> {
 
+    private final McuRegistry registry;
+    private final EntityStreamer entityStreamer;
+
+    public ModuleRepository(McuRegistry registry, EntityStreamer entityStreamer) {
+        this.registry = registry;
+        this.entityStreamer = entityStreamer;
+    }
+
     public Set<Module> getAllActiveModulesByUnitId(Long unitId) {
-        return new HashSet<>(list("unit_id = ?1 and active = ?2", unitId, true));
+        return registry.findActiveModules(unitId)
+                .orElseGet(() -> {
+                    var modules = findAllByUnitId(unitId);
+                    registry.putModules(unitId, modules);
+                    return modules.stream()
+                            .filter(Module::getActive)
+                            .collect(Collectors.toSet());
+                });
     }
 
     public Optional<Module> findByUnitIdAndModuleAndName(Long unitId, String module, String name) {
-        return find("unit_id = ?1 and module = ?2 and name = ?3", unitId, module, name)
-                .singleResultOptional();
+        return registry.findModule(unitId, module, name)
+                .or(() -> find("unit_id = ?1 and module = ?2 and name = ?3", unitId, module, name)
+                        .singleResultOptional()
+                        .map(registry::putModule));
     }
 
     public List<Module> findAllByUnitId(Long unitId) {
         return list("unit_id", unitId);
     }
+
+    public void forEachModuleByUnitId(Long unitId, EntityStreamer.RowHandler<Module> handler) throws IOException {
+        entityStreamer.stream("from Module where unitId = :unitId order by id", Module.class,
+                Map.of("unitId", unitId), handler);
+    }
+
+    @Override
+    public void onSaved(Module module, boolean created) {
+        registry.putModule(module);
+    }
 }
@@ -1,16 +1,35 @@
 package com.tlvlp.iot.server.persistence;
 
 import io.quarkus.hibernate.orm.panache.PanacheRepository;
+import org.hibernate.engine.spi.SessionImplementor;
 
 public interface PanacheRepositoryWithSave<T> extends PanacheRepository<T> {
 
     default T save(T entity) {
         if(isPersistent(entity)) {
             persist(entity);
+            onSaved(entity, false);
             return entity;
+        }
+        var session = getEntityManager().unwrap(SessionImplementor.class);
+        var persister = session.getEntityPersister(null, entity);
+        var id = persister.getIdentifier(entity, session);
+        if(id == null) {
+            persist(entity);
+            onSaved(entity, true);
+            return entity;
+        }
+        // Detached instances (eg. from the McuRegistry) are reattached without reloading them from the database,
+        // unless another instance with the same id is already managed in this session.
+        T saved;
+        if(session.getPersistenceContextInternal().getEntity(session.generateEntityKey(id, persister)) == null) {
+            session.update(entity);
+            saved = entity;
         } else {
-            return getEntityManager().merge(entity);
+            saved = getEntityManager().merge(entity);
         }
+        onSaved(saved, false);
+        return saved;
     }
 
     default T saveAndFlush(T entity) {
@@ -19,4 +38,14 @@ public interface PanacheRepositoryWithSave<T> extends PanacheRepository<T> {
         return saved;
     }
 
+    /**
+     * Called with the managed instance after every {@link #save(Object)}.
+     * Repositories override it to keep the {@link McuRegistry} in sync with the database.
+     *
+     * @param entity the saved entity.
+     * @param created true if the entity was newly persisted.
+     */
+    default void onSaved(T entity, boolean created) {
+    }
+
 }
@@ -0,0 +1,103 @@
+package com.tlvlp.iot.server.persistence;
+
+import lombok.extern.flogger.Flogger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Callbacks and resources bound to the current JTA transaction.
+ */
+@Flogger
+@ApplicationScoped
+public class TransactionCallbacks {
+
+    private static final String CALLBACKS_RESOURCE = TransactionCallbacks.class.getName() + ".callbacks";
+
+    private final TransactionSynchronizationRegistry transactionRegistry;
+
+    public TransactionCallbacks(TransactionSynchronizationRegistry transactionRegistry) {
+        this.transactionRegistry = transactionRegistry;
+    }
+
+    public boolean isTransactionActive() {
+        return transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE;
+    }
+
+    /**
+     * Runs the callback after the current transaction is committed, or right away if there is no active transaction.
+     */
+    public void afterCommit(Runnable callback) {
+        if (!isTransactionActive()) {
+            callback.run();
+            return;
+        }
+        getCallbacks().afterCommit.add(callback);
+    }
+
+    /**
+     * Runs the callback after the current transaction is rolled back. Ignored if there is no active transaction.
+     */
+    public void afterRollback(Runnable callback) {
+        if (isTransactionActive()) {
+            getCallbacks().afterRollback.add(callback);
+        }
+    }
+
+    /**
+     * @return the resource of the current transaction under the given key, created by the factory on first use.
+     * @throws IllegalStateException if there is no active transaction.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getResource(String key, Supplier<T> factory) {
+        if (!isTransactionActive()) {
+            throw new IllegalStateException("No active transaction for resource: " + key);
+        }
+        var resource = (T) transactionRegistry.getResource(key);
+        if (resource == null) {
+            resource = factory.get();
+            transactionRegistry.putResource(key, resource);
+        }
+        return resource;
+    }
+
+    private Callbacks getCallbacks() {
+        var callbacks = (Callbacks) transactionRegistry.getResource(CALLBACKS_RESOURCE);
+        if (callbacks == null) {
+            callbacks = new Callbacks();
+            transactionRegistry.putResource(CALLBACKS_RESOURCE, callbacks);
+            transactionRegistry.registerInterposedSynchronization(callbacks);
+        }
+        return callbacks;
+    }
+
+    private static class Callbacks implements Synchronization {
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private final List<Runnable> afterRollback = new ArrayList<>();
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        /**
+         * A failed callback is logged, the rest of them still run.
+         */
+        @Override
+        public void afterCompletion(int status) {
+            var callbacks = status == Status.STATUS_COMMITTED ? afterCommit : afterRollback;
+            for (Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    log.atSevere().withCause(e).log("Unable to run a callback after the transaction completed with status: %d",
+                            status);
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,109 @@
 package com.tlvlp.iot.server.persistence;
 
 import com.tlvlp.iot.server.mcu.UnitLog;
+import io.quarkus.panache.common.Parameters;
 import io.quarkus.panache.common.Sort;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Transactional;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
 
 @ApplicationScoped
 public class UnitLogRepository implements PanacheRepositoryWithSave<UnitLog> {
 
-    public List<UnitLog> findAllByUnitId(Long unitId) {
-        return list("unit_id", Sort.ascending("id"), unitId);
+    private final EntityStreamer entityStreamer;
+
+    public UnitLogRepository(EntityStreamer entityStreamer) {
+        this.entityStreamer = entityStreamer;
+    }
+
+    /**
+     * Keyset pagination in id order, served by the (unit_id, id) and (unit_id, time_utc) indexes.
+     *
+     * @param afterId the id of the last log of the previous page or null for the first page.
+     * @param from    inclusive start of the time range or null.
+     * @param to      exclusive end of the time range or null.
+     * @param types   the log types to return, all of them if empty.
+     * @param limit   the maximum number of logs to return.
+     */
+    public List<UnitLog> findPageByUnitId(Long unitId, Long afterId, ZonedDateTime from, ZonedDateTime to,
+                                          Collection<UnitLog.Type> types, int limit) {
+        var parameters = Parameters.with("unitId", unitId);
+        var query = filterQuery(parameters, afterId, from, to, types);
+        return find(query, Sort.ascending("id"), parameters)
+                .page(0, limit)
+                .list();
+    }
+
+    /**
+     * Reads all the matching logs of the unit one by one in id order, see {@link #findPageByUnitId}.
+     */
+    public void forEachLogByUnitId(Long unitId, ZonedDateTime from, ZonedDateTime to, Collection<UnitLog.Type> types,
+                                   EntityStreamer.RowHandler<UnitLog> handler) throws IOException {
+        var parameters = Parameters.with("unitId", unitId);
+        var query = filterQuery(parameters, null, from, to, types);
+        entityStreamer.stream("from UnitLog where " + query + " order by id", UnitLog.class, parameters.map(), handler);
+    }
+
+    private static String filterQuery(Parameters parameters, Long afterId, ZonedDateTime from, ZonedDateTime to,
+                                      Collection<UnitLog.Type> types) {
+        var query = new StringBuilder("unitId = :unitId");
+        if (afterId != null) {
+            query.append(" and id > :afterId");
+            parameters.and("afterId", afterId);
+        }
+        if (from != null) {
+            query.append(" and timeUtc >= :from");
+            parameters.and("from", from);
+        }
+        if (to != null) {
+            query.append(" and timeUtc < :to");
+            parameters.and("to", to);
+        }
+        if (!types.isEmpty()) {
+            query.append(" and type in :types");
+            parameters.and("types", types);
+        }
+        return query.toString();
+    }
+
+    /**
+     * Persists the new logs in a separate transaction, the inserts are sent in JDBC batches.
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public void persistAll(List<UnitLog> unitLogs) {
+        persist(unitLogs);
+    }
+
+    /**
+     * Deletes a batch of the logs that are older than the cutoff of their type, in a separate short transaction.
+     * The batch is bounded by the id of the last deleted log, so every batch continues the same pass over the table.
+     *
+     * @param cutoffs the logs of each type that are older than its cutoff are deleted.
+     * @param afterId the last id of the previous batch, or 0 for the first one.
+     * @return the ids of the deleted logs in ascending order, fewer than the limit in the last batch.
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public List<Long> deleteBatchOlderThan(Map<UnitLog.Type, ZonedDateTime> cutoffs, long afterId, int limit) {
+        var parameters = Parameters.with("afterId", afterId);
+        var typeFilter = new StringJoiner(" or ", "(", ")");
+        cutoffs.forEach((type, cutoff) -> {
+            typeFilter.add(String.format("(type = :type_%1$s and timeUtc < :cutoff_%1$s)", type.name()));
+            parameters.and("type_" + type.name(), type).and("cutoff_" + type.name(), cutoff);
+        });
+        var query = getEntityManager()
+                .createQuery("select id from UnitLog where id > :afterId and " + typeFilter + " order by id", Long.class)
+                .setMaxResults(limit);
+        parameters.map().forEach(query::setParameter);
+        var ids = query.getResultList();
+        if (!ids.isEmpty()) {
+            delete("id in ?1", ids);
+        }
+        return ids;
     }
 }
@@ -0,0 +1,278 @@
+package com.tlvlp.iot.server.persistence;
+
+import com.tlvlp.iot.server.mcu.UnitLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Value;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.stream.Collectors;
+
+/**
+ * Purges the {@link UnitLog}s that are older than the retention of their type
+ * (mcu.log-retention.days.TYPE, defaults to mcu.log-retention.default-days, 0 keeps them forever).
+ * <p>
+ * The unit_logs table is range partitioned by month on time_utc (see 4_unit_logs_time_partitions.sql).
+ * The partitions that only hold logs older than the longest retention are dropped as a whole,
+ * the logs of the types with a shorter retention are deleted in small batches.
+ * The next months' partitions are created ahead. Without partitioning, every type is deleted in batches.
+ * The table is looked up in the database of the connection.
+ */
+@Flogger
+@ApplicationScoped
+public class UnitLogRetention {
+
+    private static final String MAX_PARTITION = "pmax";
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final DateTimeFormatter PARTITION_BOUND = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter PARTITION_DESCRIPTION = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss[.SSSSSS]");
+
+    private final UnitLogRepository unitLogRepository;
+    private final DataSource dataSource;
+    private final Map<UnitLog.Type, Duration> retentions;
+    private final Integer batchSize;
+    private final Integer futurePartitions;
+
+    private final Timer purgeTimer;
+    private final Counter droppedPartitions;
+    private final Counter partitionRows;
+    private final Counter deletedRows;
+
+    public UnitLogRetention(UnitLogRepository unitLogRepository,
+                            DataSource dataSource,
+                            Config config,
+                            MeterRegistry meterRegistry,
+                            @ConfigProperty(name = "mcu.log-retention.default-days", defaultValue = "365") Long defaultDays,
+                            @ConfigProperty(name = "mcu.log-retention.batch-size", defaultValue = "1000") Integer batchSize,
+                            @ConfigProperty(name = "mcu.log-retention.future-partitions", defaultValue = "3") Integer futurePartitions) {
+        this.unitLogRepository = unitLogRepository;
+        this.dataSource = dataSource;
+        this.batchSize = Math.max(1, batchSize);
+        this.futurePartitions = futurePartitions;
+        this.retentions = new EnumMap<>(UnitLog.Type.class);
+        for (UnitLog.Type type : UnitLog.Type.values()) {
+            var days = config.getOptionalValue("mcu.log-retention.days." + type.name(), Long.class).orElse(defaultDays);
+            if (days > 0) {
+                retentions.put(type, Duration.ofDays(days));
+            }
+        }
+
+        this.purgeTimer = Timer.builder("mcu.log.retention.duration")
+                .description("Time to purge the expired unit logs.")
+                .register(meterRegistry);
+        this.droppedPartitions = Counter.builder("mcu.log.retention.partitions.dropped")
+                .description("Expired unit log partitions that were dropped.")
+                .register(meterRegistry);
+        this.partitionRows = removedCounter(meterRegistry, "partition");
+        this.deletedRows = removedCounter(meterRegistry, "batch");
+    }
+
+    /**
+     * The two methods share the meter, so they share its description.
+     */
+    private static Counter removedCounter(MeterRegistry meterRegistry, String method) {
+        return Counter.builder("mcu.log.retention.removed")
+                .description("Expired unit logs that were removed with their dropped partitions (estimated) " +
+                        "or deleted in batches.")
+                .tag("method", method)
+                .register(meterRegistry);
+    }
+
+    public PurgeResult purge() {
+        var sample = Timer.start();
+        var now = ZonedDateTime.now(ZoneOffset.UTC);
+        var partitions = findPartitions();
+        var batchTypes = new EnumMap<UnitLog.Type, ZonedDateTime>(UnitLog.Type.class);
+        var dropped = List.<Partition>of();
+
+        if (partitions.isEmpty()) {
+            retentions.forEach((type, retention) -> batchTypes.put(type, now.minus(retention)));
+        } else {
+            createFuturePartitions(partitions, YearMonth.from(now));
+            // Only the partitions that are expired for every type can be dropped.
+            var longestRetention = retentions.size() == UnitLog.Type.values().length
+                    ? Collections.max(retentions.values())
+                    : null;
+            if (longestRetention != null) {
+                dropped = dropPartitions(partitions, now.minus(longestRetention).toLocalDateTime());
+            }
+            retentions.forEach((type, retention) -> {
+                if (!retention.equals(longestRetention)) {
+                    batchTypes.put(type, now.minus(retention));
+                }
+            });
+        }
+        var deleted = deleteInBatches(batchTypes);
+
+        var duration = Duration.ofNanos(sample.stop(purgeTimer));
+        var result = new PurgeResult(duration,
+                dropped.stream().map(Partition::getName).collect(Collectors.toList()),
+                dropped.stream().mapToLong(Partition::getRows).sum(),
+                deleted);
+        droppedPartitions.increment(result.getDroppedPartitions().size());
+        partitionRows.increment(result.getPartitionRows());
+        deletedRows.increment(result.getDeletedRows());
+        log.atInfo().log("Unit log retention finished in %d ms: dropped partitions %s (~%d logs), deleted %d logs.",
+                duration.toMillis(), result.getDroppedPartitions(), result.getPartitionRows(), result.getDeletedRows());
+        return result;
+    }
+
+    /**
+     * @return the partitions of unit_logs in range order, empty if the table is not partitioned
+     * or the database has no partitioning (eg. H2).
+     */
+    private List<Partition> findPartitions() {
+        var partitions = new ArrayList<Partition>();
+        try (var connection = dataSource.getConnection();
+             var statement = connection.prepareStatement("SELECT PARTITION_NAME, PARTITION_DESCRIPTION, TABLE_ROWS " +
+                     "FROM information_schema.PARTITIONS " +
+                     "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'unit_logs' AND PARTITION_NAME IS NOT NULL " +
+                     "ORDER BY PARTITION_ORDINAL_POSITION")) {
+            try (var results = statement.executeQuery()) {
+                while (results.next()) {
+                    partitions.add(new Partition(results.getString(1), parseBound(results.getString(2)), results.getLong(3)));
+                }
+            }
+        } catch (SQLException e) {
+            log.atWarning().log("Unit log partitions are not available, the expired logs are deleted in batches: %s",
+                    e.getMessage());
+            return List.of();
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the exclusive upper bound of the partition, empty for MAXVALUE.
+     */
+    static Optional<LocalDateTime> parseBound(String description) {
+        if (description == null || description.equalsIgnoreCase("MAXVALUE")) {
+            return Optional.empty();
+        }
+        return Optional.of(LocalDateTime.parse(description.replace("'", ""), PARTITION_DESCRIPTION));
+    }
+
+    /**
+     * Splits the monthly partitions off the catch-all MAXVALUE partition until the next months are covered.
+     */
+    private void createFuturePartitions(List<Partition> partitions, YearMonth currentMonth) {
+        reorganizeFuturePartitions(partitions, currentMonth, futurePartitions).ifPresent(ddl -> {
+            execute(ddl);
+            log.atInfo().log("Created the unit log partitions until %s.", currentMonth.plusMonths(futurePartitions + 1L));
+        });
+    }
+
+    /**
+     * @return the statement that adds a partition for every month after the last bound, until the current month and
+     * the given number of future months are covered. Empty if they are covered already.
+     */
+    static Optional<String> reorganizeFuturePartitions(List<Partition> partitions, YearMonth currentMonth,
+                                                       int futurePartitions) {
+        // The month of an exclusive upper bound is the first month that is not covered.
+        var firstUncovered = partitions.stream()
+                .map(Partition::getUpperBound)
+                .flatMap(Optional::stream)
+                .max(LocalDateTime::compareTo)
+                .map(YearMonth::from)
+                .orElse(currentMonth);
+        var coveredUntil = currentMonth.plusMonths(futurePartitions + 1L);
+        if (!firstUncovered.isBefore(coveredUntil)) {
+            return Optional.empty();
+        }
+        var newPartitions = new StringJoiner(", ");
+        for (var month = firstUncovered; month.isBefore(coveredUntil); month = month.plusMonths(1)) {
+            newPartitions.add(String.format("PARTITION %s VALUES LESS THAN ('%s')",
+                    PARTITION_NAME.format(month), month.plusMonths(1).atDay(1).atStartOfDay().format(PARTITION_BOUND)));
+        }
+        return Optional.of(String.format("ALTER TABLE unit_logs REORGANIZE PARTITION %1$s INTO (%2$s, " +
+                "PARTITION %1$s VALUES LESS THAN (MAXVALUE))", MAX_PARTITION, newPartitions));
+    }
+
+    private List<Partition> dropPartitions(List<Partition> partitions, LocalDateTime cutoff) {
+        var expired = expiredPartitions(partitions, cutoff);
+        if (!expired.isEmpty()) {
+            execute("ALTER TABLE unit_logs DROP PARTITION " +
+                    expired.stream().map(Partition::getName).collect(Collectors.joining(", ")));
+        }
+        return expired;
+    }
+
+    /**
+     * @return the partitions that only hold logs before the cutoff.
+     * The last partition is always kept, new logs can still be inserted.
+     */
+    static List<Partition> expiredPartitions(List<Partition> partitions, LocalDateTime cutoff) {
+        if (partitions.isEmpty()) {
+            return List.of();
+        }
+        return partitions.subList(0, partitions.size() - 1).stream()
+                .filter(partition -> partition.getUpperBound().map(bound -> !bound.isAfter(cutoff)).orElse(false))
+                .collect(Collectors.toList());
+    }
+
+    private void execute(String ddl) {
+        try (Connection connection = dataSource.getConnection();
+             var statement = connection.createStatement()) {
+            statement.execute(ddl);
+        } catch (SQLException e) {
+            throw new IllegalStateException(String.format("Unable to execute %s: %s", ddl, e.getMessage()), e);
+        }
+    }
+
+    private long deleteInBatches(Map<UnitLog.Type, ZonedDateTime> cutoffs) {
+        if (cutoffs.isEmpty()) {
+            return 0;
+        }
+        long deleted = 0;
+        long afterId = 0;
+        List<Long> ids;
+        do {
+            ids = unitLogRepository.deleteBatchOlderThan(cutoffs, afterId, batchSize);
+            deleted += ids.size();
+            if (!ids.isEmpty()) {
+                afterId = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == batchSize);
+        return deleted;
+    }
+
+    @Value
+    static class Partition {
+        String name;
+        Optional<LocalDateTime> upperBound;
+        /**
+         * An estimate from the table statistics.
+         */
+        long rows;
+    }
+
+    @Value
+    public static class PurgeResult {
+        Duration duration;
+        List<String> droppedPartitions;
+        /**
+         * An estimate from the table statistics.
+         */
+        long partitionRows;
+        long deletedRows;
+    }
+}
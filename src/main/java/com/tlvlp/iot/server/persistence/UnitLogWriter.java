@@ -0,0 +1,317 @@
+package com.tlvlp.iot.server.persistence;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tlvlp.iot.server.mcu.UnitLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.interceptor.Interceptor;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind sink for the {@link UnitLog}s, so the audit writes don't add latency to the state updates.
+ * Logs written within a transaction are queued after it is committed and discarded if it is rolled back.
+ * A background worker drains the bounded queue and persists the logs in batches (multi-row inserts).
+ * When the queue is full the {@link OverflowPolicy} applies. The queue is flushed on shutdown.
+ */
+@Flogger
+@ApplicationScoped
+public class UnitLogWriter {
+
+    public enum OverflowPolicy {
+        /** The writing thread waits for free space in the queue. */
+        BLOCK,
+        /** The oldest queued log is dropped to make space. */
+        DROP_OLDEST,
+        /** The log is appended to the spill file and written to the database once the queue is empty. */
+        SPILL
+    }
+
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long REPLAY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final UnitLogRepository unitLogRepository;
+    private final TransactionCallbacks transactionCallbacks;
+    private final ObjectMapper jsonMapper;
+    private final OverflowPolicy overflowPolicy;
+    private final Integer batchSize;
+    private final Path spillFile;
+    private final BlockingDeque<UnitLog> queue;
+    private final ExecutorService worker;
+    private volatile boolean isRunning;
+    private long nextReplayNanos;
+
+    private final Counter writtenLogs;
+    private final Counter droppedLogs;
+    private final Counter spilledLogs;
+    private final Counter rejectedLogs;
+    private final Timer flushTimer;
+
+    public UnitLogWriter(UnitLogRepository unitLogRepository,
+                         TransactionCallbacks transactionCallbacks,
+                         ObjectMapper jsonMapper,
+                         MeterRegistry meterRegistry,
+                         @ConfigProperty(name = "mcu.log-writer.queue-capacity", defaultValue = "10000") Integer queueCapacity,
+                         @ConfigProperty(name = "mcu.log-writer.batch-size", defaultValue = "500") Integer batchSize,
+                         @ConfigProperty(name = "mcu.log-writer.overflow-policy", defaultValue = "BLOCK") OverflowPolicy overflowPolicy,
+                         @ConfigProperty(name = "mcu.log-writer.spill-file", defaultValue = "unit_log_spill.jsonl") String spillFile) {
+        this.unitLogRepository = unitLogRepository;
+        this.transactionCallbacks = transactionCallbacks;
+        this.jsonMapper = jsonMapper;
+        this.overflowPolicy = overflowPolicy;
+        this.batchSize = Math.max(1, batchSize);
+        this.spillFile = Paths.get(spillFile);
+        this.queue = new LinkedBlockingDeque<>(queueCapacity);
+        this.worker = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "unit-log-writer"));
+
+        this.writtenLogs = Counter.builder("mcu.log.writer.written")
+                .description("Unit logs persisted by the write-behind writer.")
+                .register(meterRegistry);
+        this.droppedLogs = Counter.builder("mcu.log.writer.dropped")
+                .description("Unit logs that were dropped due to a full queue or a failed write.")
+                .register(meterRegistry);
+        this.spilledLogs = Counter.builder("mcu.log.writer.spilled")
+                .description("Unit logs that were spilled to the local file.")
+                .register(meterRegistry);
+        this.rejectedLogs = Counter.builder("mcu.log.writer.rejected")
+                .description("Spilled unit logs that could not be parsed on replay and were moved to the rejected file.")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("mcu.log.writer.flush.duration")
+                .description("Time to persist a batch of unit logs.")
+                .register(meterRegistry);
+        meterRegistry.gaugeCollectionSize("mcu.log.writer.queue.size", List.of(), queue);
+    }
+
+    void start(@Observes StartupEvent event) {
+        log.atInfo().log("Starting the unit log writer with overflow policy: %s", overflowPolicy);
+        isRunning = true;
+        worker.submit(this::processQueue);
+    }
+
+    /**
+     * Runs after the default shutdown observers, so the logs of the last ingress batches are flushed as well.
+     */
+    void stop(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) ShutdownEvent event) {
+        log.atInfo().log("Stopping the unit log writer, flushing %d queued logs.", queue.size());
+        isRunning = false;
+        worker.shutdown();
+        try {
+            if (!worker.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.atSevere().log("Unable to flush the unit log writer in time, remaining logs: %d", queue.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the log to be persisted.
+     * Within a transaction the log is queued only after the transaction is committed.
+     */
+    public void write(UnitLog unitLog) {
+        transactionCallbacks.afterCommit(() -> enqueue(unitLog));
+    }
+
+    /**
+     * Queues the logs together, so they are persisted in the same batches.
+     * Within a transaction the logs are queued only after the transaction is committed.
+     */
+    public void writeAll(Collection<UnitLog> unitLogs) {
+        if (!unitLogs.isEmpty()) {
+            transactionCallbacks.afterCommit(() -> unitLogs.forEach(this::enqueue));
+        }
+    }
+
+    private void enqueue(UnitLog unitLog) {
+        try {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    queue.put(unitLog);
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offerLast(unitLog)) {
+                        if (queue.pollFirst() != null) {
+                            droppedLogs.increment();
+                        }
+                    }
+                    break;
+                case SPILL:
+                    if (!queue.offerLast(unitLog)) {
+                        spill(List.of(unitLog));
+                    }
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedLogs.increment();
+            log.atWarning().log("Interrupted while queueing unit log: %s", unitLog);
+        }
+    }
+
+    private void processQueue() {
+        var batch = new ArrayList<UnitLog>(batchSize);
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                var first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    replaySpillFile();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                persist(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.atSevere().withCause(e).log("Unexpected error in the unit log writer.");
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void persist(List<UnitLog> batch) {
+        try {
+            flushTimer.record(() -> unitLogRepository.persistAll(batch));
+            writtenLogs.increment(batch.size());
+        } catch (Exception e) {
+            log.atSevere().log("Unable to persist %d unit logs: %s", batch.size(), e.getMessage());
+            // The ids from the failed transaction are discarded, the logs are persisted as new ones on retry.
+            batch.forEach(unitLog -> unitLog.setId(null));
+            if (overflowPolicy == OverflowPolicy.SPILL) {
+                spill(batch);
+            } else {
+                droppedLogs.increment(batch.size());
+            }
+        }
+    }
+
+    private synchronized void spill(Collection<UnitLog> unitLogs) {
+        try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (UnitLog unitLog : unitLogs) {
+                writer.write(jsonMapper.writeValueAsString(unitLog));
+                writer.newLine();
+            }
+            spilledLogs.increment(unitLogs.size());
+        } catch (IOException e) {
+            droppedLogs.increment(unitLogs.size());
+            log.atSevere().log("Unable to spill %d unit logs to %s: %s", unitLogs.size(), spillFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Persists the spilled logs while the queue is empty.
+     * The spill file is moved aside first, so new spills are not lost while it is replayed.
+     * A replay file that is left over from an earlier run is replayed first, after the lines that were already
+     * persisted (the .progress file), so a crash in the middle of a replay does not duplicate the logs.
+     * The lines that can not be parsed, eg. the torn last line after a crash, are moved to the .rejected file.
+     */
+    private void replaySpillFile() throws IOException {
+        if (!isRunning || System.nanoTime() < nextReplayNanos) {
+            return;
+        }
+        nextReplayNanos = System.nanoTime() + REPLAY_INTERVAL_NANOS;
+        var replayFile = siblingOfSpillFile(".replay");
+        var progressFile = siblingOfSpillFile(".replay.progress");
+        synchronized (this) {
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile)) {
+                    return;
+                }
+                Files.deleteIfExists(progressFile);
+                Files.move(spillFile, replayFile);
+            }
+        }
+        long replayedLines = readProgress(progressFile);
+        log.atInfo().log("Replaying spilled unit logs from %s after line %d", replayFile, replayedLines);
+        var batch = new ArrayList<UnitLog>(batchSize);
+        long lineNumber = 0;
+        // The reader replaces the malformed bytes of a torn line, so it is rejected by the parser instead.
+        try (var reader = new BufferedReader(new InputStreamReader(Files.newInputStream(replayFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= replayedLines || line.isBlank()) {
+                    continue;
+                }
+                try {
+                    batch.add(jsonMapper.readValue(line, UnitLog.class));
+                } catch (JsonProcessingException e) {
+                    reject(line, lineNumber, e);
+                }
+                if (batch.size() == batchSize) {
+                    persist(batch);
+                    batch.clear();
+                    writeProgress(progressFile, lineNumber);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            persist(batch);
+        }
+        Files.delete(replayFile);
+        Files.deleteIfExists(progressFile);
+    }
+
+    private Path siblingOfSpillFile(String suffix) {
+        return spillFile.resolveSibling(spillFile.getFileName() + suffix);
+    }
+
+    private static long readProgress(Path progressFile) throws IOException {
+        if (!Files.exists(progressFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(progressFile, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            log.atWarning().log("Invalid replay progress in %s, replaying from the start: %s", progressFile, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Replaced atomically, so a crash leaves either the previous or the new progress.
+     */
+    private static void writeProgress(Path progressFile, long lineNumber) throws IOException {
+        var tempFile = progressFile.resolveSibling(progressFile.getFileName() + ".tmp");
+        Files.writeString(tempFile, Long.toString(lineNumber), StandardCharsets.UTF_8);
+        Files.move(tempFile, progressFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void reject(String line, long lineNumber, JsonProcessingException e) throws IOException {
+        var rejectedFile = siblingOfSpillFile(".rejected");
+        log.atSevere().log("Unable to parse spilled unit log at line %d, moving it to %s: %s",
+                lineNumber, rejectedFile, e.getOriginalMessage());
+        Files.writeString(rejectedFile, line + System.lineSeparator(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        rejectedLogs.increment();
+    }
+}
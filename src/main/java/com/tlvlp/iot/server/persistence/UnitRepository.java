@@ -1,16 +1,169 @@
 package com.tlvlp.iot.server.persistence;
 
+import com.tlvlp.iot.server.mcu.Module;
 import com.tlvlp.iot.server.mcu.Unit;
+import com.tlvlp.iot.server.mcu.UnitWithModules;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.LockModeType;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @ApplicationScoped
 public class UnitRepository implements PanacheRepositoryWithSave<Unit> {
 
+    private static final String UNITS_WITH_MODULES = "select u, m from Unit u left join Module m on m.unitId = u.id";
+    private static final String UNITS_WITH_ACTIVE_MODULES = UNITS_WITH_MODULES + " and m.active = true";
+    private static final String UNIT_ORDER = " order by u.id, m.id";
+
+    private final McuRegistry registry;
+    private final EntityStreamer entityStreamer;
+
+    public UnitRepository(McuRegistry registry, EntityStreamer entityStreamer) {
+        this.registry = registry;
+        this.entityStreamer = entityStreamer;
+    }
+
     public Optional<Unit> findByProjectAndName(String project, String name) {
-        return find("project = ?1 and name = ?2", project, name)
-                .singleResultOptional();
+        return registry.findUnit(project, name)
+                .or(() -> find("project = ?1 and name = ?2", project, name)
+                        .singleResultOptional()
+                        .map(unit -> registry.putUnit(unit, false)));
+    }
+
+    /**
+     * @return the found units by their ids, the ones missing from the registry are read with a single query.
+     */
+    public Map<Long, Unit> findAllByIds(Collection<Long> unitIds) {
+        var units = new HashMap<Long, Unit>(unitIds.size() * 2);
+        var missingIds = new ArrayList<Long>();
+        unitIds.forEach(unitId -> registry.findUnitById(unitId)
+                .ifPresentOrElse(unit -> units.put(unitId, unit), () -> missingIds.add(unitId)));
+        if (!missingIds.isEmpty()) {
+            list("id in ?1", missingIds).forEach(unit -> units.put(unit.getId(), registry.putUnit(unit, false)));
+        }
+        return units;
+    }
+
+    /**
+     * @return the units of the project from the registry, without a query.
+     */
+    public List<Unit> findAllByProject(String project) {
+        return registry.findUnitsByProject(project);
+    }
+
+    /**
+     * Locks the active units that were not seen since the cutoff (select for update) until the end of the transaction,
+     * so they can not be seen or changed before they are inactivated.
+     *
+     * @return the ids of the locked units.
+     */
+    public List<Long> lockSilentUnitIds(Collection<Long> unitIds, ZonedDateTime lastSeenBefore) {
+        return getEntityManager()
+                .createQuery("select u.id from Unit u where u.id in :unitIds and u.active = true " +
+                        "and u.lastSeenUtc < :lastSeenBefore order by u.id", Long.class)
+                .setParameter("unitIds", unitIds)
+                .setParameter("lastSeenBefore", lastSeenBefore)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+    }
+
+    /**
+     * Inactivates the units with a single update, the ones seen since the cutoff are left active.
+     * The registry copies of the units have to be updated by the caller.
+     *
+     * @return the number of inactivated units.
+     */
+    public int inactivateAll(Collection<Long> unitIds, ZonedDateTime lastSeenBefore) {
+        return update("active = false where id in ?1 and active = true and lastSeenUtc < ?2", unitIds, lastSeenBefore);
+    }
+
+    public void forEachUnit(EntityStreamer.RowHandler<Unit> handler) throws IOException {
+        entityStreamer.stream("from Unit order by id", Unit.class, Map.of(), handler);
     }
 
+    /**
+     * @return the units with all their modules, in unit id order, read with a single join query.
+     */
+    public List<UnitWithModules> findAllWithModulesByIds(Collection<Long> unitIds) {
+        return findAllWithModules("u.id in :unitIds", Map.of("unitIds", unitIds));
+    }
+
+    /**
+     * @return the units of the project with all their modules, in unit id order, read with a single join query.
+     */
+    public List<UnitWithModules> findAllWithModulesByProject(String project) {
+        return findAllWithModules("u.project = :project", Map.of("project", project));
+    }
+
+    private List<UnitWithModules> findAllWithModules(String condition, Map<String, Object> parameters) {
+        var query = getEntityManager().createQuery(UNITS_WITH_MODULES + " where " + condition + UNIT_ORDER, Object[].class);
+        parameters.forEach(query::setParameter);
+        var unitsWithModules = new ArrayList<UnitWithModules>();
+        var unitRows = new UnitRows(unitsWithModules::add);
+        try {
+            for (Object[] row : query.getResultList()) {
+                unitRows.add(row);
+            }
+            unitRows.flush();
+        } catch (IOException e) {
+            // The list handler does not throw.
+            throw new UncheckedIOException(e);
+        }
+        return unitsWithModules;
+    }
+
+    /**
+     * Streams every unit with its active modules, in unit id order, with a single join query.
+     */
+    public void forEachUnitWithActiveModules(EntityStreamer.RowHandler<UnitWithModules> handler) throws IOException {
+        var unitRows = new UnitRows(handler);
+        entityStreamer.streamTuples(UNITS_WITH_ACTIVE_MODULES + UNIT_ORDER, Map.of(), unitRows::add);
+        unitRows.flush();
+    }
+
+    @Override
+    public void onSaved(Unit unit, boolean created) {
+        registry.putUnit(unit, created);
+    }
+
+    /**
+     * Collects the modules of a unit from the consecutive rows of the join, the rows have to be in unit id order.
+     * A unit without modules has a single row without a module.
+     */
+    private static class UnitRows {
+        private final EntityStreamer.RowHandler<UnitWithModules> handler;
+        private Unit unit;
+        private List<Module> modules;
+
+        private UnitRows(EntityStreamer.RowHandler<UnitWithModules> handler) {
+            this.handler = handler;
+        }
+
+        private void add(Object[] row) throws IOException {
+            var rowUnit = (Unit) row[0];
+            if (unit == null || !unit.getId().equals(rowUnit.getId())) {
+                flush();
+                unit = rowUnit;
+                modules = new ArrayList<>();
+            }
+            if (row[1] != null) {
+                modules.add((Module) row[1]);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (unit != null) {
+                handler.handle(new UnitWithModules(unit, modules));
+                unit = null;
+            }
+        }
+    }
 }
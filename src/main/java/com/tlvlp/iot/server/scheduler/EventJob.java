@@ -13,15 +13,22 @@ import javax.enterprise.context.ApplicationScoped;
 public class EventJob implements Job {
 
     private final EventBus eventBus;
+    private final ScheduledControlDispatcher scheduledControlDispatcher;
 
-    public EventJob(EventBus eventBus) {
+    public EventJob(EventBus eventBus, ScheduledControlDispatcher scheduledControlDispatcher) {
         this.eventBus = eventBus;
+        this.scheduledControlDispatcher = scheduledControlDispatcher;
     }
 
     @Override
     public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
         try {
             String address = String.valueOf(jobExecutionContext.get("eventAddress"));
+            if (ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS.equals(address)) {
+                // The module controls were parsed when the event was scheduled.
+                scheduledControlDispatcher.dispatch(jobExecutionContext.getJobDetail(), jobExecutionContext.getTrigger());
+                return;
+            }
             Object message = jobExecutionContext.get("eventMessage");
             eventBus.sendAndForget(address, message);
         } catch (Exception e) {
@@ -0,0 +1,7 @@
+package com.tlvlp.iot.server.scheduler;
+
+public class InvalidScheduledEventException extends ScheduledEventException {
+    public InvalidScheduledEventException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,39 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.tlvlp.iot.server.mcu.Module;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotEmpty;
+import java.util.List;
+
+/**
+ * Module controls that are sent on a cron schedule, like the ones sent by {@link com.tlvlp.iot.server.mcu.McuService#sendControlMessages(List)}.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+@Accessors(chain = true)
+@ToString
+public class ScheduledControlDTO {
+
+    @NotBlank
+    private String group;
+
+    @NotBlank
+    private String name;
+
+    /**
+     * A Quartz cron expression, eg. "0 0 7 * * ?".
+     */
+    @NotBlank
+    private String cron;
+
+    @NotEmpty
+    private List<Module> moduleControls;
+
+}
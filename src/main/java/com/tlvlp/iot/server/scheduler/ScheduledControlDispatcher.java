@@ -0,0 +1,107 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.tlvlp.iot.server.mcu.McuService;
+import com.tlvlp.iot.server.mcu.Module;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Vertx;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.quartz.JobDetail;
+import org.quartz.Trigger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces the unit control events that fire within a short window (scheduler.controls.coalesce-millis, 0 to disable)
+ * into a single list of module controls for {@link McuService#sendScheduledControlMessages(List)},
+ * so the units of e.g. every "0 0 7 * * ?" schedule are looked up and controlled together.
+ * The module controls are taken from the {@link ScheduledEventIndex}, they are not parsed when the events fire.
+ */
+@Flogger
+@ApplicationScoped
+public class ScheduledControlDispatcher {
+
+    /**
+     * The event address of the scheduled module controls.
+     */
+    public static final String UNIT_CONTROL_ADDRESS = "unit_control";
+
+    private final Vertx vertx;
+    private final EventBus eventBus;
+    private final ScheduledEventIndex index;
+    private final long windowMillis;
+
+    private final DistributionSummary batchEvents;
+    private final DistributionSummary batchModules;
+
+    private final Object lock = new Object();
+    private List<Module> pendingControls = new ArrayList<>();
+    private int pendingEvents;
+
+    public ScheduledControlDispatcher(Vertx vertx,
+                                      EventBus eventBus,
+                                      ScheduledEventIndex index,
+                                      MeterRegistry meterRegistry,
+                                      @ConfigProperty(name = "scheduler.controls.coalesce-millis", defaultValue = "100") Long windowMillis) {
+        this.vertx = vertx;
+        this.eventBus = eventBus;
+        this.index = index;
+        this.windowMillis = windowMillis;
+        this.batchEvents = DistributionSummary.builder("scheduler.controls.batch.events")
+                .description("Scheduled unit control events that are dispatched together.")
+                .register(meterRegistry);
+        this.batchModules = DistributionSummary.builder("scheduler.controls.batch.modules")
+                .description("Module controls that are dispatched together.")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Called by the {@link EventJob} on the Quartz worker thread.
+     *
+     * @throws ScheduledEventException if the event has no valid module controls.
+     */
+    public void dispatch(JobDetail jobDetail, Trigger trigger) {
+        var event = index.findCurrent(jobDetail, trigger);
+        var moduleControls = event.getModuleControls();
+        if (moduleControls.isEmpty()) {
+            throw new ScheduledEventException(String.format("Scheduled event %s has no valid module controls: %s",
+                    jobDetail.getKey(), event.getEventMessage()));
+        }
+        if (windowMillis <= 0) {
+            send(moduleControls, 1);
+            return;
+        }
+        synchronized (lock) {
+            if (pendingEvents == 0) {
+                vertx.setTimer(windowMillis, id -> flush());
+            }
+            pendingControls.addAll(moduleControls);
+            pendingEvents++;
+        }
+    }
+
+    private void flush() {
+        List<Module> moduleControls;
+        int events;
+        synchronized (lock) {
+            moduleControls = pendingControls;
+            events = pendingEvents;
+            pendingControls = new ArrayList<>();
+            pendingEvents = 0;
+        }
+        if (events > 0) {
+            send(moduleControls, events);
+        }
+    }
+
+    private void send(List<Module> moduleControls, int events) {
+        batchEvents.record(events);
+        batchModules.record(moduleControls.size());
+        log.atFine().log("Dispatching %d scheduled control events with %d module controls.", events, moduleControls.size());
+        eventBus.sendAndForget(UNIT_CONTROL_ADDRESS, moduleControls, McuService.LOCAL_DELIVERY);
+    }
+}
@@ -0,0 +1,34 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.tlvlp.iot.server.mcu.Module;
+import lombok.Value;
+import lombok.With;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A scheduled event as it is kept in the {@link ScheduledEventIndex}.
+ */
+@Value
+public class ScheduledEvent {
+
+    String group;
+    String name;
+    String cron;
+    String eventAddress;
+    String eventMessage;
+    /**
+     * The module controls of a unit control event, parsed once when it is scheduled or loaded.
+     * Empty for any other event.
+     */
+    @JsonIgnore
+    List<Module> moduleControls;
+    /**
+     * The units that are controlled by the event.
+     */
+    Set<Long> unitIds;
+    @With
+    boolean paused;
+}
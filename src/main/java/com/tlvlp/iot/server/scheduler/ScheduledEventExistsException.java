@@ -0,0 +1,7 @@
+package com.tlvlp.iot.server.scheduler;
+
+public class ScheduledEventExistsException extends ScheduledEventException {
+    public ScheduledEventExistsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
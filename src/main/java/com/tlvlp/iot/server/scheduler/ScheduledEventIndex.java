@@ -0,0 +1,379 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tlvlp.iot.server.mcu.Module;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.vertx.core.Vertx;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.quartz.CronTrigger;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.JobListener;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.listeners.SchedulerListenerSupport;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory view of the scheduled events with an index by the controlled unit ids,
+ * so the events of a unit are found without loading every job of the clustered job store and parsing its message.
+ * The module controls of the unit control events are parsed once here, they are dispatched from this view when they fire.
+ * <p>
+ * It is loaded at startup and kept in sync by the scheduler and job listener hooks of this node.
+ * The changes made on other nodes of the cluster are picked up when their jobs fire here
+ * and by a periodic reload (scheduler.index.resync-minutes, 0 to disable).
+ */
+@Flogger
+@ApplicationScoped
+public class ScheduledEventIndex extends SchedulerListenerSupport implements JobListener {
+
+    private static final TypeReference<List<Module>> MODULE_LIST = new TypeReference<>() {};
+
+    static final Comparator<ScheduledEvent> EVENT_ORDER = Comparator
+            .comparing(ScheduledEvent::getGroup)
+            .thenComparing(ScheduledEvent::getName);
+
+    private final Instance<Scheduler> scheduler;
+    private final Vertx vertx;
+    private final ObjectMapper jsonMapper;
+    private final long resyncMillis;
+
+    private final ConcurrentMap<JobKey, ScheduledEvent> events = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Set<JobKey>> keysByUnitId = new ConcurrentHashMap<>();
+
+    public ScheduledEventIndex(Instance<Scheduler> scheduler,
+                               Vertx vertx,
+                               ObjectMapper jsonMapper,
+                               MeterRegistry meterRegistry,
+                               @ConfigProperty(name = "scheduler.index.resync-minutes", defaultValue = "15") Long resyncMinutes) {
+        this.scheduler = scheduler;
+        this.vertx = vertx;
+        this.jsonMapper = jsonMapper;
+        this.resyncMillis = resyncMinutes * 60_000;
+        meterRegistry.gaugeMapSize("scheduler.events.indexed", List.of(), events);
+        meterRegistry.gaugeMapSize("scheduler.events.indexed.units", List.of(), keysByUnitId);
+    }
+
+    void start(@Observes StartupEvent event) {
+        try {
+            var listenerManager = scheduler.get().getListenerManager();
+            listenerManager.addSchedulerListener(this);
+            listenerManager.addJobListener(this);
+            reload();
+        } catch (SchedulerException | RuntimeException e) {
+            // Quartz is not started unless it has a scheduled job or it is forced to start.
+            log.atWarning().log("The scheduled event index is not loaded: %s", e.getMessage());
+            return;
+        }
+        if (resyncMillis > 0) {
+            vertx.setPeriodic(resyncMillis, id -> vertx.executeBlocking(promise -> {
+                try {
+                    reload();
+                } catch (SchedulerException | RuntimeException e) {
+                    log.atWarning().log("Unable to reload the scheduled event index: %s", e.getMessage());
+                }
+                promise.complete();
+            }, false, result -> {}));
+        }
+    }
+
+    public Optional<ScheduledEvent> find(JobKey jobKey) {
+        return Optional.ofNullable(events.get(jobKey));
+    }
+
+    /**
+     * @return the event of the firing job. It is parsed and indexed again if its message or cron differs from the
+     * indexed one, eg. the event was replaced on another node since the last reload.
+     */
+    ScheduledEvent findCurrent(JobDetail jobDetail, Trigger trigger) {
+        var event = events.get(jobDetail.getKey());
+        var cron = trigger instanceof CronTrigger ? ((CronTrigger) trigger).getCronExpression() : null;
+        if (event != null
+                && Objects.equals(event.getEventMessage(), jobDetail.getJobDataMap().getString("eventMessage"))
+                && Objects.equals(event.getCron(), cron)) {
+            return event;
+        }
+        var current = toScheduledEvent(jobDetail, trigger, false);
+        put(jobDetail.getKey(), current);
+        return current;
+    }
+
+    public List<ScheduledEvent> findAll() {
+        var all = new ArrayList<>(events.values());
+        all.sort(EVENT_ORDER);
+        return all;
+    }
+
+    /**
+     * Only the events of the unit are visited.
+     */
+    public List<ScheduledEvent> findAllByUnitId(Long unitId) {
+        var keys = keysByUnitId.get(unitId);
+        if (keys == null) {
+            return List.of();
+        }
+        var unitEvents = new ArrayList<ScheduledEvent>(keys.size());
+        for (JobKey key : keys) {
+            var event = events.get(key);
+            if (event != null) {
+                unitEvents.add(event);
+            }
+        }
+        unitEvents.sort(EVENT_ORDER);
+        return unitEvents;
+    }
+
+    /**
+     * Loads every job of the scheduler, this is the only full scan of the job store.
+     * The events that are no longer scheduled are dropped.
+     */
+    void reload() throws SchedulerException {
+        var quartz = scheduler.get();
+        var loaded = new HashMap<JobKey, ScheduledEvent>();
+        for (JobKey jobKey : quartz.getJobKeys(GroupMatcher.anyJobGroup())) {
+            var jobDetail = quartz.getJobDetail(jobKey);
+            if (!isScheduledEvent(jobDetail)) {
+                continue;
+            }
+            var triggers = quartz.getTriggersOfJob(jobKey);
+            if (triggers.isEmpty()) {
+                continue;
+            }
+            var trigger = triggers.get(0);
+            var paused = quartz.getTriggerState(trigger.getKey()) == Trigger.TriggerState.PAUSED;
+            loaded.put(jobKey, toScheduledEvent(jobDetail, trigger, paused));
+        }
+        replaceAll(loaded);
+        log.atInfo().log("The scheduled event index is loaded with %d events.", loaded.size());
+    }
+
+    synchronized void put(JobKey jobKey, ScheduledEvent event) {
+        var previous = events.put(jobKey, event);
+        if (previous != null) {
+            if (previous.getUnitIds().equals(event.getUnitIds())) {
+                return;
+            }
+            unlink(jobKey, previous.getUnitIds());
+        }
+        event.getUnitIds().forEach(unitId ->
+                keysByUnitId.computeIfAbsent(unitId, id -> ConcurrentHashMap.newKeySet()).add(jobKey));
+    }
+
+    synchronized void remove(JobKey jobKey) {
+        var previous = events.remove(jobKey);
+        if (previous != null) {
+            unlink(jobKey, previous.getUnitIds());
+        }
+    }
+
+    /**
+     * The index is updated in place, so the readers never see it empty during a reload.
+     */
+    synchronized void replaceAll(Map<JobKey, ScheduledEvent> loaded) {
+        new HashSet<>(events.keySet()).stream()
+                .filter(Predicate.not(loaded::containsKey))
+                .forEach(this::remove);
+        loaded.forEach(this::put);
+    }
+
+    private void unlink(JobKey jobKey, Set<Long> unitIds) {
+        unitIds.forEach(unitId -> keysByUnitId.computeIfPresent(unitId, (id, keys) -> {
+            keys.remove(jobKey);
+            return keys.isEmpty() ? null : keys;
+        }));
+    }
+
+    private void setPaused(JobKey jobKey, boolean paused) {
+        events.computeIfPresent(jobKey, (key, event) -> event.withPaused(paused));
+    }
+
+    /**
+     * A null group stands for all the groups.
+     */
+    private synchronized void setGroupPaused(String group, boolean paused) {
+        events.replaceAll((jobKey, event) -> group == null || group.equals(jobKey.getGroup())
+                ? event.withPaused(paused)
+                : event);
+    }
+
+    ScheduledEvent toScheduledEvent(JobDetail jobDetail, Trigger trigger, boolean paused) {
+        var jobKey = jobDetail.getKey();
+        var eventAddress = jobDetail.getJobDataMap().getString("eventAddress");
+        var eventMessage = jobDetail.getJobDataMap().getString("eventMessage");
+        var cron = trigger instanceof CronTrigger ? ((CronTrigger) trigger).getCronExpression() : null;
+        var moduleControls = ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS.equals(eventAddress)
+                ? parseModuleControls(jobKey, eventMessage)
+                : List.<Module>of();
+        var unitIds = moduleControls.stream()
+                .map(Module::getUnitId)
+                .collect(Collectors.toUnmodifiableSet());
+        return new ScheduledEvent(
+                jobKey.getGroup(),
+                jobKey.getName(),
+                cron,
+                eventAddress,
+                eventMessage,
+                moduleControls,
+                unitIds,
+                paused);
+    }
+
+    /**
+     * @return the module controls, or an empty list if the message is not a list of modules with unit ids.
+     */
+    private List<Module> parseModuleControls(JobKey jobKey, String eventMessage) {
+        try {
+            List<Module> moduleControls = jsonMapper.readValue(eventMessage, MODULE_LIST);
+            if (moduleControls == null || moduleControls.stream().anyMatch(module -> module == null || module.getUnitId() == null)) {
+                log.atWarning().log("Scheduled event %s has a module without unit id: %s", jobKey, eventMessage);
+                return List.of();
+            }
+            return List.copyOf(moduleControls);
+        } catch (IOException | IllegalArgumentException e) {
+            log.atWarning().log("Scheduled event %s has invalid module controls: %s", jobKey, e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * The system jobs of the scheduler, eg. the {@link UnitLogRetentionJob}, are not scheduled events.
+     */
+    private static boolean isScheduledEvent(JobDetail jobDetail) {
+        return jobDetail != null && EventJob.class.equals(jobDetail.getJobClass());
+    }
+
+    private static JobKey toJobKey(TriggerKey triggerKey) {
+        // The triggers of the scheduled events have the identity of their jobs.
+        return JobKey.jobKey(triggerKey.getName(), triggerKey.getGroup());
+    }
+
+    private void index(Trigger trigger) {
+        try {
+            var quartz = scheduler.get();
+            var jobDetail = quartz.getJobDetail(trigger.getJobKey());
+            if (isScheduledEvent(jobDetail)) {
+                var paused = quartz.getTriggerState(trigger.getKey()) == Trigger.TriggerState.PAUSED;
+                put(jobDetail.getKey(), toScheduledEvent(jobDetail, trigger, paused));
+            }
+        } catch (SchedulerException e) {
+            log.atWarning().log("Unable to index scheduled event %s: %s", trigger.getJobKey(), e.getMessage());
+        }
+    }
+
+    // Scheduler listener
+
+    @Override
+    public void jobScheduled(Trigger trigger) {
+        index(trigger);
+    }
+
+    @Override
+    public void jobUnscheduled(TriggerKey triggerKey) {
+        remove(toJobKey(triggerKey));
+    }
+
+    @Override
+    public void triggerFinalized(Trigger trigger) {
+        remove(trigger.getJobKey());
+    }
+
+    @Override
+    public void jobDeleted(JobKey jobKey) {
+        remove(jobKey);
+    }
+
+    @Override
+    public void triggerPaused(TriggerKey triggerKey) {
+        setPaused(toJobKey(triggerKey), true);
+    }
+
+    @Override
+    public void triggerResumed(TriggerKey triggerKey) {
+        setPaused(toJobKey(triggerKey), false);
+    }
+
+    @Override
+    public void triggersPaused(String triggerGroup) {
+        setGroupPaused(triggerGroup, true);
+    }
+
+    @Override
+    public void triggersResumed(String triggerGroup) {
+        setGroupPaused(triggerGroup, false);
+    }
+
+    @Override
+    public void jobPaused(JobKey jobKey) {
+        setPaused(jobKey, true);
+    }
+
+    @Override
+    public void jobResumed(JobKey jobKey) {
+        setPaused(jobKey, false);
+    }
+
+    @Override
+    public void jobsPaused(String jobGroup) {
+        setGroupPaused(jobGroup, true);
+    }
+
+    @Override
+    public void jobsResumed(String jobGroup) {
+        setGroupPaused(jobGroup, false);
+    }
+
+    @Override
+    public void schedulingDataCleared() {
+        replaceAll(Map.of());
+    }
+
+    // Job listener
+
+    @Override
+    public String getName() {
+        return "scheduled-event-index";
+    }
+
+    /**
+     * A job that is not indexed yet was scheduled by another node of the cluster.
+     */
+    @Override
+    public void jobToBeExecuted(JobExecutionContext context) {
+        if (isScheduledEvent(context.getJobDetail())) {
+            findCurrent(context.getJobDetail(), context.getTrigger());
+        }
+    }
+
+    @Override
+    public void jobExecutionVetoed(JobExecutionContext context) {
+    }
+
+    @Override
+    public void jobWasExecuted(JobExecutionContext context, JobExecutionException jobException) {
+    }
+}
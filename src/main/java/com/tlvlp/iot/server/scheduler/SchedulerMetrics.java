@@ -0,0 +1,62 @@
+package com.tlvlp.iot.server.scheduler;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.listeners.TriggerListenerSupport;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+
+/**
+ * Counts the fired and misfired triggers of this scheduler node.
+ * The scheduler is looked up at startup, so its metrics do not fail the application when Quartz is not running.
+ */
+@Flogger
+@ApplicationScoped
+public class SchedulerMetrics extends TriggerListenerSupport {
+
+    private final Instance<Scheduler> scheduler;
+    private final Counter fired;
+    private final Counter misfired;
+
+    public SchedulerMetrics(Instance<Scheduler> scheduler, MeterRegistry meterRegistry) {
+        this.scheduler = scheduler;
+        this.fired = Counter.builder("quartz.triggers.fired")
+                .description("Triggers fired by the scheduler.")
+                .register(meterRegistry);
+        this.misfired = Counter.builder("quartz.triggers.misfired")
+                .description("Triggers that missed their fire time.")
+                .register(meterRegistry);
+    }
+
+    void register(@Observes StartupEvent event) {
+        try {
+            scheduler.get().getListenerManager().addTriggerListener(this);
+        } catch (SchedulerException | RuntimeException e) {
+            // Quartz is not started unless it has a scheduled job or it is forced to start.
+            log.atWarning().log("Scheduler metrics are not registered: %s", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scheduler-metrics";
+    }
+
+    @Override
+    public void triggerFired(Trigger trigger, JobExecutionContext context) {
+        fired.increment();
+    }
+
+    @Override
+    public void triggerMisfired(Trigger trigger) {
+        misfired.increment();
+    }
+}
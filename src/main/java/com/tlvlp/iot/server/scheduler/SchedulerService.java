@@ -3,31 +3,57 @@ package com.tlvlp.iot.server.scheduler;
 import lombok.extern.flogger.Flogger;
 import org.quartz.CronTrigger;
 import org.quartz.JobBuilder;
-import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
+import org.quartz.ObjectAlreadyExistsException;
 import org.quartz.Scheduler;
-import org.quartz.Trigger;
+import org.quartz.SchedulerException;
 import org.quartz.TriggerBuilder;
 
 import javax.enterprise.context.ApplicationScoped;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 
 import static org.quartz.CronScheduleBuilder.cronSchedule;
 
 /**
  * Event scheduling is done via Quartz scheduler with automatic database persistence.
+ * The scheduled events are listed from the {@link ScheduledEventIndex} instead of the job store.
  */
 @Flogger
 @ApplicationScoped
 public class SchedulerService {
 
     private final Scheduler scheduler;
+    private final ScheduledEventIndex index;
 
-    public SchedulerService(Scheduler scheduler) {
+    public SchedulerService(Scheduler scheduler, ScheduledEventIndex index) {
         this.scheduler = scheduler;
+        this.index = index;
     }
 
-    public void addScheduledEvent(String schedulerGroup, String schedulerName, String cron, String eventAddress, String eventMessage) {
+    /**
+     * @throws ScheduledEventExistsException  if the event already exists.
+     * @throws InvalidScheduledEventException if the unit control event has no module controls with unit ids.
+     * @throws ScheduledEventException        if the event cannot be scheduled.
+     */
+    public ScheduledEvent addScheduledEvent(String schedulerGroup, String schedulerName, String cron, String eventAddress, String eventMessage) {
+        return scheduleEvent(schedulerGroup, schedulerName, cron, eventAddress, eventMessage, false);
+    }
+
+    /**
+     * Replaces the event, or adds it if it does not exist.
+     *
+     * @throws InvalidScheduledEventException if the unit control event has no module controls with unit ids.
+     * @throws ScheduledEventException        if the event cannot be scheduled.
+     */
+    public ScheduledEvent updateScheduledEvent(String schedulerGroup, String schedulerName, String cron, String eventAddress, String eventMessage) {
+        return scheduleEvent(schedulerGroup, schedulerName, cron, eventAddress, eventMessage, true);
+    }
+
+    private ScheduledEvent scheduleEvent(String schedulerGroup, String schedulerName, String cron, String eventAddress, String eventMessage,
+                                         boolean replace) {
         try {
             JobDetail job = JobBuilder.newJob(EventJob.class)
                     .withIdentity(schedulerName, schedulerGroup)
@@ -41,30 +67,92 @@ public class SchedulerService {
                     .startNow()
                     .build();
 
-            scheduler.scheduleJob(job, trigger);
+            // The module controls are parsed once here, they are dispatched from the index when the event fires.
+            var event = index.toScheduledEvent(job, trigger, false);
+            if (ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS.equals(eventAddress) && event.getModuleControls().isEmpty()) {
+                throw new InvalidScheduledEventException("The event message must be a list of module controls with unit ids.");
+            }
+
+            scheduler.scheduleJob(job, Set.of(trigger), replace);
+            // The index is also updated by its scheduler listener, this makes the event visible right away.
+            index.put(job.getKey(), event);
+            return event;
+        } catch (InvalidScheduledEventException e) {
+            log.atInfo().log("Invalid scheduled event %s.%s: %s", schedulerGroup, schedulerName, e.getMessage());
+            throw e;
+        } catch (ObjectAlreadyExistsException e) {
+            var err = String.format("Scheduled event already exists: %s.%s", schedulerGroup, schedulerName);
+            log.atInfo().log(err);
+            throw new ScheduledEventExistsException(err, e);
         } catch (Exception e) {
             var err = "Unable to add scheduled event: " + e.getMessage();
             log.atSevere().log(err);
-            throw new ScheduledEventException(err);
+            throw new ScheduledEventException(err, e);
         }
+    }
 
+    /**
+     * @return false if the event does not exist.
+     */
+    public boolean pauseScheduledEvent(String schedulerGroup, String schedulerName) {
+        var jobKey = JobKey.jobKey(schedulerName, schedulerGroup);
+        try {
+            if (!scheduler.checkExists(jobKey)) {
+                return false;
+            }
+            scheduler.pauseJob(jobKey);
+            return true;
+        } catch (SchedulerException e) {
+            var err = String.format("Unable to pause scheduled event %s: %s", jobKey, e.getMessage());
+            log.atSevere().log(err);
+            throw new ScheduledEventException(err, e);
+        }
     }
 
-    public void pauseScheduledEvent() {
-        //TODO
+    /**
+     * @return false if the event does not exist.
+     */
+    public boolean resumeScheduledEvent(String schedulerGroup, String schedulerName) {
+        var jobKey = JobKey.jobKey(schedulerName, schedulerGroup);
+        try {
+            if (!scheduler.checkExists(jobKey)) {
+                return false;
+            }
+            scheduler.resumeJob(jobKey);
+            return true;
+        } catch (SchedulerException e) {
+            var err = String.format("Unable to resume scheduled event %s: %s", jobKey, e.getMessage());
+            log.atSevere().log(err);
+            throw new ScheduledEventException(err, e);
+        }
     }
 
-    public void removeScheduledEvent() {
-        //TODO
+    /**
+     * @return false if the event does not exist.
+     */
+    public boolean removeScheduledEvent(String schedulerGroup, String schedulerName) {
+        var jobKey = JobKey.jobKey(schedulerName, schedulerGroup);
+        try {
+            var isDeleted = scheduler.deleteJob(jobKey);
+            index.remove(jobKey);
+            return isDeleted;
+        } catch (SchedulerException e) {
+            var err = String.format("Unable to remove scheduled event %s: %s", jobKey, e.getMessage());
+            log.atSevere().log(err);
+            throw new ScheduledEventException(err, e);
+        }
     }
 
-    public void getAllScheduledEvents() {
-        //TODO
+    public Optional<ScheduledEvent> getScheduledEvent(String schedulerGroup, String schedulerName) {
+        return index.find(JobKey.jobKey(schedulerName, schedulerGroup));
     }
 
-    public void getScheduledEventsForUnit(Long unitId) {
-        //TODO
+    public List<ScheduledEvent> getAllScheduledEvents() {
+        return index.findAll();
     }
 
+    public List<ScheduledEvent> getScheduledEventsForUnit(Long unitId) {
+        return index.findAllByUnitId(unitId);
+    }
 
 }
@@ -0,0 +1,81 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.tlvlp.iot.server.persistence.UnitLogRetention;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobBuilder;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.TriggerBuilder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import java.util.Set;
+
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+
+/**
+ * Runs the {@link UnitLogRetention} on the clustered scheduler, so only one node purges the logs at a time.
+ * The job is (re)scheduled by every node on startup with the configured cron (mcu.log-retention.cron).
+ */
+@Flogger
+@ApplicationScoped
+@DisallowConcurrentExecution
+public class UnitLogRetentionJob implements Job {
+
+    static final JobKey JOB_KEY = JobKey.jobKey("unit-log-retention", "system");
+
+    private final Instance<Scheduler> scheduler;
+    private final UnitLogRetention unitLogRetention;
+    private final boolean isEnabled;
+    private final String cron;
+
+    public UnitLogRetentionJob(Instance<Scheduler> scheduler,
+                               UnitLogRetention unitLogRetention,
+                               @ConfigProperty(name = "mcu.log-retention.enabled", defaultValue = "true") Boolean isEnabled,
+                               @ConfigProperty(name = "mcu.log-retention.cron", defaultValue = "0 30 3 * * ?") String cron) {
+        this.scheduler = scheduler;
+        this.unitLogRetention = unitLogRetention;
+        this.isEnabled = isEnabled;
+        this.cron = cron;
+    }
+
+    void schedule(@Observes StartupEvent event) {
+        try {
+            if (!isEnabled) {
+                scheduler.get().deleteJob(JOB_KEY);
+                log.atInfo().log("The unit log retention is disabled, the logs are kept forever.");
+                return;
+            }
+            var job = JobBuilder.newJob(UnitLogRetentionJob.class)
+                    .withIdentity(JOB_KEY)
+                    .build();
+            var trigger = TriggerBuilder.newTrigger()
+                    .withIdentity(JOB_KEY.getName(), JOB_KEY.getGroup())
+                    // A purge that was missed while every node was down runs once on startup.
+                    .withSchedule(cronSchedule(cron).withMisfireHandlingInstructionFireAndProceed())
+                    .build();
+            scheduler.get().scheduleJob(job, Set.of(trigger), true);
+        } catch (SchedulerException | RuntimeException e) {
+            log.atSevere().log("Unable to schedule the unit log retention: %s", e.getMessage());
+        }
+    }
+
+    @Override
+    public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
+        try {
+            unitLogRetention.purge();
+        } catch (Exception e) {
+            var err = String.format("Unable to purge the expired unit logs: %s", e.getMessage());
+            log.atSevere().log(err);
+            throw new JobExecutionException(err, false);
+        }
+    }
+}
@@ -53,7 +53,7 @@ public class McuServiceDevelopment {
                                         "name", "growlight_test_2",
                                         "module", "relay")
                         )
-                )));
+                )).toBuffer());
     }
 
     @Test
@@ -0,0 +1,115 @@
+package com.tlvlp.iot.server.history;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimeSeriesEncoderTest {
+
+    private List<double[]> decode(byte[] data, int count) {
+        var points = new ArrayList<double[]>();
+        var decoder = new TimeSeriesDecoder(data, count);
+        while (decoder.hasNext()) {
+            decoder.next();
+            points.add(new double[]{decoder.getTimestamp(), decoder.getValue()});
+        }
+        return points;
+    }
+
+    @Test
+    @DisplayName("Irregular timestamps and values are decoded as they were encoded")
+    void roundTrip() {
+        // given
+        var random = new Random(42);
+        var encoder = new TimeSeriesEncoder(16);
+        var expected = new ArrayList<double[]>();
+        long timestamp = 1_600_000_000_000L;
+        double value = 21.5;
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(5_000_000) : 10_000 + random.nextInt(100);
+            value = random.nextInt(4) == 0 ? value : value + random.nextGaussian();
+            encoder.add(timestamp, value);
+            expected.add(new double[]{timestamp, value});
+        }
+
+        // then
+        assertThat(decode(encoder.toByteArray(), encoder.getCount())).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    @DisplayName("Regular readings of a constant value take about two bits each")
+    void compression() {
+        // given
+        var encoder = new TimeSeriesEncoder(16);
+
+        // when
+        for (int i = 0; i < 512; i++) {
+            encoder.add(1_600_000_000_000L + i * 10_000L, 1.0);
+        }
+
+        // then
+        // 16 bytes for the first point, 9 for the first delta, then 2 bits per point instead of 16 bytes.
+        assertThat(encoder.getByteLength()).isLessThanOrEqualTo(16 + 9 + 511 * 2 / 8 + 1);
+    }
+
+    @Test
+    @DisplayName("Sealed blocks are found again after the segment store is reopened")
+    void reopenSegmentStore(@TempDir Path directory) throws Exception {
+        // given
+        var store = new SegmentStore(directory, 128);
+        store.append(1L, 100, 200, 2, new byte[40]);
+        store.append(2L, 150, 250, 3, new byte[40]);
+        store.append(1L, 300, 400, 4, new byte[40]);
+        store.force();
+
+        // when
+        var reopened = new SegmentStore(directory, 128);
+
+        // then
+        assertThat(reopened.getSeriesIds()).containsExactlyInAnyOrder(1L, 2L);
+        assertThat(reopened.read(1L, 0, 1000)).extracting(SegmentStore.Block::getCount).containsExactly(2, 4);
+        assertThat(reopened.read(1L, 250, 1000)).extracting(SegmentStore.Block::getCount).containsExactly(4);
+        assertThat(reopened.getLastTimestamp(2L)).hasValue(250);
+    }
+
+    @Test
+    @DisplayName("The segments that only hold expired blocks are deleted with their index entries, the written one is kept")
+    void expireSegments(@TempDir Path directory) throws Exception {
+        // given
+        var store = new SegmentStore(directory, 128);
+        store.append(1L, 100, 200, 2, new byte[40]);
+        store.append(2L, 150, 250, 3, new byte[40]);
+        store.append(1L, 300, 400, 4, new byte[40]);
+
+        // when
+        var deleted = store.expire(1000);
+        store.append(1L, 500, 600, 5, new byte[40]);
+        store.force();
+
+        // then
+        assertThat(deleted).isEqualTo(2);
+        assertThat(store.getSeriesIds()).containsExactly(1L);
+        assertThat(store.read(1L, 0, 1000)).extracting(SegmentStore.Block::getCount).containsExactly(4, 5);
+        try (var files = Files.list(directory)) {
+            assertThat(files.map(file -> file.getFileName().toString()))
+                    .containsExactlyInAnyOrder("segment-00000002.dat", "segment-00000003.dat");
+        }
+
+        // when
+        var reopened = new SegmentStore(directory, 128);
+
+        // then
+        assertThat(reopened.read(1L, 0, 1000)).extracting(SegmentStore.Block::getCount).containsExactly(4, 5);
+        assertThat(reopened.getLastTimestamp(2L)).isEmpty();
+    }
+}
@@ -0,0 +1,143 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.persistence.UnitLogWriter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.vertx.mutiny.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class ErrorDeduplicatorTest {
+
+    private Vertx vertx;
+    private UnitLogWriter unitLogWriter;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        unitLogWriter = mock(UnitLogWriter.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        vertx.closeAndAwait();
+    }
+
+    private ErrorDeduplicator deduplicator(long windowMillis) {
+        return new ErrorDeduplicator(vertx.getDelegate(), unitLogWriter, new SimpleMeterRegistry(), windowMillis, 100);
+    }
+
+    @Test
+    @DisplayName("The repeats of an error within the window are written as a single log when the window closes")
+    void foldRepeats() throws Exception {
+        // given
+        var deduplicator = deduplicator(200L);
+        var first = ZonedDateTime.now(ZoneOffset.UTC);
+        var last = first.plusNanos(5_000_000);
+
+        // when
+        var isFirst = deduplicator.record(1L, "Sensor failure", first);
+        var areRepeats = deduplicator.record(1L, "Sensor failure", first.plusNanos(1_000_000))
+                || deduplicator.record(1L, "Sensor failure", last);
+        var isOtherFirst = deduplicator.record(2L, "Sensor failure", first);
+
+        // then
+        assertThat(isFirst).isTrue();
+        assertThat(areRepeats).isFalse();
+        assertThat(isOtherFirst).isTrue();
+        verify(unitLogWriter, never()).write(any());
+
+        // when
+        TimeUnit.MILLISECONDS.sleep(400);
+
+        // then
+        var unitLogs = ArgumentCaptor.forClass(UnitLog.class);
+        verify(unitLogWriter, times(2)).write(unitLogs.capture());
+        var folded = unitLogs.getAllValues().stream()
+                .filter(unitLog -> unitLog.getUnitId() == 1L)
+                .findFirst().orElseThrow();
+        assertThat(folded.getTimeUtc()).isEqualTo(first);
+        assertThat(folded.getLastTimeUtc()).isEqualTo(last);
+        assertThat(folded.getOccurrences()).isEqualTo(3);
+        assertThat(folded.getLogEntry()).isEqualTo("Sensor failure");
+    }
+
+    @Test
+    @DisplayName("A new window is opened after the previous one is closed")
+    void reopen() throws Exception {
+        // given
+        var deduplicator = deduplicator(100L);
+        deduplicator.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC));
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        // when
+        var isFirst = deduplicator.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC));
+
+        // then
+        assertThat(isFirst).isTrue();
+    }
+
+    @Test
+    @DisplayName("The open windows are flushed on shutdown and every error is written right away without a window")
+    void flushAndDisable() {
+        // given
+        var deduplicator = deduplicator(60_000L);
+        deduplicator.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC));
+
+        // when
+        deduplicator.flush(new ShutdownEvent());
+        var withoutWindow = deduplicator(0L);
+        var areFirst = withoutWindow.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC))
+                && withoutWindow.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC));
+
+        // then
+        assertThat(areFirst).isTrue();
+        verify(unitLogWriter, times(3)).write(any());
+    }
+
+    @Test
+    @DisplayName("The window is closed off the event loop, so a writer blocked on its full queue does not block the timers")
+    void closeOffEventLoop() throws Exception {
+        // given
+        var queueFreed = new CountDownLatch(1);
+        var writeStarted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            // As the BLOCK overflow policy waits for free space in the full queue.
+            writeStarted.countDown();
+            queueFreed.await();
+            return null;
+        }).when(unitLogWriter).write(any());
+        var deduplicator = deduplicator(50L);
+        var context = vertx.getDelegate().getOrCreateContext();
+        var eventLoopFree = new CountDownLatch(1);
+
+        try {
+            // when
+            context.runOnContext(v -> deduplicator.record(1L, "Sensor failure", ZonedDateTime.now(ZoneOffset.UTC)));
+            var isWriting = writeStarted.await(1, TimeUnit.SECONDS);
+            context.runOnContext(v -> eventLoopFree.countDown());
+
+            // then
+            assertThat(isWriting).isTrue();
+            assertThat(eventLoopFree.await(1, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            queueFreed.countDown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import com.tlvlp.iot.server.mqtt.Message;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IngressMessageParserTest {
+
+    private final IngressMessageParser parser = new IngressMessageParser();
+
+    private Message message(String payload) {
+        return new Message()
+                .topic(GlobalTopics.GLOBAL_STATUS.topic())
+                .payload(Buffer.buffer(payload));
+    }
+
+    @Test
+    @DisplayName("The unit id, error and modules are read from the payload")
+    void parse() {
+        // given
+        var payload = "{\"id\": {\"project\": \"tlvlp_iot_test\", \"unitName\": \"unit_1\"}, \"error\": \"overheated\", " +
+                "\"modules\": [{\"module\": \"relay\", \"name\": \"relay_1\", \"value\": 1}]}";
+
+        // when
+        var ingressMessage = parser.parse(message(payload));
+
+        // then
+        assertThat(ingressMessage.getProject()).isEqualTo("tlvlp_iot_test");
+        assertThat(ingressMessage.getUnitName()).isEqualTo("unit_1");
+        assertThat(ingressMessage.getError()).isEqualTo("overheated");
+        assertThat(ingressMessage.getModules()).extracting(ModuleDTO::getName).containsExactly("relay_1");
+    }
+
+    @Test
+    @DisplayName("A payload without a modules field has no modules list, unlike an empty modules array")
+    void absentModules() {
+        // given
+        var withoutModules = "{\"id\": {\"project\": \"tlvlp_iot_test\", \"unitName\": \"unit_1\"}}";
+        var emptyModules = "{\"id\": {\"project\": \"tlvlp_iot_test\", \"unitName\": \"unit_1\"}, \"modules\": []}";
+
+        // when
+        var absent = parser.parse(message(withoutModules));
+        var empty = parser.parse(message(emptyModules));
+
+        // then
+        assertThat(absent.getModules()).isNull();
+        assertThat(empty.getModules()).isNotNull().isEmpty();
+    }
+
+    @Test
+    @DisplayName("An object or array in place of a text field rejects the message")
+    void nonScalarText() {
+        // given
+        var nestedError = "{\"id\": {\"project\": \"tlvlp_iot_test\", \"unitName\": \"unit_1\"}, " +
+                "\"error\": {\"id\": {\"unitName\": \"unit_2\"}}}";
+        var arrayProject = "{\"id\": {\"project\": [\"tlvlp_iot_test\"], \"unitName\": \"unit_1\"}}";
+        var objectUnitName = "{\"id\": {\"project\": \"tlvlp_iot_test\", \"unitName\": {\"project\": \"other\"}}}";
+
+        // when / then
+        assertThatThrownBy(() -> parser.parse(message(nestedError))).isInstanceOf(UnitException.class);
+        assertThatThrownBy(() -> parser.parse(message(arrayProject))).isInstanceOf(UnitException.class);
+        assertThatThrownBy(() -> parser.parse(message(objectUnitName))).isInstanceOf(UnitException.class);
+    }
+}
@@ -0,0 +1,141 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.mqtt.GlobalTopics;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IngressQueueTest {
+
+    private IngressMessage message(GlobalTopics topic, String unitName) {
+        return new IngressMessage()
+                .setTopic(topic)
+                .setProject("tlvlp_iot_test")
+                .setUnitName(unitName);
+    }
+
+    private List<IngressMessage> drain(IngressQueue queue) {
+        var messages = new ArrayList<IngressMessage>();
+        queue.drainTo(messages, Integer.MAX_VALUE);
+        return messages;
+    }
+
+    @Test
+    @DisplayName("Status messages are coalesced to the latest one when the queue is full")
+    void coalesceStatus() {
+        // given
+        var queue = new IngressQueue(2, IngressQueue.OverloadPolicy.COALESCE);
+        var first = message(GlobalTopics.GLOBAL_STATUS, "unit_1");
+        var other = message(GlobalTopics.GLOBAL_STATUS, "unit_2");
+        var latest = message(GlobalTopics.GLOBAL_STATUS, "unit_1");
+
+        // when
+        queue.offer(first);
+        queue.offer(other);
+        var result = queue.offer(latest);
+
+        // then
+        assertThat(result).isEqualTo(IngressQueue.Result.COALESCED);
+        assertThat(drain(queue)).containsExactly(latest, other);
+    }
+
+    @Test
+    @DisplayName("Status is not coalesced over a later message of the same unit")
+    void keepUnitOrder() {
+        // given
+        var queue = new IngressQueue(2, IngressQueue.OverloadPolicy.COALESCE);
+        var status = message(GlobalTopics.GLOBAL_STATUS, "unit_1");
+        var error = message(GlobalTopics.GLOBAL_ERROR, "unit_1");
+
+        // when
+        queue.offer(status);
+        queue.offer(error);
+        var result = queue.offer(message(GlobalTopics.GLOBAL_STATUS, "unit_1"));
+
+        // then
+        assertThat(result).isEqualTo(IngressQueue.Result.SHED);
+        assertThat(drain(queue)).containsExactly(status, error);
+    }
+
+    @Test
+    @DisplayName("Error and inactive messages are kept by shedding the oldest status")
+    void keepErrorAndInactive() {
+        // given
+        var queue = new IngressQueue(2, IngressQueue.OverloadPolicy.COALESCE);
+        var oldestStatus = message(GlobalTopics.GLOBAL_STATUS, "unit_1");
+        var status = message(GlobalTopics.GLOBAL_STATUS, "unit_2");
+        var error = message(GlobalTopics.GLOBAL_ERROR, "unit_3");
+        var inactive = message(GlobalTopics.GLOBAL_INACTIVE, "unit_4");
+
+        // when
+        queue.offer(oldestStatus);
+        queue.offer(status);
+        var errorResult = queue.offer(error);
+        var inactiveResult = queue.offer(inactive);
+
+        // then
+        assertThat(errorResult).isEqualTo(IngressQueue.Result.ACCEPTED);
+        assertThat(inactiveResult).isEqualTo(IngressQueue.Result.ACCEPTED);
+        assertThat(drain(queue)).containsExactly(error, inactive);
+    }
+
+    @Test
+    @DisplayName("The coalesced status keeps the receipt time of the replaced one")
+    void coalesceKeepsOldestReceipt() {
+        // given
+        var queue = new IngressQueue(1, IngressQueue.OverloadPolicy.COALESCE);
+        var first = message(GlobalTopics.GLOBAL_STATUS, "unit_1").setReceivedAtNanos(100L);
+        var latest = message(GlobalTopics.GLOBAL_STATUS, "unit_1").setReceivedAtNanos(200L);
+
+        // when
+        queue.offer(first);
+        queue.offer(latest);
+
+        // then
+        assertThat(drain(queue)).containsExactly(latest);
+        assertThat(latest.getReceivedAtNanos()).isEqualTo(100L);
+    }
+
+    @Test
+    @DisplayName("Error and inactive messages are queued over the capacity when there is no status to shed")
+    void neverShedErrorAndInactive() {
+        // given
+        var queue = new IngressQueue(1, IngressQueue.OverloadPolicy.COALESCE);
+        var firstError = message(GlobalTopics.GLOBAL_ERROR, "unit_1");
+        var error = message(GlobalTopics.GLOBAL_ERROR, "unit_2");
+        var inactive = message(GlobalTopics.GLOBAL_INACTIVE, "unit_3");
+
+        // when
+        queue.offer(firstError);
+        var errorResult = queue.offer(error);
+        var inactiveResult = queue.offer(inactive);
+        var statusResult = queue.offer(message(GlobalTopics.GLOBAL_STATUS, "unit_4"));
+
+        // then
+        assertThat(errorResult).isEqualTo(IngressQueue.Result.ACCEPTED);
+        assertThat(inactiveResult).isEqualTo(IngressQueue.Result.ACCEPTED);
+        assertThat(statusResult).isEqualTo(IngressQueue.Result.SHED);
+        assertThat(drain(queue)).containsExactly(firstError, error, inactive);
+    }
+
+    @Test
+    @DisplayName("Every new message is shed when the queue is full with the SHED policy")
+    void shed() {
+        // given
+        var queue = new IngressQueue(1, IngressQueue.OverloadPolicy.SHED);
+        var status = message(GlobalTopics.GLOBAL_STATUS, "unit_1");
+
+        // when
+        queue.offer(status);
+        var result = queue.offer(message(GlobalTopics.GLOBAL_ERROR, "unit_2"));
+
+        // then
+        assertThat(result).isEqualTo(IngressQueue.Result.SHED);
+        assertThat(queue.isSaturated()).isTrue();
+        assertThat(drain(queue)).containsExactly(status);
+    }
+}
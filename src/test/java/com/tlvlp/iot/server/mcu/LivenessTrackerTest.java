@@ -0,0 +1,112 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.tlvlp.iot.server.persistence.McuRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.vertx.LocalEventBusCodec;
+import io.vertx.mutiny.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LivenessTrackerTest {
+
+    private Vertx vertx;
+    private McuRegistry registry;
+    private List<List<Long>> batches;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        registry = mock(McuRegistry.class);
+        when(registry.findActiveUnits()).thenReturn(List.of());
+        batches = new CopyOnWriteArrayList<>();
+        vertx.eventBus().getDelegate().registerCodec(new LocalEventBusCodec<>("mcu-local"));
+        vertx.eventBus().<LivenessTracker.SilentUnits>consumer("unit_silent",
+                message -> batches.add(message.body().getUnitIds()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        vertx.closeAndAwait();
+    }
+
+    private LivenessTracker tracker() {
+        var tracker = new LivenessTracker(vertx.getDelegate(), vertx.eventBus(), registry, new SimpleMeterRegistry(),
+                true, 1L, 50L);
+        tracker.start(new StartupEvent());
+        return tracker;
+    }
+
+    private List<Long> expired() {
+        var expired = new ArrayList<Long>();
+        batches.forEach(expired::addAll);
+        return expired;
+    }
+
+    @Test
+    @DisplayName("Units that are not refreshed within the timeout expire, the refreshed ones are kept")
+    void expireSilentUnits() throws Exception {
+        // given
+        var tracker = tracker();
+        tracker.refresh(1L);
+        tracker.refresh(2L);
+        tracker.refresh(3L);
+
+        // when
+        for (int i = 0; i < 6; i++) {
+            TimeUnit.MILLISECONDS.sleep(250);
+            tracker.refresh(3L);
+        }
+
+        // then
+        assertThat(expired()).containsExactlyInAnyOrder(1L, 2L);
+        assertThat(batches).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("Active units are due at their last seen time after a restart")
+    void seedFromRegistry() throws Exception {
+        // given
+        var overdue = new Unit().setId(1L).setActive(true)
+                .setLastSeenUtc(ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(10));
+        when(registry.findActiveUnits()).thenReturn(List.of(overdue));
+
+        // when
+        tracker();
+
+        // then
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertThat(expired()).containsExactly(1L);
+    }
+
+    @Test
+    @DisplayName("A forgotten unit does not expire and is tracked once when it is seen again")
+    void forget() throws Exception {
+        // given
+        var tracker = tracker();
+        tracker.refresh(1L);
+        tracker.refresh(2L);
+
+        // when
+        tracker.forget(1L);
+        tracker.refresh(1L);
+        tracker.forget(2L);
+        TimeUnit.MILLISECONDS.sleep(1500);
+
+        // then
+        assertThat(expired()).containsExactly(1L);
+    }
+}
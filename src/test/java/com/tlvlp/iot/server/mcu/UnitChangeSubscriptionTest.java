@@ -0,0 +1,113 @@
+package com.tlvlp.iot.server.mcu;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.SseEventSink;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UnitChangeSubscriptionTest {
+
+    private SseEventSink sink;
+    private List<UnitChange> sent;
+    private List<CompletableFuture<Object>> sends;
+    private Counter conflated;
+    private Counter dropped;
+
+    @BeforeEach
+    void setUp() {
+        sink = mock(SseEventSink.class);
+        sent = new ArrayList<>();
+        sends = new ArrayList<>();
+        var meterRegistry = new SimpleMeterRegistry();
+        conflated = meterRegistry.counter("conflated");
+        dropped = meterRegistry.counter("dropped");
+        // Every send stays in flight until it is completed by the test, like a slow client.
+        when(sink.send(any())).thenAnswer(invocation -> {
+            var send = new CompletableFuture<Object>();
+            sends.add(send);
+            return send;
+        });
+    }
+
+    private UnitChangeSubscription subscription(String project, Long unitId, int bufferSize) {
+        return new UnitChangeSubscription(project, unitId, bufferSize, sink, change -> {
+            sent.add(change);
+            return mock(OutboundSseEvent.class);
+        }, conflated, dropped);
+    }
+
+    private static UnitChange moduleChange(long unitId, long moduleId, double value) {
+        var unit = new Unit().setId(unitId).setProject("garden").setName("unit_" + unitId).setActive(true);
+        var module = new Module().setId(moduleId).setUnitId(unitId).setModule("relay").setName("relay_" + moduleId)
+                .setValue(value).setActive(true);
+        return UnitChange.ofModule(unit, module, ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    @Test
+    @DisplayName("The changes of a module are conflated to the latest one while the client is busy")
+    void conflate() {
+        // given
+        var subscription = subscription(null, null, 10);
+
+        // when
+        subscription.offer(moduleChange(1L, 1L, 1.0));
+        subscription.offer(moduleChange(1L, 1L, 2.0));
+        subscription.offer(moduleChange(1L, 2L, 1.0));
+        subscription.offer(moduleChange(1L, 1L, 3.0));
+        sends.get(0).complete(null);
+        sends.get(1).complete(null);
+
+        // then
+        assertThat(sent).extracting(UnitChange::getModuleId).containsExactly(1L, 1L, 2L);
+        assertThat(sent).extracting(UnitChange::getValue).containsExactly(1.0, 3.0, 1.0);
+        assertThat(conflated.count()).isEqualTo(1.0);
+    }
+
+    @Test
+    @DisplayName("Only the changes of the filtered project and unit are sent")
+    void filter() {
+        // given
+        var subscription = subscription("garden", 2L, 10);
+
+        // when
+        subscription.offer(moduleChange(1L, 1L, 1.0));
+        subscription.offer(moduleChange(2L, 2L, 1.0));
+
+        // then
+        assertThat(sent).extracting(UnitChange::getUnitId).containsExactly(2L);
+    }
+
+    @Test
+    @DisplayName("A client that falls behind by more than its buffer is disconnected")
+    void dropSlowClient() {
+        // given
+        var subscription = subscription(null, null, 2);
+        subscription.offer(moduleChange(1L, 1L, 1.0));
+
+        // when
+        var areAccepted = subscription.offer(moduleChange(1L, 2L, 1.0))
+                && subscription.offer(moduleChange(1L, 3L, 1.0));
+        var isAccepted = subscription.offer(moduleChange(1L, 4L, 1.0));
+
+        // then
+        assertThat(areAccepted).isTrue();
+        assertThat(isAccepted).isFalse();
+        assertThat(dropped.count()).isEqualTo(1.0);
+        verify(sink).close();
+    }
+}
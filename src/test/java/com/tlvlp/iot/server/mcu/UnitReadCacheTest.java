@@ -0,0 +1,109 @@
+package com.tlvlp.iot.server.mcu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UnitReadCacheTest {
+
+    private UnitReadCache cache;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        cache = new UnitReadCache(new ObjectMapper(), new SimpleMeterRegistry(), 60_000L);
+        loads = new AtomicInteger();
+    }
+
+    private Unit loadUnit(long unitId) {
+        loads.incrementAndGet();
+        return new Unit().setId(unitId).setProject("garden").setName("unit_" + unitId).setActive(true);
+    }
+
+    @Test
+    @DisplayName("A response is loaded once and served from the cache until its unit is changed")
+    void invalidateOnChange() {
+        // given
+        var first = cache.getUnit(1L, () -> loadUnit(1L));
+
+        // when
+        var cached = cache.getUnit(1L, () -> loadUnit(1L));
+        cache.unitChanged(1L);
+        var reloaded = cache.getUnit(1L, () -> loadUnit(1L));
+
+        // then
+        assertThat(loads).hasValue(2);
+        assertThat(cached).isSameAs(first);
+        assertThat(reloaded.getEntityTag()).isNotEqualTo(first.getEntityTag());
+        assertThat(new String(reloaded.getBody(), StandardCharsets.UTF_8)).contains("\"name\":\"unit_1\"");
+    }
+
+    @Test
+    @DisplayName("A unit change invalidates the list of all units and the unit, but not its modules or the other units")
+    void versionScopes() {
+        // given
+        var allUnits = cache.getAllUnits(() -> List.of(loadUnit(1L), loadUnit(2L)));
+        var otherUnit = cache.getUnit(2L, () -> loadUnit(2L));
+        var modules = cache.getModules(1L, () -> List.of(new Module().setId(1L).setUnitId(1L)));
+
+        // when
+        cache.unitChanged(1L);
+
+        // then
+        assertThat(cache.getAllUnits(() -> List.of(loadUnit(1L), loadUnit(2L)))).isNotSameAs(allUnits);
+        assertThat(cache.getUnit(2L, () -> loadUnit(2L))).isSameAs(otherUnit);
+        assertThat(cache.getModules(1L, List::of)).isSameAs(modules);
+
+        // when
+        cache.modulesChanged(1L);
+
+        // then
+        assertThat(cache.getModules(1L, List::of)).isNotSameAs(modules);
+    }
+
+    @Test
+    @DisplayName("Check-ins invalidate the unit right away, but the list of all units at most once per refresh interval")
+    void coalesceCheckIns() {
+        // given
+        var unit = cache.getUnit(1L, () -> loadUnit(1L));
+        var allUnits = cache.getAllUnits(() -> List.of(loadUnit(1L)));
+
+        // when
+        cache.unitSeen(1L);
+        var refreshed = cache.getAllUnits(() -> List.of(loadUnit(1L)));
+        cache.unitSeen(1L);
+        var coalesced = cache.getAllUnits(() -> List.of(loadUnit(1L)));
+
+        // then
+        assertThat(cache.getUnit(1L, () -> loadUnit(1L))).isNotSameAs(unit);
+        assertThat(refreshed).isNotSameAs(allUnits);
+        assertThat(coalesced).isSameAs(refreshed);
+
+        // when
+        cache.unitChanged(1L);
+
+        // then
+        assertThat(cache.getAllUnits(() -> List.of(loadUnit(1L)))).isNotSameAs(coalesced);
+    }
+
+    @Test
+    @DisplayName("A missing unit is not cached")
+    void missingUnit() {
+        // when
+        var missing = cache.getUnit(1L, () -> null);
+        var found = cache.getUnit(1L, () -> loadUnit(1L));
+
+        // then
+        assertThat(missing.getBody()).isNull();
+        assertThat(missing.getEntityTag()).isNull();
+        assertThat(found.getBody()).isNotNull();
+    }
+}
@@ -0,0 +1,121 @@
+package com.tlvlp.iot.server.mqtt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageOutbox outbox(Path file, long ttlSeconds) {
+        return new MessageOutbox(new SimpleMeterRegistry(), true, file.toString(), ttlSeconds);
+    }
+
+    @Test
+    @DisplayName("The outstanding messages are restored after a restart, the settled ones are not")
+    void restore() {
+        // given
+        var file = directory.resolve("outbox.jsonl");
+        var outbox = outbox(file, 300);
+        outbox.open();
+        var settled = outbox.append("/units/settled/control", Buffer.buffer("[1]")).join();
+        var outstanding = outbox.append("/units/outstanding/control", Buffer.buffer("[2]")).join();
+        outbox.settle(settled.getId());
+        outbox.close();
+
+        // when
+        var restored = outbox(file, 300).open();
+
+        // then
+        assertThat(restored).hasSize(1);
+        assertThat(restored.get(0).getId()).isEqualTo(outstanding.getId());
+        assertThat(restored.get(0).getTopic()).isEqualTo("/units/outstanding/control");
+        assertThat(restored.get(0).getBody().toString()).isEqualTo("[2]");
+    }
+
+    @Test
+    @DisplayName("The expired messages are not restored and the journal is compacted")
+    void expire() throws Exception {
+        // given
+        var file = directory.resolve("outbox.jsonl");
+        Files.write(file, List.of(
+                "{\"id\":1,\"topic\":\"/units/stale/control\",\"body\":\"WzFd\",\"createdAt\":0}",
+                "{\"id\":2,\"topic\":\"/units/settled/control\",\"body\":\"WzFd\",\"createdAt\":" + System.currentTimeMillis() + "}",
+                "{\"id\":2}"));
+        var outbox = outbox(file, 300);
+
+        // when
+        var restored = outbox.open();
+        var next = outbox.append("/units/next/control", Buffer.buffer("[3]")).join();
+        outbox.close();
+
+        // then
+        assertThat(restored).isEmpty();
+        assertThat(next.getId()).isEqualTo(3);
+        assertThat(Files.readAllLines(file)).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("The unreadable records are moved aside and the rest of the journal is restored and compacted")
+    void rejectMalformed() throws Exception {
+        // given
+        var file = directory.resolve("outbox.jsonl");
+        var now = System.currentTimeMillis();
+        Files.writeString(file,
+                "{\"id\":1,\"topic\":\"/units/first/control\",\"body\":\"WzFd\",\"createdAt\":" + now + "}\n" +
+                "{\"topic\":\"/units/no_id/control\"}\n" +
+                "{\"id\":2,\"topic\":\"/units/second/control\",\"body\":\"WzJd\",\"createdAt\":" + now + "}\n" +
+                "{\"id\":3,\"topic\":\"/units/torn/con");
+        var outbox = outbox(file, 300);
+
+        // when
+        var restored = outbox.open();
+        outbox.close();
+
+        // then
+        assertThat(restored).extracting(MessageOutbox.Entry::getId).containsExactly(1L, 2L);
+        assertThat(Files.readAllLines(file)).hasSize(2);
+        assertThat(Files.readAllLines(directory.resolve("outbox.jsonl.rejected"))).hasSize(2);
+
+        // when
+        var reopened = outbox(file, 300).open();
+
+        // then
+        assertThat(reopened).extracting(MessageOutbox.Entry::getId).containsExactly(1L, 2L);
+    }
+
+    @Test
+    @DisplayName("The settlements are journaled in order and a mostly settled journal is compacted by the flush")
+    void compactOnFlush() throws Exception {
+        // given
+        var file = directory.resolve("outbox.jsonl");
+        var outbox = outbox(file, 300);
+        outbox.open();
+        var entries = new ArrayList<CompletableFuture<MessageOutbox.Entry>>();
+        for (int i = 0; i < 10_001; i++) {
+            entries.add(outbox.append("/units/settled/control", Buffer.buffer("[1]")));
+        }
+        var outstanding = outbox.append("/units/outstanding/control", Buffer.buffer("[2]")).join();
+
+        // when
+        entries.forEach(entry -> outbox.settle(entry.join().getId()));
+        outbox.flush();
+        outbox.close();
+
+        // then
+        assertThat(Files.readAllLines(file)).hasSize(1);
+        assertThat(outbox(file, 300).open()).extracting(MessageOutbox.Entry::getId).containsExactly(outstanding.getId());
+    }
+}
@@ -0,0 +1,173 @@
+package com.tlvlp.iot.server.mqtt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PublishWindowTest {
+
+    private static final Duration WAIT = Duration.ofSeconds(5);
+
+    private Vertx vertx;
+    private Context context;
+    private MqttClient mqttClient;
+    private int nextPacketId;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        mqttClient = mock(MqttClient.class);
+        when(mqttClient.isConnected()).thenReturn(true);
+        when(mqttClient.publishCompletionHandler(any())).thenReturn(mqttClient);
+        when(mqttClient.publishCompletionExpirationHandler(any())).thenReturn(mqttClient);
+        // Every attempt is written at once with the next packet id, like the client does.
+        when(mqttClient.publish(anyString(), any(), any(), anyBoolean(), anyBoolean(), any())).thenAnswer(invocation -> {
+            Handler<AsyncResult<Integer>> sent = invocation.getArgument(5);
+            sent.handle(Future.succeededFuture(++nextPacketId));
+            return mqttClient;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        vertx.close();
+    }
+
+    private PublishWindow window(int windowSize, int maxRetries) {
+        var meterRegistry = new SimpleMeterRegistry();
+        var outbox = new MessageOutbox(meterRegistry, false, "unused", 300L);
+        return new PublishWindow(vertx, context, mqttClient, outbox, meterRegistry, MqttQoS.AT_LEAST_ONCE,
+                windowSize, 100, maxRetries, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Handler<Integer> completionHandler() {
+        ArgumentCaptor<Handler<Integer>> handler = ArgumentCaptor.forClass(Handler.class);
+        verify(mqttClient).publishCompletionHandler(handler.capture());
+        return handler.getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Handler<Integer> expirationHandler() {
+        ArgumentCaptor<Handler<Integer>> handler = ArgumentCaptor.forClass(Handler.class);
+        verify(mqttClient).publishCompletionExpirationHandler(handler.capture());
+        return handler.getValue();
+    }
+
+    /**
+     * The client calls its handlers on the context of the window.
+     */
+    private void onContext(Handler<Integer> handler, int packetId) throws Exception {
+        var done = new CompletableFuture<Void>();
+        context.runOnContext(na -> {
+            handler.handle(packetId);
+            done.complete(null);
+        });
+        done.get(WAIT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void verifyAttempts(int attempts) {
+        verify(mqttClient, timeout(WAIT.toMillis()).times(attempts))
+                .publish(eq("topic"), any(), any(), anyBoolean(), anyBoolean(), any());
+    }
+
+    @Test
+    @DisplayName("At most a window of messages is in flight, the next one is sent after an acknowledgement")
+    void window() throws Exception {
+        // given
+        var window = window(2, 0);
+        window.connected();
+
+        // when
+        var first = window.publish("topic", Buffer.buffer("1"));
+        window.publish("topic", Buffer.buffer("2"));
+        window.publish("topic", Buffer.buffer("3"));
+
+        // then
+        verifyAttempts(2);
+        onContext(completionHandler(), 1);
+        verifyAttempts(3);
+        var result = first.await().atMost(WAIT);
+        assertThat(result.isDelivered()).isTrue();
+        assertThat(result.getAttempts()).isEqualTo(1);
+        assertThat(window.getPending()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("An unacknowledged message is retried until it runs out of attempts")
+    void retry() throws Exception {
+        // given
+        var window = window(1, 1);
+        window.connected();
+
+        // when
+        var result = window.publish("topic", Buffer.buffer("1"));
+        verifyAttempts(1);
+        onContext(expirationHandler(), 1);
+        verifyAttempts(2);
+        onContext(expirationHandler(), 2);
+
+        // then
+        var failed = result.await().atMost(WAIT);
+        assertThat(failed.isDelivered()).isFalse();
+        assertThat(failed.getAttempts()).isEqualTo(2);
+        assertThat(window.getPending()).isZero();
+        verify(mqttClient, times(2)).publish(eq("topic"), any(), any(), anyBoolean(), anyBoolean(), any());
+    }
+
+    @Test
+    @DisplayName("The messages wait while disconnected and the lost attempts are replayed without using up the retries")
+    void replay() throws Exception {
+        // given
+        var window = window(2, 0);
+        window.connected();
+        var lost = window.publish("topic", Buffer.buffer("1"));
+        verifyAttempts(1);
+
+        // when
+        window.disconnected();
+        var waiting = window.publish("topic", Buffer.buffer("2"));
+        verify(mqttClient, after(200).times(1)).publish(eq("topic"), any(), any(), anyBoolean(), anyBoolean(), any());
+        window.connected();
+        verifyAttempts(2);
+        onContext(expirationHandler(), 1);
+        verifyAttempts(3);
+        onContext(completionHandler(), 2);
+        onContext(completionHandler(), 3);
+
+        // then
+        var replayed = lost.await().atMost(WAIT);
+        assertThat(replayed.isDelivered()).isTrue();
+        assertThat(replayed.getAttempts()).isEqualTo(1);
+        assertThat(waiting.await().atMost(WAIT).isDelivered()).isTrue();
+    }
+}
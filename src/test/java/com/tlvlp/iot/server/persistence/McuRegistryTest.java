@@ -0,0 +1,55 @@
+package com.tlvlp.iot.server.persistence;
+
+import com.tlvlp.iot.server.mcu.Module;
+import com.tlvlp.iot.server.mcu.Unit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class McuRegistryTest {
+
+    private McuRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new McuRegistry(mock(EntityManager.class), mock(TransactionCallbacks.class), new SimpleMeterRegistry());
+    }
+
+    @Test
+    @DisplayName("The registry hands out copies, a change is only visible to the others after it is put")
+    void copies() {
+        // given
+        var unit = new Unit().setId(1L).setProject("garden").setName("unit_1").setActive(true)
+                .setLastSeenUtc(ZonedDateTime.now(ZoneOffset.UTC));
+        registry.putUnit(unit, true);
+        registry.putModule(new Module().setId(1L).setUnitId(1L).setModule("relay").setName("relay_1")
+                .setValue(0.0).setActive(true));
+
+        // when
+        unit.setActive(false);
+        var found = registry.findUnit("garden", "unit_1").orElseThrow();
+        found.setActive(false);
+        registry.findModule(1L, "relay", "relay_1").orElseThrow().setValue(1.0);
+
+        // then
+        assertThat(found).isNotSameAs(registry.findUnitById(1L).orElseThrow());
+        assertThat(registry.findUnitById(1L).orElseThrow().getActive()).isTrue();
+        assertThat(registry.findActiveModules(1L).orElseThrow())
+                .extracting(Module::getValue).containsExactly(0.0);
+
+        // when
+        registry.putUnit(found, false);
+
+        // then
+        assertThat(registry.findUnitById(1L).orElseThrow().getActive()).isFalse();
+        assertThat(registry.findActiveUnits()).isEmpty();
+    }
+}
@@ -0,0 +1,85 @@
+package com.tlvlp.iot.server.persistence;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UnitLogRetentionTest {
+
+    private static UnitLogRetention.Partition partition(String name, String upperBound) {
+        return new UnitLogRetention.Partition(name, UnitLogRetention.parseBound(upperBound), 0L);
+    }
+
+    private static final List<UnitLogRetention.Partition> PARTITIONS = List.of(
+            partition("p_old", "'2026-09-01 00:00:00'"),
+            partition("p202609", "'2026-10-01 00:00:00'"),
+            partition("p202610", "'2026-11-01 00:00:00.000000'"),
+            partition("pmax", "MAXVALUE"));
+
+    @Test
+    @DisplayName("The months after the last bound are split off pmax until the future months are covered")
+    void futurePartitions() {
+        // when
+        var ddl = UnitLogRetention.reorganizeFuturePartitions(PARTITIONS, YearMonth.of(2026, 10), 2);
+
+        // then
+        assertThat(ddl).contains("ALTER TABLE unit_logs REORGANIZE PARTITION pmax INTO (" +
+                "PARTITION p202611 VALUES LESS THAN ('2026-12-01 00:00:00'), " +
+                "PARTITION p202612 VALUES LESS THAN ('2027-01-01 00:00:00'), " +
+                "PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+    }
+
+    @Test
+    @DisplayName("No partition is created when the future months are covered")
+    void futurePartitionsCovered() {
+        // when
+        var ddl = UnitLogRetention.reorganizeFuturePartitions(PARTITIONS, YearMonth.of(2026, 9), 1);
+
+        // then
+        assertThat(ddl).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Only pmax: the current month is split off as well")
+    void futurePartitionsFromMaxValue() {
+        // when
+        var ddl = UnitLogRetention.reorganizeFuturePartitions(
+                List.of(partition("pmax", "MAXVALUE")), YearMonth.of(2026, 12), 1);
+
+        // then
+        assertThat(ddl).contains("ALTER TABLE unit_logs REORGANIZE PARTITION pmax INTO (" +
+                "PARTITION p202612 VALUES LESS THAN ('2027-01-01 00:00:00'), " +
+                "PARTITION p202701 VALUES LESS THAN ('2027-02-01 00:00:00'), " +
+                "PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+    }
+
+    @Test
+    @DisplayName("The partitions that end by the cutoff are expired, the last one is always kept")
+    void expiredPartitions() {
+        // when
+        var onBound = UnitLogRetention.expiredPartitions(PARTITIONS, LocalDateTime.of(2026, 10, 1, 0, 0));
+        var withinMonth = UnitLogRetention.expiredPartitions(PARTITIONS, LocalDateTime.of(2026, 10, 31, 23, 59));
+        var all = UnitLogRetention.expiredPartitions(PARTITIONS, LocalDateTime.of(2030, 1, 1, 0, 0));
+
+        // then
+        assertThat(onBound).extracting(UnitLogRetention.Partition::getName).containsExactly("p_old", "p202609");
+        assertThat(withinMonth).extracting(UnitLogRetention.Partition::getName).containsExactly("p_old", "p202609");
+        assertThat(all).extracting(UnitLogRetention.Partition::getName).containsExactly("p_old", "p202609", "p202610");
+        assertThat(UnitLogRetention.expiredPartitions(List.of(), LocalDateTime.of(2030, 1, 1, 0, 0))).isEmpty();
+    }
+
+    @Test
+    @DisplayName("The partition description is parsed to its exclusive upper bound")
+    void parseBound() {
+        // then
+        assertThat(UnitLogRetention.parseBound("'2026-11-01 00:00:00'"))
+                .contains(LocalDateTime.of(2026, 11, 1, 0, 0));
+        assertThat(UnitLogRetention.parseBound("MAXVALUE")).isEqualTo(Optional.empty());
+    }
+}
@@ -0,0 +1,140 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tlvlp.iot.server.mcu.Module;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.vertx.LocalEventBusCodec;
+import io.vertx.mutiny.core.Vertx;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+
+class ScheduledControlDispatcherTest {
+
+    private Vertx vertx;
+    private ScheduledEventIndex index;
+    private List<List<Module>> batches;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        index = new ScheduledEventIndex(null, null, new ObjectMapper(), new SimpleMeterRegistry(), 0L);
+        batches = new CopyOnWriteArrayList<>();
+        vertx.eventBus().getDelegate().registerCodec(new LocalEventBusCodec<>("mcu-local"));
+        vertx.eventBus().<List<Module>>consumer(ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS,
+                message -> batches.add(message.body()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        vertx.closeAndAwait();
+    }
+
+    private ScheduledControlDispatcher dispatcher(long windowMillis) {
+        return new ScheduledControlDispatcher(vertx.getDelegate(), vertx.eventBus(), index, new SimpleMeterRegistry(),
+                windowMillis);
+    }
+
+    private static JobDetail job(String name, String eventMessage) {
+        return JobBuilder.newJob(EventJob.class)
+                .withIdentity(name, "garden")
+                .usingJobData("eventAddress", ScheduledControlDispatcher.UNIT_CONTROL_ADDRESS)
+                .usingJobData("eventMessage", eventMessage)
+                .build();
+    }
+
+    private static Trigger trigger(String name) {
+        return TriggerBuilder.newTrigger()
+                .withIdentity(name, "garden")
+                .withSchedule(cronSchedule("0 0 7 * * ?"))
+                .build();
+    }
+
+    private static String module(long unitId) {
+        return String.format("[{\"unitId\":%d,\"module\":\"relay\",\"name\":\"relay_1\",\"value\":1.0}]", unitId);
+    }
+
+    private void schedule(JobDetail job, Trigger trigger) {
+        index.put(job.getKey(), index.toScheduledEvent(job, trigger, false));
+    }
+
+    @Test
+    @DisplayName("The events that fire within the window are dispatched together")
+    void coalesce() throws Exception {
+        // given
+        var dispatcher = dispatcher(100L);
+        var first = job("first", module(1L));
+        var second = job("second", module(2L));
+        schedule(first, trigger("first"));
+        schedule(second, trigger("second"));
+
+        // when
+        dispatcher.dispatch(first, trigger("first"));
+        dispatcher.dispatch(second, trigger("second"));
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        // then
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).extracting(Module::getUnitId).containsExactly(1L, 2L);
+    }
+
+    @Test
+    @DisplayName("Without a window every event is dispatched on its own, an unknown event is parsed from its job")
+    void noWindow() throws Exception {
+        // given
+        var dispatcher = dispatcher(0L);
+        var first = job("first", module(1L));
+        schedule(first, trigger("first"));
+
+        // when
+        dispatcher.dispatch(first, trigger("first"));
+        dispatcher.dispatch(job("unknown", module(2L)), trigger("unknown"));
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // then
+        assertThat(batches).hasSize(2);
+    }
+
+    @Test
+    @DisplayName("An event that was replaced since it was indexed is dispatched with the controls of the firing job")
+    void replacedEvent() throws Exception {
+        // given
+        var dispatcher = dispatcher(0L);
+        schedule(job("replaced", module(1L)), trigger("replaced"));
+        var replaced = job("replaced", module(2L));
+
+        // when
+        dispatcher.dispatch(replaced, trigger("replaced"));
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // then
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).extracting(Module::getUnitId).containsExactly(2L);
+        assertThat(index.find(replaced.getKey()).orElseThrow().getUnitIds()).containsExactly(2L);
+    }
+
+    @Test
+    @DisplayName("An event without valid module controls is not dispatched")
+    void invalidModuleControls() {
+        // given
+        var dispatcher = dispatcher(0L);
+
+        // then
+        assertThatThrownBy(() -> dispatcher.dispatch(job("invalid", "not a module list"), trigger("invalid")))
+                .isInstanceOf(ScheduledEventException.class);
+        assertThat(batches).isEmpty();
+    }
+}
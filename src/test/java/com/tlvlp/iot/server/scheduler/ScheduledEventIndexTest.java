@@ -0,0 +1,129 @@
+package com.tlvlp.iot.server.scheduler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.quartz.JobBuilder;
+import org.quartz.JobKey;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+
+class ScheduledEventIndexTest {
+
+    private ScheduledEventIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ScheduledEventIndex(null, null, new ObjectMapper(), new SimpleMeterRegistry(), 0L);
+    }
+
+    private ScheduledEvent event(String group, String name, String eventMessage) {
+        var job = JobBuilder.newJob(EventJob.class)
+                .withIdentity(name, group)
+                .usingJobData("eventAddress", "unit_control")
+                .usingJobData("eventMessage", eventMessage)
+                .build();
+        var trigger = TriggerBuilder.newTrigger()
+                .withIdentity(name, group)
+                .withSchedule(cronSchedule("0 0 7 * * ?"))
+                .build();
+        return index.toScheduledEvent(job, trigger, false);
+    }
+
+    private static String modules(long... unitIds) {
+        var message = new StringBuilder("[");
+        for (long unitId : unitIds) {
+            if (message.length() > 1) {
+                message.append(',');
+            }
+            message.append(String.format("{\"unitId\":%d,\"module\":\"relay\",\"name\":\"relay_1\",\"value\":1.0}", unitId));
+        }
+        return message.append(']').toString();
+    }
+
+    @Test
+    @DisplayName("The events are found by the units of their module controls")
+    void findAllByUnitId() {
+        // given
+        index.put(JobKey.jobKey("morning", "garden"), event("garden", "morning", modules(1L, 2L)));
+        index.put(JobKey.jobKey("evening", "garden"), event("garden", "evening", modules(2L, 2L)));
+        index.put(JobKey.jobKey("status", "system"), event("system", "status", "status request"));
+
+        // then
+        assertThat(index.findAllByUnitId(1L)).extracting(ScheduledEvent::getName).containsExactly("morning");
+        assertThat(index.findAllByUnitId(2L)).extracting(ScheduledEvent::getName).containsExactly("evening", "morning");
+        assertThat(index.findAllByUnitId(3L)).isEmpty();
+        assertThat(index.findAll()).hasSize(3);
+        assertThat(index.find(JobKey.jobKey("status", "system")).orElseThrow().getUnitIds()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("A replaced event is only found by its new units and a removed one by none")
+    void replaceAndRemove() {
+        // given
+        var morning = JobKey.jobKey("morning", "garden");
+        index.put(morning, event("garden", "morning", modules(1L, 2L)));
+
+        // when
+        index.put(morning, event("garden", "morning", modules(2L, 3L)));
+
+        // then
+        assertThat(index.findAllByUnitId(1L)).isEmpty();
+        assertThat(index.findAllByUnitId(3L)).extracting(ScheduledEvent::getName).containsExactly("morning");
+
+        // when
+        index.jobDeleted(morning);
+
+        // then
+        assertThat(index.findAllByUnitId(2L)).isEmpty();
+        assertThat(index.findAll()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Pausing and resuming the jobs and triggers is reflected in the events")
+    void pauseAndResume() {
+        // given
+        var morning = JobKey.jobKey("morning", "garden");
+        var evening = JobKey.jobKey("evening", "garden");
+        index.put(morning, event("garden", "morning", modules(1L)));
+        index.put(evening, event("garden", "evening", modules(1L)));
+
+        // when
+        index.jobPaused(morning);
+
+        // then
+        assertThat(index.find(morning).orElseThrow().isPaused()).isTrue();
+        assertThat(index.find(evening).orElseThrow().isPaused()).isFalse();
+
+        // when
+        index.triggersPaused("garden");
+        index.triggerResumed(TriggerKey.triggerKey("evening", "garden"));
+
+        // then
+        assertThat(index.findAllByUnitId(1L)).extracting(ScheduledEvent::isPaused).containsExactly(false, true);
+    }
+
+    @Test
+    @DisplayName("A reload drops the events that are no longer scheduled")
+    void replaceAll() {
+        // given
+        var morning = JobKey.jobKey("morning", "garden");
+        var evening = JobKey.jobKey("evening", "garden");
+        index.put(morning, event("garden", "morning", modules(1L)));
+
+        // when
+        index.replaceAll(Map.of(evening, event("garden", "evening", modules(2L))));
+
+        // then
+        assertThat(index.findAll()).extracting(ScheduledEvent::getName).containsExactly("evening");
+        assertThat(index.findAllByUnitId(1L)).isEmpty();
+        assertThat(index.findAllByUnitId(2L)).hasSize(1);
+    }
+}